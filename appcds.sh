@@ -0,0 +1,42 @@
+#!/bin/sh
+# Builds an AppCDS archive for SLOPMACHINE.jar, so the JVM maps the app's classes from
+# slopmachine.jsa instead of loading and verifying them on every start.
+# Works on Java 11 and newer. Needs a display, as it opens the window once.
+#
+#   ./appcds.sh path/to/SLOPMACHINE.jar [extra -D options, e.g. -Dlocalai.endpoints=http://host:8080]
+#
+# The jar has to be a build that knows -Dstartup.exitWhenReady; older ones would keep the
+# training window open forever.
+set -e
+
+if [ $# -eq 0 ]; then
+    echo "usage: $0 path/to/SLOPMACHINE.jar [-D options...]" >&2
+    exit 2
+fi
+JAR=$1
+shift
+if [ ! -f "$JAR" ]; then
+    echo "$JAR: no such file" >&2
+    exit 2
+fi
+if command -v unzip > /dev/null && ! unzip -p "$JAR" MinimalFrame.class | grep -q startup.exitWhenReady; then
+    echo "$JAR is too old for a training run (no -Dstartup.exitWhenReady); build a current jar first" >&2
+    exit 2
+fi
+CLASSLIST=slopmachine.classlist
+ARCHIVE=slopmachine.jsa
+
+echo "== Training run (no archive)"
+java -Xshare:off -XX:DumpLoadedClassList=$CLASSLIST -Dstartup.exitWhenReady=true "$@" -jar "$JAR" | grep '^Startup:' \
+    || echo "(no startup times printed)"
+
+echo "== Dumping $ARCHIVE from $(wc -l < $CLASSLIST) classes"
+java -Xshare:dump -XX:SharedClassListFile=$CLASSLIST -XX:SharedArchiveFile=$ARCHIVE -cp "$JAR" > /dev/null
+
+echo "== With archive"
+java -XX:SharedArchiveFile=$ARCHIVE -Dstartup.exitWhenReady=true "$@" -jar "$JAR" | grep '^Startup:' \
+    || echo "(no startup times printed)"
+
+echo
+echo "Start the client with: java -XX:SharedArchiveFile=$ARCHIVE -jar $JAR"
+echo "Rebuild the archive whenever the jar changes."
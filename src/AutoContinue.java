@@ -0,0 +1,65 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finishes replies that hit max_tokens (-Dcontinue.auto=true). The partial reply is sent back
+ * as the last, assistant message, which llama.cpp treats as the start of its answer and simply
+ * extends. The prompt is then the previous prompt plus the tokens just generated, all still in
+ * the slot's cache, so a round costs almost no prompt evaluation. The pieces are joined into the
+ * one reply, for at most -Dcontinue.maxRounds rounds (default 3).
+ *
+ * Servers that can't continue an assistant message answer it as a new turn instead; for those,
+ * -Dcontinue.mode=prompt asks with a "continue" user message, at the cost of a longer prompt.
+ */
+public class AutoContinue {
+
+    /** The reply after continuing, and whether it is still cut off. */
+    public static class Result {
+        public final String text;
+        public final boolean truncated;
+        public final int rounds;
+
+        Result(String text, boolean truncated, int rounds) {
+            this.text = text;
+            this.truncated = truncated;
+            this.rounds = rounds;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.getBoolean("continue.auto");
+    }
+
+    public static Result run(ChatBackend backend, String model, List<Message> history, int slotId,
+                             String partial) throws IOException {
+        boolean askWithPrompt = "prompt".equals(System.getProperty("continue.mode"));
+        int maxRounds = Integer.getInteger("continue.maxRounds", 3);
+        StringBuilder text = new StringBuilder(partial);
+        boolean truncated = true;
+        int rounds = 0;
+        while (truncated && rounds < maxRounds) {
+            List<Message> messages = new ArrayList<>(history);
+            messages.add(new Message("assistant", text.toString()));
+            if (askWithPrompt) {
+                messages.add(new Message("user", IdlePrefetcher.CONTINUE_PROMPT));
+            }
+            String more;
+            String promptTokens;
+            try (ResponseBody response = backend.sendChatRequestWithHistory(model, messages, slotId, 1, null)) {
+                more = response.getString("choices", "0", "message", "content");
+                truncated = "length".equals(response.getString("choices", "0", "finish_reason"));
+                promptTokens = response.getString("usage", "prompt_tokens");
+            }
+            rounds++;
+            if (more == null || more.isEmpty()) {
+                break;
+            }
+            text.append(more);
+            System.out.println("Continuation " + rounds + ": +" + more.length() + " characters"
+                    + (promptTokens != null ? " (" + promptTokens + " prompt tokens)" : "")
+                    + (truncated ? ", still cut off" : ", finished"));
+        }
+        return new Result(text.toString(), truncated, rounds);
+    }
+}
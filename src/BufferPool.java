@@ -0,0 +1,45 @@
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of reusable heap byte arrays for reading responses, so each request doesn't allocate
+ * and grow a fresh buffer. Arrays larger than MAX_POOLED_BYTES are left to the GC.
+ */
+public class BufferPool {
+    private static final int MIN_SIZE = 16 * 1024;
+    private static final int MAX_POOLED_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_POOLED = 8;
+
+    private static final ConcurrentLinkedDeque<byte[]> free = new ConcurrentLinkedDeque<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    /** A buffer of at least minSize bytes; contents are undefined. */
+    public static byte[] acquire(int minSize) {
+        for (byte[] buffer : free) {
+            if (buffer.length >= minSize && free.remove(buffer)) {
+                pooled.decrementAndGet();
+                return buffer;
+            }
+        }
+        return new byte[Math.max(MIN_SIZE, Integer.highestOneBit(Math.max(minSize - 1, 1)) << 1)];
+    }
+
+    public static void release(byte[] buffer) {
+        if (buffer == null || buffer.length > MAX_POOLED_BYTES) {
+            return;
+        }
+        if (pooled.incrementAndGet() <= MAX_POOLED) {
+            free.push(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    /** Returns a larger buffer holding the first used bytes of buffer, and releases the old one. */
+    public static byte[] grow(byte[] buffer, int used) {
+        byte[] larger = acquire(buffer.length * 2);
+        System.arraycopy(buffer, 0, larger, 0, used);
+        release(buffer);
+        return larger;
+    }
+}
@@ -0,0 +1,25 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Something that runs local models: a LocalAI host (LocalAIClient) or the in-process engine
+ * (EmbeddedBackend). Both answer in the OpenAI formats, so callers parse replies the same way.
+ * ChatBackends.forEndpoint picks one from what is in the endpoint field.
+ */
+public interface ChatBackend {
+
+    /** OpenAI-style model list, {"data": [{"id": ...}, ...]}. */
+    String getAvailableModels() throws IOException;
+
+    /**
+     * Non-streaming chat completion with candidates alternative replies; tools may be null.
+     * slotId is a hint for backends that keep several prompt caches. Close the returned body.
+     */
+    ResponseBody sendChatRequestWithHistory(String model, List<Message> messages, int slotId,
+                                            int candidates, String tools) throws IOException;
+
+    /** Streams the reply's text deltas to onDelta and returns the raw SSE events, one per line. */
+    String streamChatRequestWithHistory(String model, List<Message> messages, int slotId,
+                                        HttpTransport.CancelHandle cancel, Consumer<String> onDelta) throws IOException;
+}
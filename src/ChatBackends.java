@@ -0,0 +1,26 @@
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Turns an endpoint into a backend: "embedded:/path/model.bin" runs that checkpoint in this
+ * process (one engine per file, kept for the lifetime of the client), anything else is a
+ * LocalAI URL.
+ */
+public class ChatBackends {
+    public static final String EMBEDDED_PREFIX = "embedded:";
+
+    private static final Map<String, EmbeddedBackend> embedded = new ConcurrentHashMap<>();
+
+    public static ChatBackend forEndpoint(String endpoint) {
+        if (isEmbedded(endpoint)) {
+            String path = endpoint.substring(EMBEDDED_PREFIX.length()).trim();
+            return embedded.computeIfAbsent(new File(path).getAbsolutePath(), EmbeddedBackend::new);
+        }
+        return new LocalAIClient(endpoint);
+    }
+
+    public static boolean isEmbedded(String endpoint) {
+        return endpoint != null && endpoint.startsWith(EMBEDDED_PREFIX);
+    }
+}
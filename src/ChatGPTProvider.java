@@ -0,0 +1,5 @@
+public class ChatGPTProvider extends OpenAICompatibleProvider {
+    public ChatGPTProvider() {
+        super("ChatGPT", "https://api.openai.com/v1/chat/completions", "gpt-3.5-turbo", "CHATGPT_API_KEY");
+    }
+}
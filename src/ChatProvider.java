@@ -0,0 +1,69 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Service provider interface for online chat backends (Deepseek, ChatGPT, Gemini, ...).
+ * Implementations are discovered with ServiceLoader through
+ * META-INF/services/ChatProvider and listed in the online model combo box by name.
+ */
+public interface ChatProvider {
+
+    /** Name shown in the online model combo box and used as the chat label. */
+    String getName();
+
+    /** Model id sent to the vendor API. */
+    String getModel();
+
+    String getEndpoint(boolean stream) throws IOException;
+
+    /** Extra request headers, usually the API key. Throws if the key is not configured. */
+    Map<String, String> getHeaders() throws IOException;
+
+    /** Encodes the full multi-turn history into the vendor's request body. */
+    String encodeRequest(List<Message> messages, boolean stream);
+
+    /**
+     * The same request as a RequestBody, which is what actually gets sent. Providers that
+     * support images override this so the image data is encoded while the body is written.
+     */
+    default RequestBody encodeRequestBody(List<Message> messages, boolean stream) {
+        return RequestBody.of(encodeRequest(messages, stream));
+    }
+
+    /** Returns the assistant text of a complete (non-streaming) response, or null if it can't be found. */
+    String decodeResponse(String json);
+
+    /** Returns the text delta carried by one streamed event, or null if the event has none. */
+    String decodeStreamEvent(String data);
+
+    /** Token usage of every reply goes to the UsageLedger under the provider's name. */
+    default String sendChat(List<Message> messages) throws IOException {
+        String response = HttpTransport.post(getEndpoint(false), encodeRequestBody(messages, false), getHeaders());
+        UsageLedger.record(getName(), response);
+        return response;
+    }
+
+    /**
+     * Streams the reply, passing each text delta to onDelta as it arrives.
+     * Returns the raw events, one per line, for display in the response area.
+     */
+    default String streamChat(List<Message> messages, Consumer<String> onDelta) throws IOException {
+        return streamChat(messages, null, onDelta);
+    }
+
+    default String streamChat(List<Message> messages, HttpTransport.CancelHandle cancel,
+                              Consumer<String> onDelta) throws IOException {
+        StringBuilder raw = new StringBuilder();
+        HttpTransport.postStream(getEndpoint(true), encodeRequestBody(messages, true), getHeaders(), cancel, data -> {
+            raw.append(data).append('\n');
+            String delta = decodeStreamEvent(data);
+            if (delta != null && !delta.isEmpty()) {
+                onDelta.accept(delta);
+            }
+        });
+        UsageLedger.recordStream(getName(), raw.toString());
+        return raw.toString();
+    }
+}
@@ -0,0 +1,28 @@
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+/**
+ * Registry of the online chat providers found on the classpath.
+ */
+public class ChatProviders {
+    private static Map<String, ChatProvider> providers;
+
+    public static synchronized Collection<ChatProvider> all() {
+        if (providers == null) {
+            Map<String, ChatProvider> loaded = new LinkedHashMap<>();
+            for (ChatProvider provider : ServiceLoader.load(ChatProvider.class)) {
+                loaded.put(provider.getName(), provider);
+            }
+            providers = Collections.unmodifiableMap(loaded);
+        }
+        return providers.values();
+    }
+
+    public static ChatProvider get(String name) {
+        all();
+        return name == null ? null : providers.get(name);
+    }
+}
@@ -0,0 +1,106 @@
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens the connection to an online provider when it is picked (the Online button, F2, or another
+ * provider in the list), so the first message doesn't wait for the DNS lookup and the TCP and TLS
+ * handshakes (-Dprewarm.enabled=false turns this off).
+ *
+ * HttpURLConnection drops an idle keep-alive socket after about five seconds, so while nothing
+ * is sent the connection is refreshed with a HEAD request every -Dprewarm.keepAliveMs (default
+ * 4000), for at most -Dprewarm.maxIdleMs (default 60000) after the provider was picked or last
+ * used. A refresh is skipped while a request to the host is running or has just finished, since
+ * that connection is warm anyway. The JVM caches the DNS answer and the TLS session as well, so
+ * even a connection that does get dropped is quicker to reopen.
+ */
+public class ConnectionWarmer {
+    private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "connection-warmer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static Warmer current;
+
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(System.getProperty("prewarm.enabled", "true"));
+    }
+
+    /** Keeps a connection to the provider's host open, instead of the previous one. */
+    public static synchronized void warm(ChatProvider provider) {
+        if (!isEnabled() || provider == null) {
+            return;
+        }
+        String endpoint;
+        try {
+            endpoint = provider.getEndpoint(true);
+        } catch (IOException e) {
+            // Usually a missing API key; the first request will report it
+            stop();
+            return;
+        }
+        warm(provider.getName(), endpoint);
+    }
+
+    public static synchronized void warm(String name, String endpoint) {
+        stop();
+        current = new Warmer(name, endpoint);
+        current.future = EXECUTOR.scheduleWithFixedDelay(current, 0, Long.getLong("prewarm.keepAliveMs", 4000L),
+                TimeUnit.MILLISECONDS);
+    }
+
+    /** Stops refreshing; the open connection is left to time out. */
+    public static synchronized void stop() {
+        if (current != null) {
+            current.future.cancel(false);
+            current = null;
+        }
+    }
+
+    private static class Warmer implements Runnable {
+        final String name;
+        final String endpoint;
+        final long pickedAt = System.currentTimeMillis();
+        ScheduledFuture<?> future;
+        boolean warmed;
+
+        Warmer(String name, String endpoint) {
+            this.name = name;
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        public void run() {
+            long keepAlive = Long.getLong("prewarm.keepAliveMs", 4000L);
+            long maxIdle = Long.getLong("prewarm.maxIdleMs", 60000L);
+            try {
+                if (HttpTransport.isBusy(endpoint, keepAlive)) {
+                    return;
+                }
+                long lastUsed = Math.max(pickedAt, HttpTransport.getLastActivity(endpoint));
+                if (System.currentTimeMillis() - lastUsed > maxIdle) {
+                    synchronized (ConnectionWarmer.class) {
+                        if (current == this) {
+                            stop();
+                        }
+                    }
+                    return;
+                }
+                long start = System.nanoTime();
+                int status = HttpTransport.warm(endpoint);
+                if (!warmed) {
+                    warmed = true;
+                    System.out.println("Connected to " + name + " in advance in " + (System.nanoTime() - start) / 1_000_000
+                            + " ms (HTTP " + status + ")");
+                }
+            } catch (IOException e) {
+                if (!warmed) {
+                    System.out.println("Could not connect to " + name + " in advance: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,311 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The conversation as it is sent to the models. The chat pane only renders it; turns are kept
+ * exactly as they were sent and received, so earlier messages serialize to the same bytes on
+ * every request and LocalAI's prompt cache can reuse the already evaluated prefix.
+ *
+ * Turns form a tree: each one points at the turn before it, so editing or regenerating a turn
+ * starts a new branch that shares every earlier turn with the old one instead of copying it.
+ * The head is the last turn of the branch being shown and extended.
+ */
+public class Conversation {
+    private static final AtomicInteger nextSlot = new AtomicInteger();
+
+    /** One message in the tree. Never changes once created, apart from gaining children. */
+    public static class Turn {
+        private final Turn parent;
+        private final Message message;
+        private final String label;
+        private final String model;
+        private final int depth;
+        private final long timestamp;
+        private final int promptTokens;
+        private final int completionTokens;
+        private final List<Turn> children = new ArrayList<>();
+
+        private Turn(Turn parent, Message message, String label, String model, long timestamp,
+                     int promptTokens, int completionTokens) {
+            this.parent = parent;
+            this.message = message;
+            this.label = label;
+            this.model = model;
+            this.depth = parent == null ? 0 : parent.depth + 1;
+            this.timestamp = timestamp;
+            this.promptTokens = promptTokens;
+            this.completionTokens = completionTokens;
+        }
+
+        /** The turn this one follows, or null for the first turn. */
+        public Turn getParent() {
+            return parent == null || parent.parent == null ? null : parent;
+        }
+
+        /** When the message was sent or received, in epoch milliseconds. */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /** Token usage of the request that produced this reply, as the server reported it; 0 if unknown. */
+        public int getPromptTokens() {
+            return promptTokens;
+        }
+
+        public int getCompletionTokens() {
+            return completionTokens;
+        }
+
+        public Message getMessage() {
+            return message;
+        }
+
+        /** Name shown in front of the message in the chat pane ("You", "AI", a provider name). */
+        public String getLabel() {
+            return label;
+        }
+
+        /** Model that wrote the reply, which the label may not name ("AI"); null for user turns and if unknown. */
+        public String getModel() {
+            return model;
+        }
+
+        /** Number of turns up to and including this one. */
+        public int getDepth() {
+            return depth;
+        }
+    }
+
+    private final Turn root = new Turn(null, null, null, null, 0, 0, 0);
+    private Turn head = root;
+    private final int slotId;
+
+    public Conversation() {
+        // Pin each conversation to one llama.cpp slot so its KV cache isn't evicted by another chat
+        int slots = Integer.getInteger("localai.slots", 0);
+        this.slotId = slots > 0 ? nextSlot.getAndIncrement() % slots : -1;
+    }
+
+    /**
+     * Slot to pin this conversation to, or -1 when slot pinning is disabled (-Dlocalai.slots=N enables it).
+     */
+    public int getSlotId() {
+        return slotId;
+    }
+
+    public void add(Message message) {
+        add(message, defaultLabel(message.getRole()));
+    }
+
+    public synchronized void add(Message message, String label) {
+        head = append(head, message, label, null, System.currentTimeMillis(), 0, 0);
+    }
+
+    /** The label of a turn added without one: "You" for the user, "AI" for anything else. */
+    public static String defaultLabel(String role) {
+        return role.equals("user") ? "You" : "AI";
+    }
+
+    /**
+     * Adds a reply after the given turn (the head when the request was sent). The head only
+     * moves to the reply if the user hasn't switched to another branch in the meantime.
+     */
+    public synchronized void reply(Turn after, Message message, String label) {
+        reply(after, message, label, null, 0, 0);
+    }
+
+    /** The same, with the model that wrote the reply and the token usage the server reported for it. */
+    public synchronized void reply(Turn after, Message message, String label, String model,
+                                   int promptTokens, int completionTokens) {
+        Turn turn = append(after, message, label, model, System.currentTimeMillis(), promptTokens, completionTokens);
+        if (head == after) {
+            head = turn;
+        }
+    }
+
+    /**
+     * Adds a turn read back from a saved conversation after the given one (null for a first turn),
+     * without moving the head; see ConversationFile.
+     */
+    public synchronized Turn restore(Turn after, Message message, String label, String model, long timestamp,
+                                     int promptTokens, int completionTokens) {
+        return append(after == null ? root : after, message, label, model, timestamp, promptTokens, completionTokens);
+    }
+
+    public synchronized Turn getHead() {
+        return head;
+    }
+
+    public synchronized boolean isEmpty() {
+        return head == root;
+    }
+
+    /** Copy of the turns so far, safe to hand to a request thread. */
+    public synchronized List<Message> snapshot() {
+        List<Message> messages = new ArrayList<>(head.depth);
+        for (Turn turn : getTurns()) {
+            messages.add(turn.message);
+        }
+        return Collections.unmodifiableList(messages);
+    }
+
+    /** The turns of the current branch, oldest first. */
+    public synchronized List<Turn> getTurns() {
+        Turn[] turns = new Turn[head.depth];
+        for (Turn turn = head; turn != root; turn = turn.parent) {
+            turns[turn.depth - 1] = turn;
+        }
+        return List.of(turns);
+    }
+
+    /**
+     * Moves the head back to just before the given turn of the current branch, so the next
+     * message added becomes an alternative to it. The old branch stays in the tree.
+     */
+    public synchronized void fork(Turn turn) {
+        head = turn.parent;
+    }
+
+    /** Last turn of every branch, in the order the branches were created. */
+    public synchronized List<Turn> getBranchTips() {
+        List<Turn> tips = new ArrayList<>();
+        for (Turn turn : getAllTurns()) {
+            if (turn.children.isEmpty()) {
+                tips.add(turn);
+            }
+        }
+        return tips;
+    }
+
+    public synchronized void switchTo(Turn tip) {
+        head = tip;
+    }
+
+    /** The head and the other turns that answer the same message (regenerations, n>1 candidates). */
+    public synchronized List<Turn> getAlternatives() {
+        return head == root ? List.of() : List.copyOf(head.parent.children);
+    }
+
+    /** Every turn of every branch, each after the turn it follows (depth first, in creation order). */
+    public synchronized List<Turn> getAllTurns() {
+        List<Turn> turns = new ArrayList<>();
+        collectTurns(root, turns);
+        return turns;
+    }
+
+    /** Every turn (as getAllTurns) together with the head, taken at one moment. */
+    public static class TurnTree {
+        public final List<Turn> turns;
+        /** null for an empty conversation */
+        public final Turn head;
+
+        TurnTree(List<Turn> turns, Turn head) {
+            this.turns = turns;
+            this.head = head;
+        }
+    }
+
+    /** For writers running off the EDT, where replies may be added between separate calls. */
+    public synchronized TurnTree getTurnTree() {
+        return new TurnTree(getAllTurns(), head == root ? null : head);
+    }
+
+    private static Turn append(Turn after, Message message, String label, String model, long timestamp,
+                               int promptTokens, int completionTokens) {
+        Turn turn = new Turn(after, message, label, model, timestamp, promptTokens, completionTokens);
+        after.children.add(turn);
+        return turn;
+    }
+
+    // Iterative, since a long conversation is a deep tree
+    private static void collectTurns(Turn root, List<Turn> turns) {
+        java.util.ArrayDeque<Turn> pending = new java.util.ArrayDeque<>(root.children);
+        while (!pending.isEmpty()) {
+            Turn turn = pending.pollFirst();
+            turns.add(turn);
+            for (int i = turn.children.size() - 1; i >= 0; i--) {
+                pending.addFirst(turn.children.get(i));
+            }
+        }
+    }
+
+    /**
+     * Rebuilds a conversation from chat transcript text (e.g. a loaded .txt file), using the
+     * "You:"/"AI:"/provider name labels. Only used once per load, never on the send path.
+     */
+    public static Conversation fromTranscript(String chatText) {
+        TranscriptReader reader = new TranscriptReader();
+        if (chatText != null) {
+            for (String line : chatText.split("\n")) {
+                reader.addLine(line);
+            }
+        }
+        return reader.finish();
+    }
+
+    /**
+     * Builds a conversation from transcript lines as they are read, so a large file never
+     * has to be held as one String.
+     */
+    public static class TranscriptReader {
+        private final Conversation conversation = new Conversation();
+        private final Collection<ChatProvider> providers = ChatProviders.all();
+        private final StringBuilder currentMessage = new StringBuilder();
+        private String currentRole;
+        private String currentLabel;
+
+        public void addLine(String line) {
+            String potentialRole = null;
+            String label = null;
+            String contentLine = line;
+
+            if (line.startsWith("You: ")) {
+                potentialRole = "user";
+                label = "You";
+                contentLine = line.substring(5);
+            } else if (line.startsWith("AI: ")) {
+                potentialRole = "assistant";
+                label = "AI";
+                contentLine = line.substring(4);
+            } else {
+                // Online replies are labelled with the provider name (e.g., "Deepseek: ")
+                for (ChatProvider provider : providers) {
+                    String prefix = provider.getName() + ": ";
+                    if (line.startsWith(prefix)) {
+                        potentialRole = "assistant";
+                        label = provider.getName();
+                        contentLine = line.substring(prefix.length());
+                        break;
+                    }
+                }
+            }
+
+            if (potentialRole != null) {
+                if (currentRole != null && currentMessage.length() > 0) {
+                    conversation.add(new Message(currentRole, currentMessage.toString().trim()), currentLabel);
+                }
+                // Text before the first label (e.g. a ZIP entry header) doesn't belong to any turn
+                currentMessage.setLength(0);
+                currentRole = potentialRole;
+                currentLabel = label;
+                currentMessage.append(contentLine);
+            } else if (!line.trim().isEmpty()) {
+                if (currentMessage.length() > 0) {
+                    currentMessage.append("\n");
+                }
+                currentMessage.append(line);
+            }
+        }
+
+        public Conversation finish() {
+            if (currentRole != null && currentMessage.length() > 0) {
+                conversation.add(new Message(currentRole, currentMessage.toString().trim()), currentLabel);
+                currentMessage.setLength(0);
+            }
+            return conversation;
+        }
+    }
+}
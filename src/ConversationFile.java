@@ -0,0 +1,396 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Saves the whole turn tree (every branch and alternative, with roles, labels, models, timestamps
+ * and token usage), unlike the .txt and .zip transcripts, which keep only the text of the branch on
+ * screen. Attached images are not saved. Turns are written so that each comes after the turn it
+ * follows, as an index into the turns before it (-1 for a first turn).
+ *
+ * .jsonl is for other tools: a header line {"format": "slopmachine-conversation", "version": 2,
+ * "turns": n, "head": i}, then one object per turn with id, parent, role, label, model (null for
+ * user turns), time (ISO-8601), prompt_tokens, completion_tokens and content. A turn without a
+ * label gets the one the app would give it ("You" or "AI").
+ *
+ * .smc is the compact form: "SMC" and a version byte, the turn count and head index as varints,
+ * then blocks of about 64 KB of turn records, each a flag byte (1 if deflated), its raw and
+ * stored length and the bytes; a block is deflated only when that makes it smaller
+ * (-Dconversation.compress=false never does). A turn record is the parent index + 1, role, label
+ * and model ("" for none; version 1 files have no model) as string references, the time in
+ * milliseconds since the previous turn (zigzag), both token counts and the UTF-8 content with its
+ * length, all numbers as varints. A string reference
+ * is 0 followed by a new string, which then gets the next number, or that number + 1, so each
+ * role and model name is stored once. Loading is a straight read into Turns, with no parsing.
+ */
+public class ConversationFile {
+    private static final byte[] MAGIC = {'S', 'M', 'C'};
+    private static final int VERSION = 2;
+    private static final int BLOCK_BYTES = 64 * 1024;
+
+    public static boolean isStructured(String fileName) {
+        String name = fileName.toLowerCase();
+        return name.endsWith(".jsonl") || name.endsWith(".smc");
+    }
+
+    /** Writes in the format the file name asks for; progress gets 0-100, and the write stops once cancelled is true. */
+    public static void write(Conversation conversation, String fileName, OutputStream out, IntConsumer progress,
+                             BooleanSupplier cancelled) throws IOException {
+        // One snapshot: a reply added while saving must not leave the head outside the turns written
+        Conversation.TurnTree tree = conversation.getTurnTree();
+        List<Conversation.Turn> turns = tree.turns;
+        Map<Conversation.Turn, Integer> ids = new HashMap<>();
+        for (int i = 0; i < turns.size(); i++) {
+            ids.put(turns.get(i), i);
+        }
+        int head = tree.head == null ? -1 : ids.get(tree.head);
+        if (fileName.toLowerCase().endsWith(".jsonl")) {
+            writeJsonl(turns, ids, head, out, progress, cancelled);
+        } else {
+            writeBinary(turns, ids, head, out, progress, cancelled);
+        }
+    }
+
+    public static Conversation read(String fileName, InputStream in) throws IOException {
+        return fileName.toLowerCase().endsWith(".jsonl") ? readJsonl(in) : readBinary(in);
+    }
+
+    private static int parentId(Conversation.Turn turn, Map<Conversation.Turn, Integer> ids) {
+        return turn.getParent() == null ? -1 : ids.get(turn.getParent());
+    }
+
+    // --- JSONL ---
+
+    private static void writeJsonl(List<Conversation.Turn> turns, Map<Conversation.Turn, Integer> ids, int head,
+                                   OutputStream out, IntConsumer progress, BooleanSupplier cancelled) throws IOException {
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        writer.write(String.format("{\"format\": \"slopmachine-conversation\", \"version\": %d, \"turns\": %d, \"head\": %d}\n",
+                VERSION, turns.size(), head));
+        for (int i = 0; i < turns.size() && !cancelled.getAsBoolean(); i++) {
+            Conversation.Turn turn = turns.get(i);
+            String model = turn.getModel() == null ? "null" : "\"" + JsonExtractor.escape(turn.getModel()) + "\"";
+            writer.write(String.format("{\"id\": %d, \"parent\": %d, \"role\": \"%s\", \"label\": \"%s\", \"model\": %s, " +
+                            "\"time\": \"%s\", \"prompt_tokens\": %d, \"completion_tokens\": %d, \"content\": \"%s\"}\n",
+                    i, parentId(turn, ids), JsonExtractor.escape(turn.getMessage().getRole()),
+                    JsonExtractor.escape(turn.getLabel()), model, Instant.ofEpochMilli(turn.getTimestamp()),
+                    turn.getPromptTokens(), turn.getCompletionTokens(),
+                    JsonExtractor.escape(turn.getMessage().getContent())));
+            progress.accept((i + 1) * 100 / turns.size());
+        }
+        writer.flush();
+    }
+
+    private static Conversation readJsonl(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        JsonBytes header = json(reader.readLine());
+        if (header == null || !"slopmachine-conversation".equals(header.getString("format"))) {
+            throw new IOException("Not a conversation export (the first line has no \"format\")");
+        }
+        int head = requiredInt(header, "head", "The header");
+
+        Conversation conversation = new Conversation();
+        List<Conversation.Turn> turns = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            JsonBytes json = json(line);
+            if (json == null) {
+                continue;
+            }
+            String turn = "Turn " + turns.size();
+            int parent = requiredInt(json, "parent", turn);
+            if (parent >= turns.size()) {
+                throw new IOException(turn + " follows turn " + parent + ", which comes later");
+            }
+            String role = json.getString("role");
+            String content = json.getString("content");
+            if (role == null || content == null) {
+                throw new IOException(turn + " has no \"" + (role == null ? "role" : "content") + "\"");
+            }
+            String time = json.getString("time");
+            long timestamp;
+            try {
+                timestamp = time == null ? 0 : Instant.parse(time).toEpochMilli();
+            } catch (DateTimeParseException e) {
+                throw new IOException(turn + " has a malformed \"time\": " + time);
+            }
+            String label = json.getString("label");
+            turns.add(conversation.restore(parent < 0 ? null : turns.get(parent), new Message(role, content),
+                    label == null ? Conversation.defaultLabel(role) : label, json.getString("model"), timestamp,
+                    intOrZero(json, "prompt_tokens", turn), intOrZero(json, "completion_tokens", turn)));
+        }
+        return finish(conversation, turns, head);
+    }
+
+    private static JsonBytes json(String line) {
+        if (line == null || line.trim().isEmpty()) {
+            return null;
+        }
+        return new JsonBytes(ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // what names the line for the error message ("The header", "Turn 3")
+    private static int requiredInt(JsonBytes json, String key, String what) throws IOException {
+        String value = json.getString(key);
+        if (value == null) {
+            throw new IOException(what + " has no \"" + key + "\"");
+        }
+        return parseInt(value, key, what);
+    }
+
+    private static int intOrZero(JsonBytes json, String key, String what) throws IOException {
+        String value = json.getString(key);
+        return value == null ? 0 : parseInt(value, key, what);
+    }
+
+    private static int parseInt(String value, String key, String what) throws IOException {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException(what + " has a malformed \"" + key + "\": " + value);
+        }
+    }
+
+    private static Conversation finish(Conversation conversation, List<Conversation.Turn> turns, int head) throws IOException {
+        if (head >= turns.size()) {
+            throw new IOException("The head turn " + head + " is missing; the file may be cut short");
+        }
+        if (head >= 0) {
+            conversation.switchTo(turns.get(head));
+        }
+        return conversation;
+    }
+
+    // --- Binary ---
+
+    private static void writeBinary(List<Conversation.Turn> turns, Map<Conversation.Turn, Integer> ids, int head,
+                                    OutputStream out, IntConsumer progress, BooleanSupplier cancelled) throws IOException {
+        boolean compress = Boolean.parseBoolean(System.getProperty("conversation.compress", "true"));
+        out.write(MAGIC);
+        out.write(VERSION);
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        writeVarint(header, turns.size());
+        writeVarint(header, head + 1);
+        header.writeTo(out);
+
+        Map<String, Integer> strings = new HashMap<>();
+        ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_BYTES + 1024);
+        long previousTime = 0;
+        for (int i = 0; i < turns.size() && !cancelled.getAsBoolean(); i++) {
+            Conversation.Turn turn = turns.get(i);
+            writeVarint(block, parentId(turn, ids) + 1);
+            writeStringRef(block, turn.getMessage().getRole(), strings);
+            writeStringRef(block, turn.getLabel(), strings);
+            writeStringRef(block, turn.getModel() == null ? "" : turn.getModel(), strings);
+            long delta = turn.getTimestamp() - previousTime;
+            writeVarint(block, (delta << 1) ^ (delta >> 63));
+            previousTime = turn.getTimestamp();
+            writeVarint(block, turn.getPromptTokens());
+            writeVarint(block, turn.getCompletionTokens());
+            writeString(block, turn.getMessage().getContent());
+            if (block.size() >= BLOCK_BYTES) {
+                writeBlock(out, block, compress);
+            }
+            progress.accept((i + 1) * 100 / turns.size());
+        }
+        if (block.size() > 0) {
+            writeBlock(out, block, compress);
+        }
+    }
+
+    private static void writeBlock(OutputStream out, ByteArrayOutputStream block, boolean compress) throws IOException {
+        byte[] raw = block.toByteArray();
+        block.reset();
+        byte[] stored = raw;
+        int storedLength = raw.length;
+        boolean deflated = false;
+        if (compress) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            deflater.setInput(raw);
+            deflater.finish();
+            byte[] compressed = new byte[raw.length];
+            int length = deflater.deflate(compressed);
+            // Only worth it if the whole block fit and came out smaller
+            if (deflater.finished() && length < raw.length) {
+                stored = compressed;
+                storedLength = length;
+                deflated = true;
+            }
+            deflater.end();
+        }
+        ByteArrayOutputStream header = new ByteArrayOutputStream(16);
+        header.write(deflated ? 1 : 0);
+        writeVarint(header, raw.length);
+        writeVarint(header, storedLength);
+        header.writeTo(out);
+        out.write(stored, 0, storedLength);
+    }
+
+    private static Conversation readBinary(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (magic[0] != MAGIC[0] || magic[1] != MAGIC[1] || magic[2] != MAGIC[2]) {
+            throw new IOException("Not a conversation file");
+        }
+        int version = in.readUnsignedByte();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Conversation file version " + version + " is not supported");
+        }
+        int count = (int) readVarint(in);
+        int head = (int) readVarint(in) - 1;
+
+        Conversation conversation = new Conversation();
+        List<Conversation.Turn> turns = new ArrayList<>(count);
+        List<String> strings = new ArrayList<>();
+        long time = 0;
+        while (turns.size() < count) {
+            ByteBuffer block = readBlock(in);
+            if (block == null) {
+                break;
+            }
+            while (block.hasRemaining()) {
+                int parent = (int) readVarint(block) - 1;
+                if (parent >= turns.size()) {
+                    throw new IOException("Turn " + turns.size() + " follows turn " + parent + ", which comes later");
+                }
+                String role = readStringRef(block, strings);
+                String label = readStringRef(block, strings);
+                String model = version < 2 ? "" : readStringRef(block, strings);
+                long delta = readVarint(block);
+                time += (delta >>> 1) ^ -(delta & 1);
+                int promptTokens = (int) readVarint(block);
+                int completionTokens = (int) readVarint(block);
+                String content = readString(block);
+                turns.add(conversation.restore(parent < 0 ? null : turns.get(parent), new Message(role, content), label,
+                        model.isEmpty() ? null : model, time, promptTokens, completionTokens));
+            }
+        }
+        return finish(conversation, turns, head);
+    }
+
+    // Null at the end of the file
+    private static ByteBuffer readBlock(DataInputStream in) throws IOException {
+        int flags = in.read();
+        if (flags < 0) {
+            return null;
+        }
+        int rawLength = (int) readVarint(in);
+        int storedLength = (int) readVarint(in);
+        byte[] stored = new byte[storedLength];
+        in.readFully(stored);
+        if ((flags & 1) == 0) {
+            return ByteBuffer.wrap(stored);
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored);
+            byte[] raw = new byte[rawLength];
+            if (inflater.inflate(raw) != rawLength) {
+                throw new IOException("A compressed block is damaged");
+            }
+            return ByteBuffer.wrap(raw);
+        } catch (DataFormatException e) {
+            throw new IOException("A compressed block is damaged: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void writeStringRef(ByteArrayOutputStream out, String value, Map<String, Integer> strings) {
+        Integer id = strings.get(value);
+        if (id != null) {
+            writeVarint(out, id + 1);
+            return;
+        }
+        strings.put(value, strings.size());
+        writeVarint(out, 0);
+        writeString(out, value);
+    }
+
+    private static String readStringRef(ByteBuffer in, List<String> strings) throws IOException {
+        int ref = (int) readVarint(in);
+        if (ref == 0) {
+            String value = readString(in);
+            strings.add(value);
+            return value;
+        }
+        if (ref > strings.size()) {
+            throw new IOException("Unknown string reference " + ref);
+        }
+        return strings.get(ref - 1);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        int length = (int) readVarint(in);
+        if (length > in.remaining()) {
+            throw new IOException("A string runs past the end of its block");
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!in.hasRemaining()) {
+                throw new IOException("A number runs past the end of its block");
+            }
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed number");
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("The file ends in the middle of a number");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if (b < 0x80) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed number");
+    }
+}
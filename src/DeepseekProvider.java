@@ -0,0 +1,5 @@
+public class DeepseekProvider extends OpenAICompatibleProvider {
+    public DeepseekProvider() {
+        super("Deepseek", "https://api.deepseek.com/chat/completions", "deepseek-chat", "DEEPSEEK_API_KEY");
+    }
+}
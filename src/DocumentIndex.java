@@ -0,0 +1,241 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Local retrieval over reference documents and saved conversations. Documents are split into
+ * chunks, embedded in batches through LocalAI's /v1/embeddings and kept in a persistent
+ * VectorStore, so only the few chunks relevant to a prompt are sent instead of whole documents.
+ *
+ * The index lives in ~/.slopmachine/index: vectors.f32 (memory-mapped vectors) and chunks.dat
+ * (chunk text plus the source it came from). Sources already indexed are skipped on re-add.
+ *
+ * A document is embedded completely before anything is written, and its chunks are followed by
+ * a "complete" record (its source with length -1), so a failed embedding leaves nothing behind.
+ * On load, chunks after the last complete record, from a write cut off by a crash, are dropped
+ * from both files. Indexes from before complete records existed count every source as done.
+ */
+public class DocumentIndex {
+    private static final int CHUNK_CHARS = 1000;
+    private static final int BATCH_SIZE = 32;
+    private static final int COMPLETE = -1;
+
+    private static DocumentIndex instance;
+
+    private final VectorStore store;
+    private final File chunkFile;
+    private final List<String> chunks = new ArrayList<>();
+    private final Set<String> sources = new HashSet<>();
+
+    private DocumentIndex(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create index directory " + directory);
+        }
+        store = new VectorStore(new File(directory, "vectors.f32"));
+        chunkFile = new File(directory, "chunks.dat");
+
+        if (chunkFile.exists()) {
+            load();
+        }
+        store.truncate(chunks.size());
+    }
+
+    private void load() throws IOException {
+        Set<String> seen = new HashSet<>();
+        boolean marked = false;
+        long kept = 0;
+        int keptChunks = 0;
+        try (CountingInputStream counted = new CountingInputStream(new BufferedInputStream(new FileInputStream(chunkFile)));
+             DataInputStream in = new DataInputStream(counted)) {
+            while (true) {
+                String source = in.readUTF();
+                int length = in.readInt();
+                if (length == COMPLETE) {
+                    if (!marked) {
+                        // Everything before the first complete record is from an older index, or this document
+                        sources.addAll(seen);
+                        marked = true;
+                    }
+                    sources.add(source);
+                    kept = counted.getCount();
+                    keptChunks = chunks.size();
+                    continue;
+                }
+                if (chunks.size() == store.size()) {
+                    break; // a chunk without a vector
+                }
+                byte[] text = new byte[length];
+                in.readFully(text);
+                seen.add(source);
+                chunks.add(new String(text, StandardCharsets.UTF_8));
+                if (!marked) {
+                    kept = counted.getCount();
+                    keptChunks = chunks.size();
+                }
+            }
+        } catch (EOFException e) {
+            // the end, or a record cut short
+        }
+        if (!marked) {
+            sources.addAll(seen);
+        }
+        chunks.subList(keptChunks, chunks.size()).clear();
+        if (kept < chunkFile.length()) {
+            System.err.println("Dropping " + (chunkFile.length() - kept) + " bytes of unfinished chunks at the end of " + chunkFile);
+            try (RandomAccessFile out = new RandomAccessFile(chunkFile, "rw")) {
+                out.setLength(kept);
+            }
+        }
+    }
+
+    public static synchronized DocumentIndex getInstance() throws IOException {
+        if (instance == null) {
+            instance = new DocumentIndex(new File(System.getProperty("user.home"), ".slopmachine/index"));
+        }
+        return instance;
+    }
+
+    public synchronized int size() {
+        return chunks.size();
+    }
+
+    /**
+     * Chunks, embeds and stores a document. Returns the number of new chunks,
+     * or 0 if this exact file (path, size and timestamp) was indexed before.
+     */
+    public int addDocument(String baseUrl, File file) throws IOException {
+        String source = file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+        synchronized (this) {
+            if (sources.contains(source)) {
+                return 0;
+            }
+        }
+
+        // All batches first: a failure halfway must not leave the document half indexed
+        List<String> newChunks = chunk(FileLoader.readFile(file));
+        List<float[]> vectors = new ArrayList<>();
+        for (int start = 0; start < newChunks.size(); start += BATCH_SIZE) {
+            List<String> batch = newChunks.subList(start, Math.min(start + BATCH_SIZE, newChunks.size()));
+            vectors.addAll(embed(baseUrl, batch));
+        }
+        append(source, newChunks, vectors);
+        return newChunks.size();
+    }
+
+    /** The k chunks most relevant to the query, best first. */
+    public List<String> search(String baseUrl, String query, int k) throws IOException {
+        if (size() == 0) {
+            return Collections.emptyList();
+        }
+        float[] queryVector = embed(baseUrl, Collections.singletonList(query)).get(0);
+
+        List<String> results = new ArrayList<>();
+        synchronized (this) {
+            for (int id : store.search(queryVector, k)) {
+                results.add(chunks.get(id));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Returns the request messages with the retrieved chunks inserted as a system message just
+     * before the latest user turn. Earlier turns are left untouched so the cached prompt prefix still matches.
+     */
+    public static List<Message> augment(List<Message> history, List<String> retrieved) {
+        if (retrieved.isEmpty() || history.isEmpty()) {
+            return history;
+        }
+
+        StringBuilder context = new StringBuilder("Relevant excerpts from the user's documents:\n");
+        for (String chunk : retrieved) {
+            context.append("\n---\n").append(chunk);
+        }
+
+        List<Message> augmented = new ArrayList<>(history.subList(0, history.size() - 1));
+        augmented.add(new Message("system", context.toString()));
+        augmented.add(history.get(history.size() - 1));
+        return augmented;
+    }
+
+    private synchronized void append(String source, List<String> newChunks, List<float[]> vectors) throws IOException {
+        for (float[] vector : vectors) {
+            store.add(vector);
+        }
+        // Vectors hit the disk before their chunks, so a crash can only leave extra vectors (dropped on load)
+        store.flush();
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(chunkFile, true)))) {
+            for (String chunk : newChunks) {
+                byte[] text = chunk.getBytes(StandardCharsets.UTF_8);
+                out.writeUTF(source);
+                out.writeInt(text.length);
+                out.write(text);
+            }
+            out.writeUTF(source);
+            out.writeInt(COMPLETE);
+        }
+        chunks.addAll(newChunks);
+        sources.add(source);
+    }
+
+    private static List<float[]> embed(String baseUrl, List<String> inputs) throws IOException {
+        String base = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        String model = System.getProperty("rag.embeddingModel", "text-embedding-ada-002");
+
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < inputs.size(); i++) {
+            if (i > 0) input.append(",");
+            input.append('"').append(JsonExtractor.escape(inputs.get(i))).append('"');
+        }
+        String requestBody = String.format("{\"model\": \"%s\", \"input\": [%s]}", model, input);
+        String response = HttpTransport.post(base + "/v1/embeddings", requestBody, Collections.emptyMap());
+
+        String data = JsonExtractor.extractArray(response, "data");
+        if (data == null) {
+            throw new IOException("Unexpected embeddings response: " + response);
+        }
+        List<float[]> vectors = new ArrayList<>();
+        for (String entry : JsonExtractor.parseJsonArray(data)) {
+            String embedding = JsonExtractor.extractArray(entry, "embedding");
+            if (embedding == null) {
+                throw new IOException("Embeddings response entry has no vector: " + entry);
+            }
+            vectors.add(JsonExtractor.parseFloatArray(embedding));
+        }
+        if (vectors.size() != inputs.size()) {
+            throw new IOException("Asked for " + inputs.size() + " embeddings but got " + vectors.size());
+        }
+        return vectors;
+    }
+
+    // Paragraph-aligned chunks of roughly CHUNK_CHARS characters
+    private static List<String> chunk(String text) {
+        List<String> result = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        for (String paragraph : text.split("\\n\\s*\\n")) {
+            String trimmed = paragraph.trim();
+            if (trimmed.isEmpty()) continue;
+
+            if (current.length() > 0 && current.length() + trimmed.length() > CHUNK_CHARS) {
+                result.add(current.toString());
+                current.setLength(0);
+            }
+            // Hard-split paragraphs that are too long on their own
+            while (trimmed.length() > CHUNK_CHARS) {
+                result.add(trimmed.substring(0, CHUNK_CHARS));
+                trimmed = trimmed.substring(CHUNK_CHARS);
+            }
+            if (current.length() > 0) current.append("\n\n");
+            current.append(trimmed);
+        }
+        if (current.length() > 0) {
+            result.add(current.toString());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,301 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.WeakHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Runs a small llama2.c checkpoint inside the client, for when no LocalAI host is reachable.
+ * Select it by putting embedded:/path/model.bin in the endpoint field; the tokenizer is
+ * tokenizer.bin next to the model (or -Dembedded.tokenizer=path). Replies come back in the same
+ * OpenAI JSON as LocalAI's, so the rest of the client can't tell the difference.
+ *
+ * Chat turns are laid out in the Llama 2 chat format ([INST] ... [/INST]); with
+ * -Dembedded.template=plain the messages are simply joined, which suits story models. Like
+ * llama.cpp's cache_prompt, the tokens already in the KV cache are not evaluated again when the
+ * next prompt starts with them. -Dembedded.threads=N sets the cores used (default all),
+ * -Dembedded.seed=N makes sampling repeatable. Tools are not supported.
+ */
+public class EmbeddedBackend implements ChatBackend {
+    private final File checkpoint;
+    private final String modelName;
+    private Llama2Model model;
+    private Llama2Tokenizer tokenizer;
+    private final Random random = new Random(Long.getLong("embedded.seed", System.nanoTime()));
+
+    // Tokens whose keys and values are in the model's cache, in order
+    private final List<Integer> cachedTokens = new ArrayList<>();
+    // Each message is tokenized once; messages are immutable and shared between requests
+    private final Map<Message, List<Integer>> encodedMessages = Collections.synchronizedMap(new WeakHashMap<>());
+
+    EmbeddedBackend(String path) {
+        this.checkpoint = new File(path);
+        String name = checkpoint.getName();
+        this.modelName = name.contains(".") ? name.substring(0, name.lastIndexOf('.')) : name;
+    }
+
+    private synchronized void load() throws IOException {
+        if (model != null) {
+            return;
+        }
+        if (!checkpoint.isFile()) {
+            throw new IOException("No model file at " + checkpoint);
+        }
+        String tokenizerPath = System.getProperty("embedded.tokenizer");
+        File tokenizerFile = tokenizerPath != null ? new File(tokenizerPath) : new File(checkpoint.getParentFile(), "tokenizer.bin");
+        long start = System.nanoTime();
+        Llama2Model loaded = new Llama2Model(checkpoint,
+                Integer.getInteger("embedded.threads", Runtime.getRuntime().availableProcessors()));
+        tokenizer = new Llama2Tokenizer(tokenizerFile, loaded.vocabSize);
+        model = loaded;
+        System.out.println(String.format("Embedded model %s: dim %d, %d layers, %d heads, context %d, %d threads, mapped in %d ms",
+                modelName, model.dim, model.layers, model.heads, model.seqLen, model.getThreads(),
+                (System.nanoTime() - start) / 1_000_000));
+    }
+
+    @Override
+    public String getAvailableModels() throws IOException {
+        load();
+        return "{\"object\":\"list\",\"data\":[{\"id\":\"" + JsonExtractor.escape(modelName) + "\",\"object\":\"model\"}]}";
+    }
+
+    @Override
+    public ResponseBody sendChatRequestWithHistory(String model, List<Message> messages, int slotId,
+                                                   int candidates, String tools) throws IOException {
+        StringBuilder choices = new StringBuilder();
+        int promptTokens = 0;
+        int completionTokens = 0;
+        for (int i = 0; i < Math.max(1, candidates); i++) {
+            Generation generation = generate(model, messages, null, null);
+            if (i > 0) choices.append(", ");
+            choices.append(String.format("{\"index\": %d, \"message\": {\"role\": \"assistant\", \"content\": \"%s\"}, " +
+                    "\"finish_reason\": \"%s\"}", i, JsonExtractor.escape(generation.text), generation.finishReason));
+            promptTokens = generation.promptTokens;
+            completionTokens += generation.completionTokens;
+        }
+        String json = String.format("{\"object\": \"chat.completion\", \"model\": \"%s\", \"choices\": [%s], " +
+                        "\"usage\": {\"prompt_tokens\": %d, \"completion_tokens\": %d, \"total_tokens\": %d}}",
+                JsonExtractor.escape(modelName), choices, promptTokens, completionTokens, promptTokens + completionTokens);
+        UsageLedger.record(model, promptTokens, completionTokens);
+        return ResponseBody.read(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    public String streamChatRequestWithHistory(String model, List<Message> messages, int slotId,
+                                               HttpTransport.CancelHandle cancel, Consumer<String> onDelta) throws IOException {
+        StringBuilder raw = new StringBuilder();
+        Generation generation = generate(model, messages, cancel, delta -> {
+            raw.append(String.format("{\"object\":\"chat.completion.chunk\",\"choices\":[{\"index\":0,\"delta\":{\"content\":\"%s\"},\"finish_reason\":null}]}",
+                    JsonExtractor.escape(delta))).append('\n');
+            onDelta.accept(delta);
+        });
+        raw.append("{\"object\":\"chat.completion.chunk\",\"choices\":[{\"index\":0,\"delta\":{},\"finish_reason\":\"")
+                .append(generation.finishReason).append("\"}]}\n");
+        UsageLedger.record(model, generation.promptTokens, generation.completionTokens);
+        return raw.toString();
+    }
+
+    private static class Generation {
+        String text;
+        String finishReason;
+        int promptTokens;
+        int completionTokens;
+    }
+
+    // One reply; requests take turns, as there is one KV cache
+    private synchronized Generation generate(String requestedModel, List<Message> history,
+                                             HttpTransport.CancelHandle cancel, Consumer<String> onDelta) throws IOException {
+        load();
+        ModelProfile profile = ModelProfile.forModel(requestedModel);
+        int maxTokens = profile.getMaxTokens(256);
+        List<Message> messages = new ArrayList<>(profile.fit(history, maxTokens));
+        List<Integer> prompt = encodePrompt(messages);
+        // The real context length is known here, so the oldest turns are dropped by actual token count
+        int budget = model.seqLen - Math.min(maxTokens, model.seqLen / 2);
+        while (prompt.size() > budget && dropOldestTurn(messages)) {
+            prompt = encodePrompt(messages);
+        }
+        if (prompt.size() >= model.seqLen) {
+            throw new IOException("The prompt is " + prompt.size() + " tokens but " + modelName + " only has a context of "
+                    + model.seqLen);
+        }
+        double temperature = profile.getTemperature(0.7);
+        Double topP = profile.getTopP();
+
+        // Reuse the cached prefix; the last prompt token is always evaluated, for its logits
+        int reused = 0;
+        while (reused < cachedTokens.size() && reused < prompt.size() - 1 && cachedTokens.get(reused).equals(prompt.get(reused))) {
+            reused++;
+        }
+        cachedTokens.subList(reused, cachedTokens.size()).clear();
+
+        long start = System.nanoTime();
+        float[] logits = null;
+        for (int pos = reused; pos < prompt.size(); pos++) {
+            logits = model.forward(prompt.get(pos), pos);
+            cachedTokens.add(prompt.get(pos));
+        }
+        long promptDone = System.nanoTime();
+
+        Generation generation = new Generation();
+        generation.promptTokens = prompt.size();
+        generation.finishReason = "length";
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        String emitted = "";
+        int previous = prompt.get(prompt.size() - 1);
+        int pos = prompt.size();
+        while (generation.completionTokens < maxTokens && pos < model.seqLen) {
+            if (cancel != null && cancel.isCancelled()) {
+                throw new IOException("Request cancelled");
+            }
+            int next = sample(logits, temperature, topP);
+            if (next == Llama2Tokenizer.EOS || next == Llama2Tokenizer.BOS) {
+                generation.finishReason = "stop";
+                break;
+            }
+            tokenizer.decode(previous, next, bytes);
+            generation.completionTokens++;
+
+            // Only whole characters are passed on; a multi-byte one may span tokens
+            String text = bytes.toString(StandardCharsets.UTF_8);
+            if (onDelta != null && !text.endsWith("�") && text.length() > emitted.length()) {
+                onDelta.accept(text.substring(emitted.length()));
+                emitted = text;
+            }
+
+            logits = model.forward(next, pos);
+            cachedTokens.add(next);
+            previous = next;
+            pos++;
+        }
+        generation.text = bytes.toString(StandardCharsets.UTF_8);
+        if (onDelta != null && generation.text.length() > emitted.length()) {
+            onDelta.accept(generation.text.substring(emitted.length()));
+        }
+
+        long end = System.nanoTime();
+        System.out.println(String.format("Embedded %s: %d prompt tokens (%d cached) in %d ms, %d tokens at %.1f tokens/s",
+                modelName, prompt.size(), reused, (promptDone - start) / 1_000_000, generation.completionTokens,
+                generation.completionTokens / Math.max(1e-9, (end - promptDone) / 1e9)));
+        return generation;
+    }
+
+    // Llama 2 chat layout: each exchange is <s>[INST] user [/INST] reply</s>, the system prompt
+    // wrapped into the first user turn
+    private List<Integer> encodePrompt(List<Message> messages) {
+        List<Integer> tokens = new ArrayList<>();
+        if ("plain".equals(System.getProperty("embedded.template"))) {
+            StringBuilder text = new StringBuilder();
+            for (Message message : messages) {
+                if (text.length() > 0) text.append('\n');
+                text.append(message.getContent());
+            }
+            return tokenizer.encode(text.toString(), true, false);
+        }
+
+        String system = null;
+        for (int i = 0; i < messages.size(); i++) {
+            Message message = messages.get(i);
+            switch (message.getRole()) {
+                case "system":
+                    system = system == null ? message.getContent() : system + "\n" + message.getContent();
+                    break;
+                case "user":
+                    String text = system == null ? message.getContent()
+                            : "<<SYS>>\n" + system + "\n<</SYS>>\n\n" + message.getContent();
+                    tokens.add(Llama2Tokenizer.BOS);
+                    tokens.addAll(system == null ? encode(message, "[INST] " + text + " [/INST]")
+                            : tokenizer.encode("[INST] " + text + " [/INST]", false, false));
+                    system = null;
+                    break;
+                default:
+                    tokens.addAll(encode(message, message.getContent()));
+                    // A final assistant message is left open, so the model carries on with it
+                    if (i < messages.size() - 1) {
+                        tokens.add(Llama2Tokenizer.EOS);
+                    }
+            }
+        }
+        return tokens;
+    }
+
+    // Removes the oldest non-system message, and any replies up to the next user turn
+    private static boolean dropOldestTurn(List<Message> messages) {
+        int first = 0;
+        while (first < messages.size() && messages.get(first).getRole().equals("system")) {
+            first++;
+        }
+        if (messages.size() - first <= 1) {
+            return false;
+        }
+        messages.remove(first);
+        while (messages.size() - first > 1 && !messages.get(first).getRole().equals("user")) {
+            messages.remove(first);
+        }
+        return true;
+    }
+
+    private List<Integer> encode(Message message, String text) {
+        return encodedMessages.computeIfAbsent(message, m -> tokenizer.encode(text, false, false));
+    }
+
+    // Greedy at temperature 0, otherwise sampled from the softmax, cut to top_p when it is set
+    private int sample(float[] logits, double temperature, Double topP) {
+        if (temperature <= 0) {
+            int best = 0;
+            for (int i = 1; i < logits.length; i++) {
+                if (logits[i] > logits[best]) best = i;
+            }
+            return best;
+        }
+
+        float max = Float.NEGATIVE_INFINITY;
+        for (float logit : logits) max = Math.max(max, logit);
+        double[] probs = new double[logits.length];
+        double sum = 0;
+        for (int i = 0; i < logits.length; i++) {
+            probs[i] = Math.exp((logits[i] - max) / temperature);
+            sum += probs[i];
+        }
+
+        if (topP == null || topP <= 0 || topP >= 1) {
+            double r = random.nextDouble() * sum;
+            for (int i = 0; i < probs.length; i++) {
+                r -= probs[i];
+                if (r <= 0) return i;
+            }
+            return probs.length - 1;
+        }
+
+        // Nucleus: the most likely tokens until their mass reaches top_p. As in run.c, tokens below
+        // (1 - top_p) / (n - 1) can never be part of it, which leaves only a few to sort
+        double floor = (1 - topP) / (probs.length - 1) * sum;
+        List<Integer> candidates = new ArrayList<>();
+        for (int i = 0; i < probs.length; i++) {
+            if (probs[i] >= floor) candidates.add(i);
+        }
+        Integer[] order = candidates.toArray(new Integer[0]);
+        Arrays.sort(order, (a, b) -> Double.compare(probs[b], probs[a]));
+        double cutoff = topP * sum;
+        double mass = 0;
+        int last = 0;
+        for (; last < order.length - 1; last++) {
+            mass += probs[order[last]];
+            if (mass >= cutoff) break;
+        }
+        double r = random.nextDouble() * mass;
+        for (int i = 0; i <= last; i++) {
+            r -= probs[order[i]];
+            if (r <= 0) return order[i];
+        }
+        return order[last];
+    }
+}
@@ -0,0 +1,14 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The background thread that conversation saves and loads run on, one at a time, so the
+ * window never waits on the disk.
+ */
+public class FileIO {
+    public static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "file-io");
+        thread.setDaemon(true);
+        return thread;
+    });
+}
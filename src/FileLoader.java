@@ -1,44 +1,164 @@
 import javax.swing.*;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 public class FileLoader {
 
-    public static String loadFile(JFrame parent) {
+    /**
+     * Lets the user pick a .txt or .zip conversation and loads it on the file I/O thread.
+     * The text arrives through onText in chunks as it is read, with a cancellable progress
+     * dialog for large files. onLoaded gets the rebuilt conversation at the end, or null if
+     * loading failed or was cancelled. A .smc or .jsonl file is read straight into turns
+     * (see ConversationFile), and onText isn't called for it.
+     */
+    public static void loadFile(JFrame parent, Consumer<String> onText, Consumer<Conversation> onLoaded,
+                                Consumer<String> onStatus) {
         JFileChooser fileChooser = new JFileChooser();
 
         // Set file filter for TXT and ZIP files
         fileChooser.setFileFilter(new javax.swing.filechooser.FileNameExtensionFilter(
-                "Text and ZIP files (*.txt, *.zip)", "txt", "zip"));
+                "Conversations (*.txt, *.zip, *.smc, *.jsonl)", "txt", "zip", "smc", "jsonl"));
 
         int result = fileChooser.showOpenDialog(parent);
         if (result == JFileChooser.APPROVE_OPTION) {
             File selectedFile = fileChooser.getSelectedFile();
             String fileName = selectedFile.getName().toLowerCase();
 
-            try {
-                if (fileName.endsWith(".zip")) {
-                    return loadFromZip(selectedFile);
-                } else if (fileName.endsWith(".txt")) {
-                    return loadFromText(selectedFile);
+            if (!fileName.endsWith(".zip") && !fileName.endsWith(".txt") && !ConversationFile.isStructured(fileName)) {
+                JOptionPane.showMessageDialog(parent,
+                        "Unsupported file type. Please select a .txt, .zip, .smc or .jsonl file.",
+                        "Unsupported Format",
+                        JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            FileIO.EXECUTOR.execute(new LoadWorker(parent, selectedFile, onText, onLoaded, onStatus));
+        }
+    }
+
+    private static class LoadWorker extends SwingWorker<Conversation, String> {
+        private static final int CHUNK_CHARS = 64 * 1024;
+
+        private final JFrame parent;
+        private final File file;
+        private final Consumer<String> onText;
+        private final Consumer<Conversation> onLoaded;
+        private final Consumer<String> onStatus;
+        private final Conversation.TranscriptReader transcript = new Conversation.TranscriptReader();
+        private final StringBuilder pending = new StringBuilder();
+
+        LoadWorker(JFrame parent, File file, Consumer<String> onText, Consumer<Conversation> onLoaded,
+                   Consumer<String> onStatus) {
+            this.parent = parent;
+            this.file = file;
+            this.onText = onText;
+            this.onLoaded = onLoaded;
+            this.onStatus = onStatus;
+        }
+
+        @Override
+        protected Conversation doInBackground() throws IOException {
+            // Shows a progress dialog with a Cancel button once loading takes a moment;
+            // cancelling makes the next read throw InterruptedIOException
+            ProgressMonitorInputStream progress = new ProgressMonitorInputStream(parent,
+                    "Loading " + file.getName(), new FileInputStream(file));
+            progress.getProgressMonitor().setMillisToDecideToPopup(200);
+
+            try (InputStream in = new BufferedInputStream(progress)) {
+                if (ConversationFile.isStructured(file.getName())) {
+                    return ConversationFile.read(file.getName(), in);
+                }
+                if (file.getName().toLowerCase().endsWith(".zip")) {
+                    readZip(new ZipInputStream(in));
                 } else {
-                    JOptionPane.showMessageDialog(parent,
-                            "Unsupported file type. Please select a .txt or .zip file.",
-                            "Unsupported Format",
-                            JOptionPane.ERROR_MESSAGE);
-                    return null;
+                    readLines(new BufferedReader(new InputStreamReader(in)));
+                }
+            }
+            flush();
+            return transcript.finish();
+        }
+
+        private void readZip(ZipInputStream zis) throws IOException {
+            boolean foundTextFile = false;
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                String entryName = entry.getName().toLowerCase();
+
+                // Look for text files in the zip
+                if (entryName.endsWith(".txt") && !entry.isDirectory()) {
+                    foundTextFile = true;
+                    addLine("=== File: " + entryName + " ===");
+                    readLines(new BufferedReader(new InputStreamReader(zis, StandardCharsets.UTF_8)));
+                    addLine("");
+                }
+            }
+            if (!foundTextFile) {
+                throw new IOException("No text files found in the ZIP archive");
+            }
+        }
+
+        // Doesn't close the reader: for a ZIP entry that would close the whole archive
+        private void readLines(BufferedReader reader) throws IOException {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                addLine(line);
+            }
+        }
+
+        private void addLine(String line) {
+            transcript.addLine(line);
+            pending.append(line).append("\n");
+            if (pending.length() >= CHUNK_CHARS) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            if (pending.length() > 0) {
+                publish(pending.toString());
+                pending.setLength(0);
+            }
+        }
+
+        @Override
+        protected void process(List<String> chunks) {
+            for (String chunk : chunks) {
+                onText.accept(chunk);
+            }
+        }
+
+        @Override
+        protected void done() {
+            try {
+                Conversation conversation = get();
+                onLoaded.accept(conversation);
+                onStatus.accept("Loaded " + file.getName() + " (" + file.length() / 1024 + " KB)");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                onLoaded.accept(null);
+                if (e.getCause() instanceof InterruptedIOException) {
+                    onStatus.accept("Loading " + file.getName() + " was cancelled");
+                    return;
                 }
-            } catch (IOException ex) {
                 JOptionPane.showMessageDialog(parent,
-                        "Error loading file: " + ex.getMessage(),
+                        "Error loading file: " + e.getCause().getMessage(),
                         "Load Error",
                         JOptionPane.ERROR_MESSAGE);
-                return null;
             }
         }
-        return null;
+    }
+
+    // Reads a .zip (all text entries) or any other file as plain text, without dialogs
+    public static String readFile(File file) throws IOException {
+        if (file.getName().toLowerCase().endsWith(".zip")) {
+            return loadFromZip(file);
+        }
+        return loadFromText(file);
     }
 
     private static String loadFromText(File file) throws IOException {
@@ -1,20 +1,32 @@
-
-
     import javax.swing.*;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
     public class FileSaver {
+        private static final int CHUNK_CHARS = 256 * 1024;
 
-        public static boolean saveConversation(JFrame parent, String conversation) {
+        /**
+         * Lets the user pick a file, then writes the conversation on the file I/O thread with a
+         * cancellable progress dialog. The file is written next to the target and moved into place
+         * at the end, so a cancelled or failed save never leaves a half-written conversation behind.
+         * .txt and .zip get the chat text; .jsonl and .smc the turn tree itself (see ConversationFile).
+         * onSaved runs on the EDT once the file is complete.
+         */
+        public static void saveConversation(JFrame parent, String conversation, Conversation turns,
+                                            Consumer<String> onStatus, Runnable onSaved) {
             if (conversation == null || conversation.trim().isEmpty()) {
                 JOptionPane.showMessageDialog(parent,
                         "No conversation to save!",
                         "Save Error",
                         JOptionPane.WARNING_MESSAGE);
-                return false;
+                return;
             }
 
             JFileChooser fileChooser = new JFileChooser();
@@ -22,6 +34,8 @@ import java.util.zip.ZipOutputStream;
             // Set file filter for TXT and ZIP files
             fileChooser.setFileFilter(new javax.swing.filechooser.FileNameExtensionFilter(
                     "Text and ZIP files (*.txt, *.zip)", "txt", "zip"));
+            fileChooser.addChoosableFileFilter(new javax.swing.filechooser.FileNameExtensionFilter(
+                    "Conversation with all branches (*.smc, *.jsonl)", "smc", "jsonl"));
 
             int result = fileChooser.showSaveDialog(parent);
             if (result == JFileChooser.APPROVE_OPTION) {
@@ -29,65 +43,132 @@ import java.util.zip.ZipOutputStream;
                 String fileName = selectedFile.getName().toLowerCase();
 
                 // Ensure proper extension
-                if (!fileName.endsWith(".txt") && !fileName.endsWith(".zip")) {
+                if (!fileName.endsWith(".txt") && !fileName.endsWith(".zip") && !ConversationFile.isStructured(fileName)) {
                     // Get the selected filter to determine which extension to use
                     javax.swing.filechooser.FileFilter filter = fileChooser.getFileFilter();
-                    if (filter.getDescription().contains("*.txt")) {
+                    if (filter.getDescription().contains("*.smc")) {
+                        selectedFile = new File(selectedFile.getParentFile(), selectedFile.getName() + ".smc");
+                    } else if (filter.getDescription().contains("*.txt")) {
                         selectedFile = new File(selectedFile.getParentFile(), selectedFile.getName() + ".txt");
                     } else {
                         selectedFile = new File(selectedFile.getParentFile(), selectedFile.getName() + ".zip");
                     }
                 }
 
+                SaveWorker worker = new SaveWorker(parent, selectedFile, conversation, turns, onStatus, onSaved);
+                FileIO.EXECUTOR.execute(worker);
+            }
+        }
+
+        private static class SaveWorker extends SwingWorker<String, Void> {
+            private final JFrame parent;
+            private final File file;
+            private final String conversation;
+            private final Conversation turns;
+            private final Consumer<String> onStatus;
+            private final Runnable onSaved;
+            private final ProgressMonitor monitor;
+
+            SaveWorker(JFrame parent, File file, String conversation, Conversation turns, Consumer<String> onStatus,
+                       Runnable onSaved) {
+                this.parent = parent;
+                this.file = file;
+                this.conversation = conversation;
+                this.turns = turns;
+                this.onStatus = onStatus;
+                this.onSaved = onSaved;
+                this.monitor = new ProgressMonitor(parent, "Saving " + file.getName(), null, 0, 100);
+                monitor.setMillisToDecideToPopup(200);
+                addPropertyChangeListener(event -> {
+                    if ("progress".equals(event.getPropertyName())) {
+                        monitor.setProgress((Integer) event.getNewValue());
+                        if (monitor.isCanceled()) {
+                            cancel(false);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            protected String doInBackground() throws IOException {
+                File partFile = new File(file.getPath() + ".part");
+                String description;
+                boolean complete = false;
                 try {
-                    if (selectedFile.getName().toLowerCase().endsWith(".zip")) {
-                        return saveAsZip(selectedFile, conversation);
+                    if (ConversationFile.isStructured(file.getName())) {
+                        description = saveStructured(partFile);
+                    } else if (file.getName().toLowerCase().endsWith(".zip")) {
+                        description = saveAsZip(partFile);
                     } else {
-                        return saveAsText(selectedFile, conversation);
+                        description = saveAsText(partFile);
+                    }
+                    if (isCancelled()) {
+                        return null;
+                    }
+                    Files.move(partFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    complete = true;
+                } finally {
+                    if (!complete) {
+                        partFile.delete();
                     }
-                } catch (IOException ex) {
-                    JOptionPane.showMessageDialog(parent,
-                            "Error saving file: " + ex.getMessage(),
-                            "Save Error",
-                            JOptionPane.ERROR_MESSAGE);
-                    return false;
                 }
+                return description;
             }
-            return false;
-        }
 
-        private static boolean saveAsText(File file, String conversation) throws IOException {
-            try (FileWriter writer = new FileWriter(file)) {
-                writer.write(conversation);
-                JOptionPane.showMessageDialog(null,
-                        "Conversation saved as text file successfully!",
-                        "Save Complete",
-                        JOptionPane.INFORMATION_MESSAGE);
-                return true;
+            private String saveAsText(File partFile) throws IOException {
+                try (Writer writer = new BufferedWriter(new FileWriter(partFile))) {
+                    write(writer);
+                }
+                return "Conversation saved as text file " + file.getName();
             }
-        }
 
-        private static boolean saveAsZip(File file, String conversation) throws IOException {
-            try (FileOutputStream fos = new FileOutputStream(file);
-                 ZipOutputStream zos = new ZipOutputStream(fos)) {
+            private String saveStructured(File partFile) throws IOException {
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(partFile))) {
+                    ConversationFile.write(turns, file.getName(), out, this::setProgress, this::isCancelled);
+                }
+                return "Conversation saved with all branches as " + file.getName();
+            }
 
+            private String saveAsZip(File partFile) throws IOException {
                 // Create a text file inside the zip
                 String txtFileName = "conversation_" + System.currentTimeMillis() + ".txt";
-                ZipEntry entry = new ZipEntry(txtFileName);
-                zos.putNextEntry(entry);
-
-                // Write the conversation to the zip entry
-                byte[] data = conversation.getBytes(StandardCharsets.UTF_8);
-                zos.write(data, 0, data.length);
-                zos.closeEntry();
-
-                JOptionPane.showMessageDialog(null,
-                        "Conversation saved as ZIP file successfully!\n" +
-                                "File inside: " + txtFileName,
-                        "Save Complete",
-                        JOptionPane.INFORMATION_MESSAGE);
-                return true;
+                try (ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(partFile)))) {
+                    zos.putNextEntry(new ZipEntry(txtFileName));
+
+                    // Write the conversation to the zip entry (not closed here: that would close the zip)
+                    Writer writer = new OutputStreamWriter(zos, StandardCharsets.UTF_8);
+                    write(writer);
+                    writer.flush();
+                    zos.closeEntry();
+                }
+                return "Conversation saved as ZIP file " + file.getName() + " (file inside: " + txtFileName + ")";
+            }
+
+            // Writes in chunks so progress can be shown and a cancel takes effect quickly
+            private void write(Writer writer) throws IOException {
+                int length = conversation.length();
+                for (int offset = 0; offset < length && !isCancelled(); offset += CHUNK_CHARS) {
+                    writer.write(conversation, offset, Math.min(CHUNK_CHARS, length - offset));
+                    setProgress((int) ((offset + Math.min(CHUNK_CHARS, length - offset)) * 100L / length));
+                }
+            }
+
+            @Override
+            protected void done() {
+                monitor.close();
+                try {
+                    onStatus.accept(get());
+                    onSaved.run();
+                } catch (CancellationException e) {
+                    onStatus.accept("Saving " + file.getName() + " was cancelled");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    JOptionPane.showMessageDialog(parent,
+                            "Error saving file: " + e.getCause().getMessage(),
+                            "Save Error",
+                            JOptionPane.ERROR_MESSAGE);
+                }
             }
         }
     }
-
@@ -0,0 +1,121 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Google Gemini generateContent API. The key travels in the query string, assistant turns
+ * use the "model" role and system messages become the systemInstruction.
+ */
+public class GeminiProvider implements ChatProvider {
+    private static final String BASE_URL = "https://generativelanguage.googleapis.com/v1beta/models/";
+
+    @Override
+    public String getName() {
+        return "Gemini";
+    }
+
+    // Overridable with Gemini.model in the model profiles
+    @Override
+    public String getModel() {
+        return ModelProfile.forModel(getName()).getModel("gemini-2.5-flash");
+    }
+
+    @Override
+    public String getEndpoint(boolean stream) throws IOException {
+        String apiKey = System.getenv("GEMINI_API_KEY");
+        if (apiKey == null || apiKey.isEmpty()) {
+            throw new IOException("GEMINI_API_KEY environment variable is not set. Cannot connect to Gemini.");
+        }
+        String baseUrl = System.getProperty("provider.gemini.endpoint", ModelProfile.forModel(getName()).getEndpoint(BASE_URL));
+        return baseUrl + getModel() + (stream ? ":streamGenerateContent?alt=sse&key=" : ":generateContent?key=") + apiKey;
+    }
+
+    @Override
+    public Map<String, String> getHeaders() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public String encodeRequest(List<Message> history, boolean stream) {
+        return encodeRequestBody(history, stream).toString();
+    }
+
+    // Images become inline_data parts next to the text
+    @Override
+    public RequestBody encodeRequestBody(List<Message> history, boolean stream) {
+        ModelProfile profile = ModelProfile.forModel(getName());
+        int maxTokens = profile.getMaxTokens(0);
+        List<Message> messages = profile.fit(history, maxTokens);
+
+        StringBuilder systemText = new StringBuilder();
+        for (Message message : messages) {
+            if (message.getRole().equals("system")) {
+                if (systemText.length() > 0) systemText.append("\n\n");
+                systemText.append(message.getContent());
+            }
+        }
+
+        RequestBody body = new RequestBody().append("{");
+        if (systemText.length() > 0) {
+            body.append(String.format("\"systemInstruction\": {\"parts\": [{\"text\": \"%s\"}]}, ",
+                    JsonExtractor.escape(systemText.toString())));
+        }
+        body.append("\"contents\": [");
+        boolean first = true;
+        for (Message message : messages) {
+            if (message.getRole().equals("system")) {
+                continue;
+            }
+            if (!first) body.append(",");
+            first = false;
+            String role = message.getRole().equals("assistant") ? "model" : "user";
+            body.append(String.format("{\"role\": \"%s\", \"parts\": [{\"text\": \"%s\"}",
+                    role, JsonExtractor.escape(message.getContent())));
+            for (ImageAttachment image : message.getImages()) {
+                body.append(", {\"inline_data\": {\"mime_type\": \"" + image.getMimeType() + "\", \"data\": \"");
+                body.appendBase64(image);
+                body.append("\"}}");
+            }
+            body.append("]}");
+        }
+        return body.append("]" + generationConfig(profile, messages, maxTokens) + "}");
+    }
+
+    // The profile's settings under Gemini's names, or nothing so the API defaults apply
+    private static String generationConfig(ModelProfile profile, List<Message> messages, int maxTokens) {
+        StringBuilder config = new StringBuilder();
+        if (maxTokens > 0) {
+            config.append(", \"maxOutputTokens\": ").append(profile.fitMaxTokens(messages, maxTokens));
+        }
+        Double temperature = profile.getTemperature(null);
+        if (temperature != null) {
+            config.append(", \"temperature\": ").append(temperature);
+        }
+        if (profile.getTopP() != null) {
+            config.append(", \"topP\": ").append(profile.getTopP());
+        }
+        if (profile.getTopK() > 0) {
+            config.append(", \"topK\": ").append(profile.getTopK());
+        }
+        if (!profile.getStop().isEmpty()) {
+            config.append(", \"stopSequences\": ").append(ModelProfile.toJsonArray(profile.getStop()));
+        }
+        return config.length() == 0 ? "" : ", \"generationConfig\": {" + config.substring(2) + "}";
+    }
+
+    // Google sends <, > and & as unicode escapes, which the structural parser decodes
+    @Override
+    public String decodeResponse(String json) {
+        return new JsonBytes(ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8)))
+                .getString("candidates", "0", "content", "parts", "0", "text");
+    }
+
+    @Override
+    public String decodeStreamEvent(String data) {
+        // Each SSE event is a complete GenerateContentResponse holding just the new text
+        return decodeResponse(data);
+    }
+}
@@ -0,0 +1,205 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Latency-SLO mode for local requests. The turn goes to the local model first; if no token has
+ * arrived within the deadline (or the local request fails), the same history is also sent to a
+ * fallback, either another LocalAI host or one of the online providers. Whichever path produces
+ * the first token serves the turn; the other one is cancelled.
+ *
+ * Enabled with -Dhedge.deadlineMs=N plus -Dhedge.fallback=http://other-host:8080 (optionally
+ * -Dhedge.fallbackModel=NAME, default: the same model) or -Dhedge.fallback=Deepseek|Gemini|ChatGPT.
+ */
+public class HedgedRequest {
+    private static final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "hedged-request");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** One way of serving a turn: streams deltas and returns the raw response. */
+    public interface Path {
+        String getLabel();
+
+        /** The model that writes the reply, kept with the turn. */
+        String getModel();
+
+        String stream(List<Message> messages, HttpTransport.CancelHandle cancel, Consumer<String> onDelta) throws IOException;
+    }
+
+    /** Outcome of a hedged turn: who served it and what they sent. */
+    public static class Result {
+        public final Path servedBy;
+        public final boolean usedFallback;
+        public final String raw;
+        public final String content;
+
+        Result(Path servedBy, boolean usedFallback, String raw, String content) {
+            this.servedBy = servedBy;
+            this.usedFallback = usedFallback;
+            this.raw = raw;
+            this.content = content;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return Long.getLong("hedge.deadlineMs", 0L) > 0 && !System.getProperty("hedge.fallback", "").isEmpty();
+    }
+
+    public static Path localPath(String label, String baseUrl, String model, int slotId) {
+        ChatBackend client = ChatBackends.forEndpoint(baseUrl);
+        return new Path() {
+            @Override
+            public String getLabel() {
+                return label;
+            }
+
+            @Override
+            public String getModel() {
+                return model;
+            }
+
+            @Override
+            public String stream(List<Message> messages, HttpTransport.CancelHandle cancel, Consumer<String> onDelta) throws IOException {
+                return client.streamChatRequestWithHistory(model, messages, slotId, cancel, onDelta);
+            }
+        };
+    }
+
+    /** The fallback configured through system properties, for a turn on the given local model. */
+    public static Path configuredFallback(String localModel) throws IOException {
+        String fallback = System.getProperty("hedge.fallback", "");
+        if (fallback.startsWith("http://") || fallback.startsWith("https://")) {
+            return localPath("AI", fallback, System.getProperty("hedge.fallbackModel", localModel), -1);
+        }
+
+        ChatProvider provider = ChatProviders.get(fallback);
+        if (provider == null) {
+            throw new IOException("Unknown hedge fallback: " + fallback);
+        }
+        return new Path() {
+            @Override
+            public String getLabel() {
+                return provider.getName();
+            }
+
+            @Override
+            public String getModel() {
+                return provider.getName();
+            }
+
+            @Override
+            public String stream(List<Message> messages, HttpTransport.CancelHandle cancel, Consumer<String> onDelta) throws IOException {
+                return provider.streamChat(messages, cancel, onDelta);
+            }
+        };
+    }
+
+    /**
+     * Runs the turn. onStart is called once with the winning path before its first delta,
+     * then onDelta receives only the winner's text.
+     */
+    public static Result run(Path primary, Path fallback, long deadlineMillis, List<Message> messages,
+                             Consumer<Path> onStart, Consumer<String> onDelta) throws IOException {
+        CompletableFuture<Attempt> won = new CompletableFuture<>();
+        Attempt first = new Attempt(primary, messages, onStart, onDelta, won);
+        Attempt second = new Attempt(fallback, messages, onStart, onDelta, won);
+        first.other = second;
+        second.other = first;
+
+        executor.execute(first);
+        try {
+            // Wait for the local first token (or its end) up to the deadline, then hedge
+            first.firstEvent.await(deadlineMillis, TimeUnit.MILLISECONDS);
+            CompletableFuture<?> allEnded = first.finished;
+            if (!won.isDone()) {
+                if (first.finished.isDone() && first.error == null) {
+                    // The local model answered, just with nothing: no reason to pay for the fallback
+                    System.out.println(primary.getLabel() + " finished without any text, not sending to the fallback");
+                    return new Result(primary, false, first.raw, "");
+                }
+                String reason = first.finished.isDone() ? "failed" : "gave no token within " + deadlineMillis + " ms";
+                System.out.println(primary.getLabel() + " " + reason + ", sending to fallback " + fallback.getLabel());
+                executor.execute(second);
+                allEnded = CompletableFuture.allOf(first.finished, second.finished);
+            }
+
+            // Wait for a winner, or for every started attempt to end without a token
+            CompletableFuture.anyOf(won, allEnded).get();
+            Attempt current = won.getNow(null);
+            if (current != null) {
+                current.finished.get();
+                if (current.error != null) throw current.error;
+                return new Result(current.path, current == second, current.raw, current.content.toString());
+            }
+            // Neither produced a token: report the fallback's failure, else the local one
+            IOException error = second.error != null ? second.error : first.error;
+            if (error != null) throw error;
+            return new Result(second.finished.isDone() ? fallback : primary, second.finished.isDone(),
+                    second.finished.isDone() ? second.raw : first.raw, "");
+        } catch (ExecutionException e) {
+            // finished and won are only ever completed normally
+            throw new IOException("Hedged request failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            first.cancel.cancel();
+            second.cancel.cancel();
+            throw new IOException("Hedged request interrupted");
+        }
+    }
+
+    private static class Attempt implements Runnable {
+        final Path path;
+        final List<Message> messages;
+        final Consumer<Path> onStart;
+        final Consumer<String> onDelta;
+        final HttpTransport.CancelHandle cancel = new HttpTransport.CancelHandle();
+        final CountDownLatch firstEvent = new CountDownLatch(1);
+        // Completed when the attempt ends, with or without an error
+        final CompletableFuture<Void> finished = new CompletableFuture<>();
+        final StringBuilder content = new StringBuilder();
+        final CompletableFuture<Attempt> won;
+        Attempt other;
+        volatile String raw;
+        volatile IOException error;
+
+        Attempt(Path path, List<Message> messages, Consumer<Path> onStart, Consumer<String> onDelta,
+                CompletableFuture<Attempt> won) {
+            this.path = path;
+            this.messages = messages;
+            this.onStart = onStart;
+            this.onDelta = onDelta;
+            this.won = won;
+        }
+
+        @Override
+        public void run() {
+            try {
+                raw = path.stream(messages, cancel, delta -> {
+                    if (!won.isDone() && won.complete(this)) {
+                        // Cancel on another thread: disconnect() can block while the loser is mid-read
+                        executor.execute(other.cancel::cancel);
+                        firstEvent.countDown();
+                        onStart.accept(path);
+                    }
+                    if (won.getNow(null) == this) {
+                        content.append(delta);
+                        onDelta.accept(delta);
+                    }
+                });
+            } catch (IOException e) {
+                error = e;
+            } finally {
+                finished.complete(null);
+                firstEvent.countDown();
+            }
+        }
+    }
+}
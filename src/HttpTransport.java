@@ -0,0 +1,407 @@
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Shared HTTP transport used by the LocalAI client and every online provider.
+ * HttpURLConnection keeps idle keep-alive sockets in a JVM-wide pool per host, so
+ * connections are reused as long as each response body is read to the end and closed.
+ *
+ * Responses are requested with Accept-Encoding: gzip, deflate and decompressed on the fly.
+ * Request bodies over GZIP_MIN_BYTES are gzip-compressed when -Dtransport.gzipRequests=true;
+ * a host that answers 415 gets the request again uncompressed and is remembered as plain-only.
+ * Byte counters (wire vs. decoded) show what the compression saves.
+ */
+public class HttpTransport {
+    private static final int GET_TIMEOUT = 1000000;
+    private static final int POST_TIMEOUT = 12000000;
+    private static final int GZIP_MIN_BYTES = 1024;
+
+    private static final Set<String> plainOnlyHosts = ConcurrentHashMap.newKeySet();
+    private static final AtomicLong sentWire = new AtomicLong();
+    private static final AtomicLong sentPlain = new AtomicLong();
+    private static final AtomicLong receivedWire = new AtomicLong();
+    private static final AtomicLong receivedPlain = new AtomicLong();
+    // Per host: requests in flight, and when the last one started or finished (see ConnectionWarmer)
+    private static final Map<String, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+    private static final Map<String, Long> lastActivity = new ConcurrentHashMap<>();
+
+    public static String get(String endpoint) throws IOException {
+        HttpURLConnection connection = open(endpoint, "GET", Collections.emptyMap(), GET_TIMEOUT);
+        return readResponse(connection);
+    }
+
+    public static String post(String endpoint, String requestBody, Map<String, String> headers) throws IOException {
+        return post(endpoint, RequestBody.of(requestBody), headers);
+    }
+
+    public static String post(String endpoint, RequestBody requestBody, Map<String, String> headers) throws IOException {
+        String host = begin(endpoint);
+        try {
+            return doPost(endpoint, requestBody, headers);
+        } finally {
+            end(host);
+        }
+    }
+
+    private static String doPost(String endpoint, RequestBody requestBody, Map<String, String> headers) throws IOException {
+        HttpURLConnection connection = open(endpoint, "POST", headers, POST_TIMEOUT);
+        boolean compressed = writeBody(connection, requestBody);
+        if (compressed && connection.getResponseCode() == 415) {
+            plainOnlyHosts.add(connection.getURL().getAuthority());
+            readFully(connection.getErrorStream(), connection.getContentEncoding());
+            return post(endpoint, requestBody, headers);
+        }
+        return readResponse(connection);
+    }
+
+    /**
+     * Like post, but hands back the raw bytes so the caller can extract values without
+     * decoding the whole body. The caller must close the returned body.
+     */
+    public static ResponseBody postForBody(String endpoint, RequestBody requestBody, Map<String, String> headers) throws IOException {
+        String host = begin(endpoint);
+        try {
+            return doPostForBody(endpoint, requestBody, headers);
+        } finally {
+            end(host);
+        }
+    }
+
+    private static ResponseBody doPostForBody(String endpoint, RequestBody requestBody, Map<String, String> headers) throws IOException {
+        HttpURLConnection connection = open(endpoint, "POST", headers, POST_TIMEOUT);
+        boolean compressed = writeBody(connection, requestBody);
+        int responseCode = connection.getResponseCode();
+        if (compressed && responseCode == 415) {
+            plainOnlyHosts.add(connection.getURL().getAuthority());
+            readFully(connection.getErrorStream(), connection.getContentEncoding());
+            return postForBody(endpoint, requestBody, headers);
+        }
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+            throw new IOException("HTTP error " + responseCode + ": "
+                    + readFully(connection.getErrorStream(), connection.getContentEncoding()));
+        }
+        return ResponseBody.read(decode(connection.getInputStream(), connection.getContentEncoding()));
+    }
+
+    /**
+     * Opens a connection to the endpoint's host with a HEAD request for "/" and leaves it in the
+     * keep-alive pool, so the next request skips the DNS lookup and the TCP and TLS handshakes.
+     * Any answer will do, even a 404. Returns the status code.
+     */
+    public static int warm(String endpoint) throws IOException {
+        URL url = new URL(endpoint);
+        HttpURLConnection connection = (HttpURLConnection) new URL(url.getProtocol(), url.getHost(), url.getPort(), "/")
+                .openConnection();
+        connection.setRequestMethod("HEAD");
+        connection.setConnectTimeout(10000);
+        connection.setReadTimeout(10000);
+        int responseCode = connection.getResponseCode();
+        // Closing the (empty) body is what hands the socket back to the pool
+        InputStream body = responseCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        if (body != null) {
+            readFully(body, null);
+        }
+        return responseCode;
+    }
+
+    /** Whether a request to the endpoint's host is running or ended less than millis ago. */
+    public static boolean isBusy(String endpoint, long millis) throws IOException {
+        String host = new URL(endpoint).getAuthority();
+        AtomicInteger running = inFlight.get(host);
+        Long last = lastActivity.get(host);
+        return (running != null && running.get() > 0) || (last != null && System.currentTimeMillis() - last < millis);
+    }
+
+    /** When a request to the endpoint's host last started or finished, or 0 if there has been none. */
+    public static long getLastActivity(String endpoint) throws IOException {
+        return lastActivity.getOrDefault(new URL(endpoint).getAuthority(), 0L);
+    }
+
+    private static String begin(String endpoint) throws IOException {
+        String host = new URL(endpoint).getAuthority();
+        inFlight.computeIfAbsent(host, h -> new AtomicInteger()).incrementAndGet();
+        lastActivity.put(host, System.currentTimeMillis());
+        return host;
+    }
+
+    private static void end(String host) {
+        inFlight.get(host).decrementAndGet();
+        lastActivity.put(host, System.currentTimeMillis());
+    }
+
+    /** Totals since startup, e.g. "sent 120 KB (41 KB on the wire), received 80 KB (22 KB on the wire)". */
+    public static String getCompressionSummary() {
+        return String.format("sent %.1f KB (%.1f KB on the wire), received %.1f KB (%.1f KB on the wire)",
+                sentPlain.get() / 1024.0, sentWire.get() / 1024.0, receivedPlain.get() / 1024.0, receivedWire.get() / 1024.0);
+    }
+
+    /**
+     * Wraps a response body according to its Content-Encoding, counting bytes before and after
+     * decoding. Also used by LocalAIModelManager, which talks through java.net.http.
+     */
+    public static InputStream decode(InputStream body, String contentEncoding) throws IOException {
+        InputStream wire = new CountingInputStream(body, receivedWire);
+        InputStream decoded;
+        if ("gzip".equalsIgnoreCase(contentEncoding)) {
+            decoded = new GZIPInputStream(wire, 8192);
+        } else if ("deflate".equalsIgnoreCase(contentEncoding)) {
+            decoded = new InflaterInputStream(wire);
+        } else {
+            decoded = wire;
+        }
+        return new CountingInputStream(decoded, receivedPlain);
+    }
+
+    /**
+     * Posts a streaming request and hands every Server-Sent Events "data:" payload to the
+     * consumer as it arrives. Returns once the server closes the stream or sends [DONE].
+     */
+    public static void postStream(String endpoint, String requestBody, Map<String, String> headers,
+                                  Consumer<String> onEvent) throws IOException {
+        postStream(endpoint, requestBody, headers, null, onEvent);
+    }
+
+    /**
+     * As above, but the request can be aborted from another thread through the cancel handle,
+     * which makes the blocked read fail with an IOException.
+     */
+    public static void postStream(String endpoint, String requestBody, Map<String, String> headers,
+                                  CancelHandle cancel, Consumer<String> onEvent) throws IOException {
+        postStream(endpoint, RequestBody.of(requestBody), headers, cancel, onEvent);
+    }
+
+    public static void postStream(String endpoint, RequestBody requestBody, Map<String, String> headers,
+                                  CancelHandle cancel, Consumer<String> onEvent) throws IOException {
+        String host = begin(endpoint);
+        try {
+            doPostStream(endpoint, requestBody, headers, cancel, onEvent);
+        } finally {
+            end(host);
+        }
+    }
+
+    private static void doPostStream(String endpoint, RequestBody requestBody, Map<String, String> headers,
+                                     CancelHandle cancel, Consumer<String> onEvent) throws IOException {
+        HttpURLConnection connection = open(endpoint, "POST", headers, POST_TIMEOUT);
+        if (cancel != null) {
+            cancel.attach(connection);
+        }
+        connection.setRequestProperty("Accept", "text/event-stream");
+        // Token events are tiny and latency-bound, so the reply stream stays uncompressed
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        boolean compressed = writeBody(connection, requestBody);
+
+        int responseCode = connection.getResponseCode();
+        if (compressed && responseCode == 415) {
+            plainOnlyHosts.add(connection.getURL().getAuthority());
+            readFully(connection.getErrorStream(), connection.getContentEncoding());
+            postStream(endpoint, requestBody, headers, cancel, onEvent);
+            return;
+        }
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+            throw new IOException("HTTP error " + responseCode + ": "
+                    + readFully(connection.getErrorStream(), connection.getContentEncoding()));
+        }
+
+        // SSE lines are split on the raw bytes; only the data payload of each event is decoded
+        byte[] buffer = BufferPool.acquire(0);
+        try (InputStream in = decode(connection.getInputStream(), connection.getContentEncoding())) {
+            int filled = 0;
+            int scanFrom = 0;
+            int n;
+            while ((n = in.read(buffer, filled, buffer.length - filled)) >= 0) {
+                filled += n;
+                int lineStart = 0;
+                for (int i = scanFrom; i < filled; i++) {
+                    if (buffer[i] != '\n') {
+                        continue;
+                    }
+                    if (cancel != null && cancel.isCancelled()) {
+                        throw new IOException("Request cancelled");
+                    }
+                    int lineEnd = i > lineStart && buffer[i - 1] == '\r' ? i - 1 : i;
+                    if (!handleEventLine(buffer, lineStart, lineEnd, onEvent)) {
+                        // [DONE]: drain the rest so the socket can go back into the keep-alive pool
+                        while (in.read(buffer) >= 0) { }
+                        return;
+                    }
+                    lineStart = i + 1;
+                }
+
+                // Keep the unfinished line at the front of the buffer
+                filled -= lineStart;
+                System.arraycopy(buffer, lineStart, buffer, 0, filled);
+                scanFrom = filled;
+                if (filled == buffer.length) {
+                    buffer = BufferPool.grow(buffer, filled);
+                }
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    // Passes a "data:" payload on; returns false at the [DONE] marker
+    private static boolean handleEventLine(byte[] line, int start, int end, Consumer<String> onEvent) {
+        if (end - start < 5 || line[start] != 'd' || line[start + 1] != 'a' || line[start + 2] != 't'
+                || line[start + 3] != 'a' || line[start + 4] != ':') {
+            return true;
+        }
+        String data = new String(line, start + 5, end - start - 5, StandardCharsets.UTF_8).trim();
+        if (data.equals("[DONE]")) {
+            return false;
+        }
+        if (!data.isEmpty()) {
+            onEvent.accept(data);
+        }
+        return true;
+    }
+
+    /**
+     * Lets another thread abort an in-flight streaming request (e.g. the losing side of a hedged request).
+     */
+    public static class CancelHandle {
+        private HttpURLConnection connection;
+        private boolean cancelled;
+
+        public synchronized void cancel() {
+            cancelled = true;
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        private synchronized void attach(HttpURLConnection connection) throws IOException {
+            if (cancelled) {
+                throw new IOException("Request cancelled");
+            }
+            this.connection = connection;
+        }
+    }
+
+    private static HttpURLConnection open(String endpoint, String method, Map<String, String> headers,
+                                          int timeout) throws IOException {
+        URL url = new URL(endpoint);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+
+        connection.setRequestMethod(method);
+        connection.setRequestProperty("Accept", "application/json");
+        connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+        if (method.equals("POST")) {
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setDoOutput(true);
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+        return connection;
+    }
+
+    // Returns true if the body went out gzip-compressed
+    private static boolean writeBody(HttpURLConnection connection, RequestBody requestBody) throws IOException {
+        long length = requestBody.length();
+        sentPlain.addAndGet(length);
+
+        // Images are already compressed, so gzip would only cost time
+        boolean compress = Boolean.getBoolean("transport.gzipRequests") && length >= GZIP_MIN_BYTES
+                && !requestBody.hasImages() && !plainOnlyHosts.contains(connection.getURL().getAuthority());
+        if (!compress) {
+            // Fixed length: HttpURLConnection sends the body directly instead of buffering a copy
+            connection.setFixedLengthStreamingMode(length);
+            try (OutputStream os = new BufferedOutputStream(connection.getOutputStream(), 8192)) {
+                requestBody.writeTo(os);
+            }
+            sentWire.addAndGet(length);
+            return false;
+        }
+
+        // Compressed size isn't known up front, so the body is streamed in chunks as it deflates
+        connection.setRequestProperty("Content-Encoding", "gzip");
+        connection.setChunkedStreamingMode(8192);
+        try (OutputStream os = new GZIPOutputStream(
+                new CountingOutputStream(connection.getOutputStream(), sentWire), 8192)) {
+            requestBody.writeTo(os);
+        }
+        return true;
+    }
+
+    private static String readResponse(HttpURLConnection connection) throws IOException {
+        int responseCode = connection.getResponseCode();
+        if (responseCode == HttpURLConnection.HTTP_OK) {
+            return readFully(connection.getInputStream(), connection.getContentEncoding());
+        }
+        throw new IOException("HTTP error " + responseCode + ": "
+                + readFully(connection.getErrorStream(), connection.getContentEncoding()));
+    }
+
+    private static String readFully(InputStream in, String contentEncoding) throws IOException {
+        if (in == null) {
+            return "";
+        }
+        try (ResponseBody body = ResponseBody.read(decode(in, contentEncoding))) {
+            return body.toString();
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private final AtomicLong counter;
+
+        CountingInputStream(InputStream in, AtomicLong counter) {
+            super(in);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) counter.incrementAndGet();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) counter.addAndGet(n);
+            return n;
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private final AtomicLong counter;
+
+        CountingOutputStream(OutputStream out, AtomicLong counter) {
+            super(out);
+            this.counter = counter;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            counter.incrementAndGet();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            counter.addAndGet(len);
+        }
+    }
+}
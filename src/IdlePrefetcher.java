@@ -0,0 +1,170 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uses the time spent reading a reply to compute the likely next step in advance
+ * (-Dprefetch.enabled=true). Once a local reply has been shown and the user has been idle for
+ * -Dprefetch.idleMs (default 1500), "continue" is requested if the reply was cut off, and a
+ * summary of the conversation always. Typing or clicking in the chat (userActive) starts that
+ * wait over. When the user then picks Continue or Summarize, the
+ * answer is already there.
+ *
+ * Speculative requests run one at a time on a low-priority thread and go to the conversation's
+ * own slot, which keeps its prompt cache warm for the real next turn. Anything the user sends
+ * cancels them at once, so they never compete with a real request.
+ */
+public class IdlePrefetcher {
+    public static final String CONTINUE_PROMPT = "Continue exactly where you stopped.";
+    public static final String SUMMARY_PROMPT = "Summarize our conversation so far in a few sentences.";
+
+    private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "idle-prefetch");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    /**
+     * A speculative reply to one prompt, valid while the conversation's head is still the turn it
+     * followed and the turn would go to the same endpoint and model.
+     */
+    private static class Entry {
+        final Conversation.Turn after;
+        final String endpoint;
+        final String model;
+        final CompletableFuture<String> reply = new CompletableFuture<>();
+        final HttpTransport.CancelHandle cancel = new HttpTransport.CancelHandle();
+        volatile boolean started;
+        Runnable job;
+        ScheduledFuture<?> task;
+
+        Entry(Conversation.Turn after, String endpoint, String model) {
+            this.after = after;
+            this.endpoint = endpoint;
+            this.model = model;
+        }
+
+        boolean isFor(Conversation.Turn turn, String endpoint, String model) {
+            return after == turn && this.endpoint.equals(endpoint) && this.model.equals(model);
+        }
+    }
+
+    private static final Map<String, Entry> entries = new HashMap<>();
+    private static long idleMillis;
+
+    public static boolean isEnabled() {
+        return Boolean.getBoolean("prefetch.enabled");
+    }
+
+    /** Call after a reply has been added; earlier speculation is dropped. backend is the one for endpoint. */
+    public static synchronized void schedule(ChatBackend backend, String endpoint, String model, Conversation conversation,
+                                             boolean truncated) {
+        if (!isEnabled()) {
+            return;
+        }
+        yieldToUser();
+        Conversation.Turn head = conversation.getHead();
+        List<Message> history = conversation.snapshot();
+        int slotId = conversation.getSlotId();
+
+        List<String> prompts = new ArrayList<>();
+        if (truncated) {
+            prompts.add(CONTINUE_PROMPT);
+        }
+        prompts.add(SUMMARY_PROMPT);
+
+        idleMillis = Long.getLong("prefetch.idleMs", 1500L);
+        for (String prompt : prompts) {
+            Entry entry = new Entry(head, endpoint, model);
+            entries.put(prompt, entry);
+            entry.job = () -> run(backend, model, history, slotId, prompt, entry);
+            entry.task = EXECUTOR.schedule(entry.job, idleMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Call on user input (typing, clicks): speculation that hasn't started yet waits for another
+     * full idle period. Running requests are left alone, the user isn't sending anything yet.
+     */
+    public static synchronized void userActive() {
+        for (Entry entry : entries.values()) {
+            if (!entry.started && !entry.cancel.isCancelled() && entry.task.cancel(false)) {
+                entry.task = EXECUTOR.schedule(entry.job, idleMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private static void run(ChatBackend backend, String model, List<Message> history, int slotId,
+                            String prompt, Entry entry) {
+        if (entry.cancel.isCancelled()) {
+            return;
+        }
+        entry.started = true;
+        List<Message> messages = new ArrayList<>(history);
+        messages.add(new Message("user", prompt));
+        StringBuilder reply = new StringBuilder();
+        long start = System.nanoTime();
+        try {
+            backend.streamChatRequestWithHistory(model, messages, slotId, entry.cancel, reply::append);
+            entry.reply.complete(reply.toString());
+            System.out.println("Prefetched \"" + prompt + "\" in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (IOException e) {
+            entry.reply.completeExceptionally(e);
+            if (!entry.cancel.isCancelled()) {
+                System.out.println("Prefetch of \"" + prompt + "\" failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /** Cancels every pending and running speculative request; call before sending anything real. */
+    public static synchronized void yieldToUser() {
+        for (Entry entry : entries.values()) {
+            cancel(entry);
+        }
+    }
+
+    private static void cancel(Entry entry) {
+        if (!entry.reply.isDone()) {
+            entry.task.cancel(false);
+            entry.cancel.cancel();
+            entry.reply.cancel(false);
+        }
+    }
+
+    /**
+     * The prefetched reply to prompt if it was computed right after the given turn by the model
+     * and endpoint the turn would go to now, waiting for it if it is already being generated (so
+     * don't call this on the EDT); null if there is none, or if the turn goes online (endpoint
+     * null). Other speculation is cancelled either way, since the conversation is about to move on.
+     */
+    public static String take(Conversation.Turn after, String prompt, String endpoint, String model) {
+        Entry entry;
+        synchronized (IdlePrefetcher.class) {
+            entry = entries.remove(prompt);
+            yieldToUser();
+            if (entry == null || endpoint == null || !entry.isFor(after, endpoint, model)
+                    || (!entry.started && !entry.reply.isDone())) {
+                if (entry != null) cancel(entry);
+                return null;
+            }
+        }
+        try {
+            return entry.reply.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | CancellationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Base64;
+
+/**
+ * An image sent along with a user message to a vision model. The image is downscaled once, when
+ * it is attached, and then only its compressed bytes are kept; base64 is produced while the
+ * request is being written (see RequestBody), so no encoded copy ever sits on the heap.
+ */
+public class ImageAttachment {
+    private final String name;
+    private final String mimeType;
+    private final byte[] data;
+    private final int width;
+    private final int height;
+
+    private ImageAttachment(String name, String mimeType, byte[] data, int width, int height) {
+        this.name = name;
+        this.mimeType = mimeType;
+        this.data = data;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Reads an image file and scales it down so neither side exceeds maxSide. Slow for big
+     * photos, so call it off the EDT. A JPEG or PNG that is small enough is kept byte for byte.
+     */
+    public static ImageAttachment load(File file, int maxSide) throws IOException {
+        BufferedImage image = ImageIO.read(file);
+        if (image == null) {
+            throw new IOException(file.getName() + " is not an image Java can read");
+        }
+        String lower = file.getName().toLowerCase();
+        boolean jpeg = lower.endsWith(".jpg") || lower.endsWith(".jpeg");
+        if (Math.max(image.getWidth(), image.getHeight()) <= maxSide && (jpeg || lower.endsWith(".png"))) {
+            return new ImageAttachment(file.getName(), jpeg ? "image/jpeg" : "image/png",
+                    Files.readAllBytes(file.toPath()), image.getWidth(), image.getHeight());
+        }
+
+        BufferedImage scaled = downscale(image, maxSide);
+        // PNG keeps transparency; everything else becomes JPEG, which is far smaller for photos
+        boolean alpha = scaled.getColorModel().hasAlpha();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(alpha ? scaled : toRgb(scaled), alpha ? "png" : "jpg", out);
+        return new ImageAttachment(file.getName(), alpha ? "image/png" : "image/jpeg", out.toByteArray(),
+                scaled.getWidth(), scaled.getHeight());
+    }
+
+    // Halves the size step by step before the final scale, which keeps bilinear filtering sharp
+    private static BufferedImage downscale(BufferedImage image, int maxSide) {
+        int longest = Math.max(image.getWidth(), image.getHeight());
+        if (longest <= maxSide) {
+            return image;
+        }
+        double scale = (double) maxSide / longest;
+        int targetWidth = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int targetHeight = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+
+        BufferedImage current = image;
+        int width = image.getWidth();
+        int height = image.getHeight();
+        do {
+            width = Math.max(targetWidth, width / 2);
+            height = Math.max(targetHeight, height / 2);
+            BufferedImage next = new BufferedImage(width, height, type);
+            Graphics2D g = next.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(current, 0, 0, width, height, null);
+            g.dispose();
+            current = next;
+        } while (width != targetWidth || height != targetHeight);
+        return current;
+    }
+
+    private static BufferedImage toRgb(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_INT_RGB) {
+            return image;
+        }
+        BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = rgb.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return rgb;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /** Size of the compressed image. */
+    public int getByteCount() {
+        return data.length;
+    }
+
+    public long getBase64Length() {
+        return 4L * ((data.length + 2) / 3);
+    }
+
+    /** Writes the image as base64 into out, leaving out open. */
+    public void writeBase64(OutputStream out) throws IOException {
+        OutputStream encoder = Base64.getEncoder().wrap(new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        });
+        encoder.write(data);
+        encoder.close(); // writes the padding
+    }
+
+    /** e.g. "[image: cat.jpg, 1024x768]", how the attachment shows up in the chat. */
+    public String describe() {
+        return "[image: " + name + ", " + width + "x" + height + "]";
+    }
+}
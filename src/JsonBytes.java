@@ -0,0 +1,250 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads values out of UTF-8 JSON held in a ByteBuffer (a pooled heap buffer or a mapped file)
+ * without decoding the document. Key paths are followed structurally, so a "content" key inside
+ * a string or a nested object is never mistaken for the one asked for, and only the final value
+ * is turned into a String.
+ */
+public class JsonBytes {
+    private final ByteBuffer buf;
+    private final int limit;
+
+    public JsonBytes(ByteBuffer buf) {
+        this.buf = buf;
+        this.limit = buf.limit();
+    }
+
+    /**
+     * Position of the value at the key path ("choices", "0", "message", "content"),
+     * where numeric steps index into arrays. Returns -1 if any step is missing.
+     */
+    public int find(String... path) {
+        int pos = skipWhitespace(buf.position());
+        for (String key : path) {
+            if (pos >= limit) return -1;
+            byte b = buf.get(pos);
+            if (b == '{') {
+                pos = findMember(pos, key);
+            } else if (b == '[') {
+                pos = findElement(pos, key);
+            } else {
+                return -1;
+            }
+            if (pos < 0) return -1;
+        }
+        return pos;
+    }
+
+    /** Decoded string at the path; numbers and booleans come back as their literal text; null if absent or JSON null. */
+    public String getString(String... path) {
+        int pos = find(path);
+        if (pos < 0) return null;
+
+        byte b = buf.get(pos);
+        if (b == '"') {
+            return decodeString(pos);
+        }
+        if (b == '{' || b == '[') {
+            return null;
+        }
+        String literal = decodeRaw(pos, skipValue(pos));
+        return literal.equals("null") ? null : literal;
+    }
+
+    /** The value at the path as JSON text (objects and arrays included), or null. */
+    public String getRaw(String... path) {
+        int pos = find(path);
+        return pos < 0 ? null : decodeRaw(pos, skipValue(pos));
+    }
+
+    /** Number of elements of the array at the path, or 0 if there is no array there. */
+    public int count(String... path) {
+        int pos = find(path);
+        if (pos < 0 || buf.get(pos) != '[') return 0;
+
+        int count = 0;
+        pos = skipWhitespace(pos + 1);
+        while (pos < limit && buf.get(pos) != ']') {
+            count++;
+            pos = skipWhitespace(skipValue(pos));
+            if (pos < limit && buf.get(pos) == ',') pos = skipWhitespace(pos + 1);
+        }
+        return count;
+    }
+
+    private int findMember(int pos, String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        pos = skipWhitespace(pos + 1);
+        while (pos < limit && buf.get(pos) != '}') {
+            if (buf.get(pos) != '"') return -1;
+            int keyEnd = skipString(pos);
+            boolean match = rawEquals(pos + 1, keyEnd - 1, keyBytes);
+
+            pos = skipWhitespace(keyEnd);
+            if (pos >= limit || buf.get(pos) != ':') return -1;
+            pos = skipWhitespace(pos + 1);
+            if (match) return pos;
+
+            pos = skipWhitespace(skipValue(pos));
+            if (pos < limit && buf.get(pos) == ',') pos = skipWhitespace(pos + 1);
+        }
+        return -1;
+    }
+
+    private int findElement(int pos, String key) {
+        int index;
+        try {
+            index = Integer.parseInt(key);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+
+        pos = skipWhitespace(pos + 1);
+        for (int i = 0; pos < limit && buf.get(pos) != ']'; i++) {
+            if (i == index) return pos;
+            pos = skipWhitespace(skipValue(pos));
+            if (pos < limit && buf.get(pos) == ',') pos = skipWhitespace(pos + 1);
+        }
+        return -1;
+    }
+
+    // Index just past the value starting at pos
+    private int skipValue(int pos) {
+        byte b = buf.get(pos);
+        if (b == '"') {
+            return skipString(pos);
+        }
+        if (b == '{' || b == '[') {
+            int depth = 0;
+            while (pos < limit) {
+                byte c = buf.get(pos);
+                if (c == '"') {
+                    pos = skipString(pos);
+                    continue;
+                }
+                if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    if (--depth == 0) return pos + 1;
+                }
+                pos++;
+            }
+            return limit;
+        }
+        while (pos < limit) {
+            byte c = buf.get(pos);
+            if (c == ',' || c == '}' || c == ']' || isWhitespace(c)) break;
+            pos++;
+        }
+        return pos;
+    }
+
+    // pos is the opening quote; returns the index just past the closing quote
+    private int skipString(int pos) {
+        pos++;
+        while (pos < limit) {
+            byte c = buf.get(pos);
+            if (c == '\\') {
+                pos += 2;
+            } else if (c == '"') {
+                return pos + 1;
+            } else {
+                pos++;
+            }
+        }
+        return limit;
+    }
+
+    private int skipWhitespace(int pos) {
+        while (pos < limit && isWhitespace(buf.get(pos))) pos++;
+        return pos;
+    }
+
+    private static boolean isWhitespace(byte c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    private boolean rawEquals(int start, int end, byte[] expected) {
+        if (end - start != expected.length) return false;
+        for (int i = 0; i < expected.length; i++) {
+            if (buf.get(start + i) != expected[i]) return false;
+        }
+        return true;
+    }
+
+    private String decodeRaw(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = buf.get(start + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Unescapes the string starting at the opening quote into UTF-8 bytes, then decodes once
+    private String decodeString(int pos) {
+        int end = skipString(pos) - 1;
+        byte[] out = new byte[end - pos];
+        int n = 0;
+        for (int i = pos + 1; i < end; i++) {
+            byte c = buf.get(i);
+            if (c != '\\') {
+                out[n++] = c;
+                continue;
+            }
+            byte e = buf.get(++i);
+            switch (e) {
+                case 'n': out[n++] = '\n'; break;
+                case 'r': out[n++] = '\r'; break;
+                case 't': out[n++] = '\t'; break;
+                case 'b': out[n++] = '\b'; break;
+                case 'f': out[n++] = '\f'; break;
+                case 'u': {
+                    int codePoint = hex(i + 1);
+                    i += 4;
+                    if (Character.isHighSurrogate((char) codePoint) && i + 6 < end
+                            && buf.get(i + 1) == '\\' && buf.get(i + 2) == 'u') {
+                        int low = hex(i + 3);
+                        if (Character.isLowSurrogate((char) low)) {
+                            codePoint = Character.toCodePoint((char) codePoint, (char) low);
+                            i += 6;
+                        }
+                    }
+                    n = writeUtf8(out, n, codePoint);
+                    break;
+                }
+                default: out[n++] = e; // \" \\ \/
+            }
+        }
+        return new String(out, 0, n, StandardCharsets.UTF_8);
+    }
+
+    private int hex(int pos) {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 4) | Character.digit(buf.get(pos + i), 16);
+        }
+        return value;
+    }
+
+    // An escape is at least 6 bytes and its UTF-8 form at most 4, so out never overflows
+    private static int writeUtf8(byte[] out, int n, int codePoint) {
+        if (Character.isSurrogate((char) codePoint) && codePoint < 0x10000) {
+            out[n++] = '?';
+        } else if (codePoint < 0x80) {
+            out[n++] = (byte) codePoint;
+        } else if (codePoint < 0x800) {
+            out[n++] = (byte) (0xC0 | (codePoint >> 6));
+            out[n++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else if (codePoint < 0x10000) {
+            out[n++] = (byte) (0xE0 | (codePoint >> 12));
+            out[n++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            out[n++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else {
+            out[n++] = (byte) (0xF0 | (codePoint >> 18));
+            out[n++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+            out[n++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            out[n++] = (byte) (0x80 | (codePoint & 0x3F));
+        }
+        return n;
+    }
+}
@@ -0,0 +1,254 @@
+/**
+ * Minimal hand-rolled JSON helpers shared by LocalAI and the online providers.
+ * Values are located by key path ("choices", "0", "message", "content") rather than
+ * by building a full object tree.
+ */
+public class JsonExtractor {
+
+    public static String escape(String input) {
+        return input
+                .replace("\\", "\\\\")
+                .replace("\"", "\\\"")
+                .replace("\n", "\\n")
+                .replace("\r", "\\r")
+                .replace("\t", "\\t")
+                .replace("\b", "\\b")
+                .replace("\f", "\\f");
+    }
+
+    public static String unescapeJson(String input) {
+        return input.replace("\\n", "\n")
+                .replace("\\r", "\r")
+                .replace("\\t", "\t")
+                .replace("\\\"", "\"")
+                .replace("\\\\", "\\");
+    }
+
+    /**
+     * Follows the key path through the JSON and returns the raw (still escaped) string value,
+     * or the literal text of a number/boolean, or null if any step is missing.
+     */
+    public static String extractUsingKeyPath(String json, String[] keys) {
+        try {
+            String currentJson = json;
+            for (int i = 0; i < keys.length; i++) {
+                String key = keys[i];
+                String searchPattern = "\"" + key + "\":";
+                int keyIndex = currentJson.indexOf(searchPattern);
+                if (keyIndex == -1) return null;
+
+                int valueStart = currentJson.indexOf(':', keyIndex) + 1;
+                if (valueStart == 0) return null;
+
+                while (valueStart < currentJson.length() && Character.isWhitespace(currentJson.charAt(valueStart))) {
+                    valueStart++;
+                }
+
+                if (valueStart >= currentJson.length()) return null;
+
+                char firstChar = currentJson.charAt(valueStart);
+
+                if (firstChar == '{') {
+                    int braceCount = 1;
+                    int endIndex = valueStart + 1;
+                    while (endIndex < currentJson.length() && braceCount > 0) {
+                        char c = currentJson.charAt(endIndex);
+                        if (c == '{') braceCount++;
+                        else if (c == '}') braceCount--;
+                        endIndex++;
+                    }
+                    if (braceCount == 0) {
+                        currentJson = currentJson.substring(valueStart, endIndex);
+                    } else {
+                        return null;
+                    }
+                } else if (firstChar == '[') {
+                    int bracketCount = 1;
+                    int endIndex = valueStart + 1;
+                    while (endIndex < currentJson.length() && bracketCount > 0) {
+                        char c = currentJson.charAt(endIndex);
+                        if (c == '[') bracketCount++;
+                        else if (c == ']') bracketCount--;
+                        endIndex++;
+                    }
+                    if (bracketCount == 0) {
+                        currentJson = currentJson.substring(valueStart, endIndex);
+
+                        if (i + 1 < keys.length) {
+                            try {
+                                int arrayIndex = Integer.parseInt(keys[i + 1]);
+                                String[] arrayElements = parseJsonArray(currentJson);
+                                if (arrayIndex >= 0 && arrayIndex < arrayElements.length) {
+                                    currentJson = arrayElements[arrayIndex];
+                                    i++;
+                                } else {
+                                    return null;
+                                }
+                            } catch (NumberFormatException e) {
+                                return null;
+                            }
+                        }
+                    } else {
+                        return null;
+                    }
+                } else if (firstChar == '"') {
+                    int endIndex = valueStart + 1;
+                    boolean escaped = false;
+                    while (endIndex < currentJson.length()) {
+                        char c = currentJson.charAt(endIndex);
+                        if (escaped) {
+                            escaped = false;
+                        } else if (c == '\\') {
+                            escaped = true;
+                        } else if (c == '"') {
+                            if (i == keys.length - 1) {
+                                return currentJson.substring(valueStart + 1, endIndex);
+                            } else {
+                                currentJson = currentJson.substring(valueStart + 1, endIndex);
+                                break;
+                            }
+                        }
+                        endIndex++;
+                    }
+                    if (endIndex >= currentJson.length()) return null;
+                } else {
+                    int endIndex = valueStart;
+                    while (endIndex < currentJson.length()) {
+                        char c = currentJson.charAt(endIndex);
+                        if (c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) {
+                            break;
+                        }
+                        endIndex++;
+                    }
+                    String value = currentJson.substring(valueStart, endIndex).trim();
+                    if (i == keys.length - 1) {
+                        return value;
+                    } else {
+                        currentJson = value;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("Key path extraction failed: " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Returns the raw JSON array (brackets included) stored under the first occurrence of key, or null.
+     */
+    public static String extractArray(String json, String key) {
+        int keyIndex = json.indexOf("\"" + key + "\":");
+        if (keyIndex == -1) return null;
+
+        int start = json.indexOf('[', keyIndex);
+        if (start == -1) return null;
+
+        int bracketCount = 1;
+        int end = start + 1;
+        while (end < json.length() && bracketCount > 0) {
+            char c = json.charAt(end);
+            if (c == '[') bracketCount++;
+            else if (c == ']') bracketCount--;
+            end++;
+        }
+        return bracketCount == 0 ? json.substring(start, end) : null;
+    }
+
+    public static float[] parseFloatArray(String jsonArray) {
+        String content = jsonArray.substring(1, jsonArray.length() - 1).trim();
+        if (content.isEmpty()) {
+            return new float[0];
+        }
+        String[] parts = content.split(",");
+        float[] values = new float[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Float.parseFloat(parts[i].trim());
+        }
+        return values;
+    }
+
+    public static String[] parseJsonArray(String jsonArray) {
+        java.util.List<String> elements = new java.util.ArrayList<>();
+        try {
+            if (!jsonArray.startsWith("[") || !jsonArray.endsWith("]")) {
+                return new String[0];
+            }
+
+            String content = jsonArray.substring(1, jsonArray.length() - 1).trim();
+            if (content.isEmpty()) {
+                return new String[0];
+            }
+
+            int braceCount = 0;
+            int bracketCount = 0;
+            boolean inString = false;
+            boolean escaped = false;
+            int start = 0;
+
+            for (int i = 0; i < content.length(); i++) {
+                char c = content.charAt(i);
+
+                if (escaped) {
+                    escaped = false;
+                } else if (c == '\\') {
+                    escaped = true;
+                } else if (c == '"' && braceCount == 0 && bracketCount == 0) {
+                    inString = !inString;
+                } else if (!inString) {
+                    if (c == '{') braceCount++;
+                    else if (c == '}') braceCount--;
+                    else if (c == '[') bracketCount++;
+                    else if (c == ']') bracketCount--;
+                    else if (c == ',' && braceCount == 0 && bracketCount == 0) {
+                        elements.add(content.substring(start, i).trim());
+                        start = i + 1;
+                    }
+                }
+            }
+
+            if (start < content.length()) {
+                elements.add(content.substring(start).trim());
+            }
+
+        } catch (Exception e) {
+            System.out.println("Array parsing failed: " + e.getMessage());
+        }
+        return elements.toArray(new String[0]);
+    }
+
+    /**
+     * Last-resort extraction: unescaped value of the first "content" string in the JSON.
+     */
+    public static String extractContentWithQuoteHandling(String json) {
+        try {
+            int contentIndex = json.indexOf("\"content\":");
+            if (contentIndex == -1) return null;
+
+            int quoteStart = json.indexOf('"', contentIndex + 10);
+            if (quoteStart == -1) return null;
+
+            StringBuilder content = new StringBuilder();
+            boolean escaped = false;
+            int pos = quoteStart + 1;
+
+            while (pos < json.length()) {
+                char c = json.charAt(pos);
+                if (escaped) {
+                    content.append('\\').append(c);
+                    escaped = false;
+                } else if (c == '\\') {
+                    escaped = true;
+                } else if (c == '"') {
+                    return unescapeJson(content.toString());
+                } else {
+                    content.append(c);
+                }
+                pos++;
+            }
+        } catch (Exception e) {
+            System.out.println("Direct content extraction failed: " + e.getMessage());
+        }
+        return null;
+    }
+}
@@ -0,0 +1,339 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * A Llama 2 transformer in the llama2.c checkpoint format (float32 weights after a 7-int header),
+ * evaluated on the CPU one token at a time. The weights are memory-mapped, one mapping per tensor,
+ * so the OS pages them in on demand and shares them between runs; only the activations and the
+ * KV cache live on the heap. Matrix-vector products are split by rows across the cores, and the
+ * inner loops keep four independent sums so the JIT can pipeline and vectorize them.
+ *
+ * Not thread-safe: one forward pass at a time (EmbeddedBackend serializes requests).
+ */
+public class Llama2Model {
+    // Below this many multiply-adds a matmul isn't worth handing to other threads
+    private static final int PARALLEL_MIN_WORK = 1 << 15;
+
+    final int dim;
+    final int hiddenDim;
+    final int layers;
+    final int heads;
+    final int kvHeads;
+    final int vocabSize;
+    final int seqLen;
+    private final int headSize;
+    private final int kvDim;
+
+    private final FloatBuffer tokenEmbedding;
+    private final FloatBuffer[] rmsAtt;
+    private final FloatBuffer[] wq;
+    private final FloatBuffer[] wk;
+    private final FloatBuffer[] wv;
+    private final FloatBuffer[] wo;
+    private final FloatBuffer[] rmsFfn;
+    private final FloatBuffer[] w1;
+    private final FloatBuffer[] w2;
+    private final FloatBuffer[] w3;
+    private final FloatBuffer rmsFinal;
+    private final FloatBuffer classifier;
+
+    // Activations, reused for every token
+    private final float[] x;
+    private final float[] xb;
+    private final float[] xb2;
+    private final float[] hb;
+    private final float[] hb2;
+    private final float[] q;
+    private final float[] att;
+    private final float[] logits;
+    private final float[] keyCache;
+    private final float[] valueCache;
+
+    private final ForkJoinPool pool;
+    private final int threads;
+
+    private interface Range {
+        void run(int from, int to);
+    }
+
+    public Llama2Model(File checkpoint, int threads) throws IOException {
+        try (FileChannel channel = FileChannel.open(checkpoint.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(28).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && channel.read(header) >= 0) { }
+            if (header.hasRemaining()) {
+                throw new IOException(checkpoint + " is too short for a llama2.c checkpoint");
+            }
+            header.flip();
+            dim = header.getInt();
+            hiddenDim = header.getInt();
+            layers = header.getInt();
+            heads = header.getInt();
+            kvHeads = header.getInt();
+            int vocab = header.getInt();
+            seqLen = header.getInt();
+            // A negative vocabulary size marks a separate output classifier
+            boolean sharedClassifier = vocab > 0;
+            vocabSize = Math.abs(vocab);
+            if (dim <= 0 || hiddenDim <= 0 || layers <= 0 || heads <= 0 || kvHeads <= 0 || seqLen <= 0
+                    || dim % heads != 0 || heads % kvHeads != 0) {
+                throw new IOException(checkpoint + " does not look like a llama2.c checkpoint (dim " + dim
+                        + ", layers " + layers + ", heads " + heads + ")");
+            }
+            headSize = dim / heads;
+            kvDim = dim * kvHeads / heads;
+
+            Mapper mapper = new Mapper(channel, 28);
+            tokenEmbedding = mapper.next((long) vocabSize * dim);
+            rmsAtt = mapper.perLayer(layers, dim);
+            wq = mapper.perLayer(layers, (long) dim * dim);
+            wk = mapper.perLayer(layers, (long) dim * kvDim);
+            wv = mapper.perLayer(layers, (long) dim * kvDim);
+            wo = mapper.perLayer(layers, (long) dim * dim);
+            rmsFfn = mapper.perLayer(layers, dim);
+            w1 = mapper.perLayer(layers, (long) dim * hiddenDim);
+            w2 = mapper.perLayer(layers, (long) hiddenDim * dim);
+            w3 = mapper.perLayer(layers, (long) dim * hiddenDim);
+            rmsFinal = mapper.next(dim);
+            mapper.skip((long) seqLen * headSize); // the old precomputed RoPE tables (real and imaginary halves)
+            classifier = sharedClassifier ? tokenEmbedding : mapper.next((long) vocabSize * dim);
+        }
+
+        x = new float[dim];
+        xb = new float[dim];
+        xb2 = new float[dim];
+        hb = new float[hiddenDim];
+        hb2 = new float[hiddenDim];
+        q = new float[dim];
+        att = new float[heads * seqLen];
+        logits = new float[vocabSize];
+        keyCache = new float[layers * seqLen * kvDim];
+        valueCache = new float[layers * seqLen * kvDim];
+
+        this.threads = Math.max(1, threads);
+        pool = new ForkJoinPool(this.threads);
+    }
+
+    // Maps consecutive tensors of the checkpoint as little-endian float buffers
+    private static class Mapper {
+        private final FileChannel channel;
+        private long offset;
+
+        Mapper(FileChannel channel, long offset) {
+            this.channel = channel;
+            this.offset = offset;
+        }
+
+        FloatBuffer next(long floats) throws IOException {
+            long bytes = floats * 4;
+            if (offset + bytes > channel.size()) {
+                throw new IOException("Checkpoint ends early: needs " + (offset + bytes) + " bytes, has " + channel.size());
+            }
+            if (bytes > Integer.MAX_VALUE) {
+                throw new IOException("A tensor of " + bytes + " bytes is too big to map; use a smaller model");
+            }
+            FloatBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, bytes)
+                    .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            offset += bytes;
+            return buffer;
+        }
+
+        FloatBuffer[] perLayer(int layers, long floatsPerLayer) throws IOException {
+            FloatBuffer[] buffers = new FloatBuffer[layers];
+            for (int l = 0; l < layers; l++) {
+                buffers[l] = next(floatsPerLayer);
+            }
+            return buffers;
+        }
+
+        void skip(long floats) {
+            offset += floats * 4;
+        }
+    }
+
+    /**
+     * Runs token through the network at position pos (0-based, below seqLen), filling the KV cache
+     * for that position, and returns the logits for the next token. The array is reused by the
+     * next call.
+     */
+    public float[] forward(int token, int pos) {
+        int row = token * dim;
+        for (int i = 0; i < dim; i++) {
+            x[i] = tokenEmbedding.get(row + i);
+        }
+
+        int kvPerHead = heads / kvHeads;
+        for (int l = 0; l < layers; l++) {
+            rmsNorm(xb, x, rmsAtt[l]);
+
+            // q for this token; k and v go straight into the cache
+            int layerOffset = l * seqLen * kvDim;
+            int cacheOffset = layerOffset + pos * kvDim;
+            matmul(q, 0, xb, wq[l], dim, dim);
+            matmul(keyCache, cacheOffset, xb, wk[l], dim, kvDim);
+            matmul(valueCache, cacheOffset, xb, wv[l], dim, kvDim);
+            rope(pos, cacheOffset);
+
+            // Multi-head attention over every position so far, one head per task
+            parallel(heads, 1, (from, to) -> {
+                for (int h = from; h < to; h++) {
+                    attend(h, pos, layerOffset + (h / kvPerHead) * headSize);
+                }
+            });
+
+            matmul(xb2, 0, xb, wo[l], dim, dim);
+            for (int i = 0; i < dim; i++) {
+                x[i] += xb2[i];
+            }
+
+            // Feed-forward: w2(silu(w1 x) * w3 x)
+            rmsNorm(xb, x, rmsFfn[l]);
+            matmul(hb, 0, xb, w1[l], dim, hiddenDim);
+            matmul(hb2, 0, xb, w3[l], dim, hiddenDim);
+            for (int i = 0; i < hiddenDim; i++) {
+                float v = hb[i];
+                hb[i] = v / (1f + (float) Math.exp(-v)) * hb2[i];
+            }
+            matmul(xb, 0, hb, w2[l], hiddenDim, dim);
+            for (int i = 0; i < dim; i++) {
+                x[i] += xb[i];
+            }
+        }
+
+        rmsNorm(x, x, rmsFinal);
+        matmul(logits, 0, x, classifier, dim, vocabSize);
+        return logits;
+    }
+
+    // Rotary position embedding of q and of the cached k at this position
+    private void rope(int pos, int cacheOffset) {
+        for (int i = 0; i < dim; i += 2) {
+            int headDim = i % headSize;
+            double angle = pos / Math.pow(10000.0, headDim / (double) headSize);
+            float cos = (float) Math.cos(angle);
+            float sin = (float) Math.sin(angle);
+            float q0 = q[i];
+            float q1 = q[i + 1];
+            q[i] = q0 * cos - q1 * sin;
+            q[i + 1] = q0 * sin + q1 * cos;
+            if (i < kvDim) {
+                float k0 = keyCache[cacheOffset + i];
+                float k1 = keyCache[cacheOffset + i + 1];
+                keyCache[cacheOffset + i] = k0 * cos - k1 * sin;
+                keyCache[cacheOffset + i + 1] = k0 * sin + k1 * cos;
+            }
+        }
+    }
+
+    // Head h: softmax(q.k / sqrt(headSize)) over positions 0..pos, then the weighted sum of v into xb
+    private void attend(int h, int pos, int kvOffset) {
+        int qOffset = h * headSize;
+        int attOffset = h * seqLen;
+        float scale = (float) (1.0 / Math.sqrt(headSize));
+        float max = Float.NEGATIVE_INFINITY;
+        for (int t = 0; t <= pos; t++) {
+            int k = kvOffset + t * kvDim;
+            float score = 0f;
+            for (int i = 0; i < headSize; i++) {
+                score += q[qOffset + i] * keyCache[k + i];
+            }
+            score *= scale;
+            att[attOffset + t] = score;
+            max = Math.max(max, score);
+        }
+        float sum = 0f;
+        for (int t = 0; t <= pos; t++) {
+            float e = (float) Math.exp(att[attOffset + t] - max);
+            att[attOffset + t] = e;
+            sum += e;
+        }
+
+        int out = h * headSize;
+        for (int i = 0; i < headSize; i++) {
+            xb[out + i] = 0f;
+        }
+        for (int t = 0; t <= pos; t++) {
+            float a = att[attOffset + t] / sum;
+            int v = kvOffset + t * kvDim;
+            for (int i = 0; i < headSize; i++) {
+                xb[out + i] += a * valueCache[v + i];
+            }
+        }
+    }
+
+    private static void rmsNorm(float[] out, float[] in, FloatBuffer weight) {
+        float ss = 0f;
+        for (float v : in) {
+            ss += v * v;
+        }
+        float scale = (float) (1.0 / Math.sqrt(ss / in.length + 1e-5f));
+        for (int i = 0; i < in.length; i++) {
+            out[i] = weight.get(i) * (scale * in[i]);
+        }
+    }
+
+    // out[outOffset + i] = W[i] . in for the d rows of the d x n matrix W
+    private void matmul(float[] out, int outOffset, float[] in, FloatBuffer w, int n, int d) {
+        int minRows = Math.max(1, PARALLEL_MIN_WORK / n);
+        parallel(d, minRows, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                int row = i * n;
+                float s0 = 0f, s1 = 0f, s2 = 0f, s3 = 0f;
+                int j = 0;
+                for (; j <= n - 4; j += 4) {
+                    s0 += w.get(row + j) * in[j];
+                    s1 += w.get(row + j + 1) * in[j + 1];
+                    s2 += w.get(row + j + 2) * in[j + 2];
+                    s3 += w.get(row + j + 3) * in[j + 3];
+                }
+                for (; j < n; j++) {
+                    s0 += w.get(row + j) * in[j];
+                }
+                out[outOffset + i] = (s0 + s1) + (s2 + s3);
+            }
+        });
+    }
+
+    // Splits [0, count) into one range per thread (each at least minPerTask long); the caller runs the first
+    private void parallel(int count, int minPerTask, Range range) {
+        int tasks = Math.min(threads, Math.max(1, count / minPerTask));
+        if (tasks == 1) {
+            range.run(0, count);
+            return;
+        }
+        List<Future<?>> futures = new ArrayList<>(tasks - 1);
+        for (int t = 1; t < tasks; t++) {
+            int from = (int) ((long) count * t / tasks);
+            int to = (int) ((long) count * (t + 1) / tasks);
+            futures.add(pool.submit(() -> range.run(from, to)));
+        }
+        range.run(0, count / tasks);
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted during inference", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void close() {
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,125 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The SentencePiece BPE vocabulary of a llama2.c tokenizer.bin (an int max token length, then per
+ * token a float merge score, an int length and the piece's bytes). Encoding follows run.c: a
+ * leading space, one token per UTF-8 character (or <0xXX> byte tokens for unknown ones), then the
+ * best-scoring adjacent pair is merged until no pair is in the vocabulary.
+ */
+public class Llama2Tokenizer {
+    public static final int BOS = 1;
+    public static final int EOS = 2;
+
+    private final byte[][] pieces;
+    private final float[] scores;
+    // Pieces as ISO-8859-1 strings, so every byte maps to one char and lookups are byte-exact
+    private final Map<String, Integer> ids = new HashMap<>();
+
+    public Llama2Tokenizer(File file, int vocabSize) throws IOException {
+        pieces = new byte[vocabSize][];
+        scores = new float[vocabSize];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            readIntLE(in); // max token length, not needed here
+            for (int i = 0; i < vocabSize; i++) {
+                scores[i] = Float.intBitsToFloat(readIntLE(in));
+                int length = readIntLE(in);
+                pieces[i] = new byte[length];
+                in.readFully(pieces[i]);
+                ids.putIfAbsent(key(pieces[i]), i);
+            }
+        }
+    }
+
+    private static int readIntLE(InputStream in) throws IOException {
+        int b0 = in.read(), b1 = in.read(), b2 = in.read(), b3 = in.read();
+        if ((b0 | b1 | b2 | b3) < 0) {
+            throw new IOException("Tokenizer file ends early");
+        }
+        return b0 | (b1 << 8) | (b2 << 16) | (b3 << 24);
+    }
+
+    private static String key(byte[] bytes) {
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    public List<Integer> encode(String text, boolean bos, boolean eos) {
+        List<Integer> tokens = new ArrayList<>();
+        if (!text.isEmpty()) {
+            Integer space = ids.get(" ");
+            if (space != null) tokens.add(space);
+        }
+
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < bytes.length; ) {
+            // One UTF-8 character: a lead byte and its continuation bytes (at most 4)
+            int end = i + 1;
+            while (end < bytes.length && end - i < 4 && (bytes[end] & 0xC0) == 0x80) {
+                end++;
+            }
+            Integer id = ids.get(new String(bytes, i, end - i, StandardCharsets.ISO_8859_1));
+            if (id != null) {
+                tokens.add(id);
+            } else {
+                // Byte fallback: <0x00>..<0xFF> are tokens 3..258
+                for (int b = i; b < end; b++) {
+                    tokens.add((bytes[b] & 0xFF) + 3);
+                }
+            }
+            i = end;
+        }
+
+        while (true) {
+            float bestScore = Float.NEGATIVE_INFINITY;
+            int bestId = -1;
+            int bestIndex = -1;
+            for (int i = 0; i + 1 < tokens.size(); i++) {
+                Integer merged = ids.get(key(pieces[tokens.get(i)]) + key(pieces[tokens.get(i + 1)]));
+                if (merged != null && scores[merged] > bestScore) {
+                    bestScore = scores[merged];
+                    bestId = merged;
+                    bestIndex = i;
+                }
+            }
+            if (bestIndex < 0) {
+                break;
+            }
+            tokens.set(bestIndex, bestId);
+            tokens.remove(bestIndex + 1);
+        }
+
+        if (bos) tokens.add(0, BOS);
+        if (eos) tokens.add(EOS);
+        return tokens;
+    }
+
+    /** Appends the bytes of token (following previous) to out. */
+    public void decode(int previous, int token, ByteArrayOutputStream out) {
+        byte[] piece = pieces[token];
+        int start = 0;
+        // SentencePiece drops the leading space of the first piece after BOS
+        if (previous == BOS && piece.length > 0 && piece[0] == ' ') {
+            start = 1;
+        }
+        // Raw byte tokens look like <0x0A>
+        if (piece.length == 6 && piece[0] == '<' && piece[1] == '0' && piece[2] == 'x' && piece[5] == '>') {
+            try {
+                out.write(Integer.parseInt(new String(piece, 3, 2, StandardCharsets.US_ASCII), 16));
+                return;
+            } catch (NumberFormatException e) {
+                // an ordinary piece that merely looks like one
+            }
+        }
+        out.write(piece, start, piece.length - start);
+    }
+}
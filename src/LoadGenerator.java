@@ -0,0 +1,253 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load generator for a LocalAI host, built on the same request path as the chat window
+ * (ChatBackend and Message histories with prompt caching), so --endpoint embedded:/path/model.bin
+ * measures the in-process engine. Each virtual user holds a multi-turn conversation, so prompts
+ * grow the way real chats do.
+ *
+ *   closed loop: --users N users, each sends its next turn when the previous reply is done
+ *                (plus --think-ms); measures what N people at their desks experience.
+ *   open loop:   --rate R new turns per second regardless of how fast replies come back;
+ *                latency is measured from the scheduled start, so queueing isn't hidden.
+ *
+ * Time to first token and total latency go into LatencyHistograms. A summary line per run is
+ * appended to loadtest-results.csv (--out) and compared with the previous run.
+ *
+ * Usage: java LoadGenerator --endpoint http://192.168.0.25:8080 --model NAME
+ *                           [--mode closed|open] [--users 4] [--rate 1.0] [--duration 60]
+ *                           [--turns 5] [--think-ms 1000] [--prompts file] [--out dir] [--label text]
+ */
+public class LoadGenerator {
+    private static final String[] DEFAULT_PROMPTS = {
+            "Explain what a hash map is in two paragraphs.",
+            "Write a Java method that reverses a linked list.",
+            "What are the trade-offs between TCP and UDP?",
+            "Summarize the previous answer in three bullet points.",
+            "Give me an example of that in Python.",
+            "How would you test that code?",
+    };
+
+    private final ChatBackend client;
+    private final String model;
+    private final List<String> prompts;
+    private final int turns;
+    private final long thinkMillis;
+
+    private final LatencyHistogram ttft = new LatencyHistogram();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong tokens = new AtomicLong();
+
+    public LoadGenerator(String endpoint, String model, List<String> prompts, int turns, long thinkMillis) {
+        this.client = ChatBackends.forEndpoint(endpoint);
+        // Benchmark turns are not real usage, and the ledger's disk write would land inside the timings
+        UsageLedger.setEnabled(false);
+        this.model = model;
+        this.prompts = prompts;
+        this.turns = turns;
+        this.thinkMillis = thinkMillis;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String endpoint = "http://192.168.0.25:8080";
+        String model = null;
+        String mode = "closed";
+        int users = 4;
+        double rate = 1.0;
+        int duration = 60;
+        int turns = 5;
+        long thinkMillis = 1000;
+        File promptsFile = null;
+        File outDir = new File(".");
+        String label = "";
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--endpoint": endpoint = value; break;
+                case "--model": model = value; break;
+                case "--mode": mode = value; break;
+                case "--users": users = Integer.parseInt(value); break;
+                case "--rate": rate = Double.parseDouble(value); break;
+                case "--duration": duration = Integer.parseInt(value); break;
+                case "--turns": turns = Integer.parseInt(value); break;
+                case "--think-ms": thinkMillis = Long.parseLong(value); break;
+                case "--prompts": promptsFile = new File(value); break;
+                case "--out": outDir = new File(value); break;
+                case "--label": label = value; break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(2);
+            }
+        }
+        if (model == null) {
+            System.err.println("--model is required");
+            System.exit(2);
+        }
+
+        List<String> prompts = new ArrayList<>(List.of(DEFAULT_PROMPTS));
+        if (promptsFile != null) {
+            prompts.clear();
+            for (String line : Files.readAllLines(promptsFile.toPath(), StandardCharsets.UTF_8)) {
+                if (!line.trim().isEmpty()) prompts.add(line.trim());
+            }
+        }
+
+        LoadGenerator generator = new LoadGenerator(endpoint, model, prompts, turns, thinkMillis);
+        long start = System.nanoTime();
+        if (mode.equals("open")) {
+            generator.runOpenLoop(rate, duration);
+        } else {
+            generator.runClosedLoop(users, duration);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        String description = mode.equals("open") ? "open rate=" + rate : "closed users=" + users;
+        generator.report(System.out, description, seconds);
+        generator.save(outDir, label, description, seconds);
+    }
+
+    public void runClosedLoop(int users, int durationSeconds) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds);
+        ExecutorService pool = Executors.newFixedThreadPool(users);
+        for (int u = 0; u < users; u++) {
+            Random random = new Random(u);
+            pool.execute(() -> {
+                List<Message> history = new ArrayList<>();
+                while (System.nanoTime() < deadline) {
+                    if (history.size() >= turns * 2) {
+                        history.clear(); // start a fresh conversation
+                    }
+                    sendTurn(history, random, System.nanoTime());
+                    try {
+                        Thread.sleep(thinkMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(durationSeconds + 3600L, TimeUnit.SECONDS);
+    }
+
+    public void runOpenLoop(double ratePerSecond, int durationSeconds) throws InterruptedException {
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        ExecutorService pool = Executors.newCachedThreadPool();
+        Random random = new Random(0);
+
+        // A pool of conversations that arrivals are spread across round-robin
+        int conversationCount = Math.max(1, (int) Math.ceil(ratePerSecond * 10));
+        List<List<Message>> conversations = new ArrayList<>();
+        for (int i = 0; i < conversationCount; i++) conversations.add(new ArrayList<>());
+
+        long scheduled = start;
+        int next = 0;
+        while (scheduled < deadline) {
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+
+            List<Message> history = conversations.get(next++ % conversationCount);
+            long intendedStart = scheduled;
+            pool.execute(() -> {
+                // Turns of one conversation still go one at a time, like a real user
+                synchronized (history) {
+                    if (history.size() >= turns * 2) history.clear();
+                    sendTurn(history, random, intendedStart);
+                }
+            });
+            scheduled += interval;
+        }
+        pool.shutdown();
+        pool.awaitTermination(durationSeconds + 3600L, TimeUnit.SECONDS);
+    }
+
+    private void sendTurn(List<Message> history, Random random, long startNanos) {
+        String prompt;
+        synchronized (random) {
+            prompt = prompts.get(random.nextInt(prompts.size()));
+        }
+        history.add(new Message("user", prompt));
+
+        StringBuilder reply = new StringBuilder();
+        long[] firstToken = {0};
+        try {
+            client.streamChatRequestWithHistory(model, history, -1, null, delta -> {
+                if (firstToken[0] == 0) firstToken[0] = System.nanoTime();
+                tokens.incrementAndGet();
+                reply.append(delta);
+            });
+            long end = System.nanoTime();
+            ttft.record(TimeUnit.NANOSECONDS.toMillis((firstToken[0] != 0 ? firstToken[0] : end) - startNanos));
+            latency.record(TimeUnit.NANOSECONDS.toMillis(end - startNanos));
+            completed.incrementAndGet();
+            history.add(new Message("assistant", reply.toString()));
+        } catch (IOException e) {
+            errors.incrementAndGet();
+            history.remove(history.size() - 1);
+            System.err.println("Request failed: " + e.getMessage());
+        }
+    }
+
+    public void report(java.io.PrintStream out, String description, double seconds) {
+        out.printf("Load test: %s, model %s, %.1f s%n", description, model, seconds);
+        out.printf("  completed %d, errors %d, throughput %.2f req/s, %.1f tokens/s%n",
+                completed.get(), errors.get(), completed.get() / seconds, tokens.get() / seconds);
+        out.printf("  TTFT    ms: p50 %d  p90 %d  p99 %d  max %d  mean %.1f%n",
+                ttft.getPercentile(50), ttft.getPercentile(90), ttft.getPercentile(99), ttft.getMax(), ttft.getMean());
+        out.printf("  latency ms: p50 %d  p90 %d  p99 %d  max %d  mean %.1f%n",
+                latency.getPercentile(50), latency.getPercentile(90), latency.getPercentile(99), latency.getMax(), latency.getMean());
+    }
+
+    // Appends one CSV row per run and prints the change against the previous row
+    public void save(File outDir, String label, String description, double seconds) throws IOException {
+        File results = new File(outDir, "loadtest-results.csv");
+        boolean exists = results.exists();
+        String previous = null;
+        if (exists) {
+            List<String> lines = Files.readAllLines(results.toPath(), StandardCharsets.UTF_8);
+            if (lines.size() > 1) previous = lines.get(lines.size() - 1);
+        }
+
+        String row = String.format(java.util.Locale.ROOT, "%s,%s,%s,%s,%.1f,%d,%d,%.3f,%.1f,%d,%d,%d,%d,%d,%d",
+                LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME),
+                label.replace(",", " "), description, model, seconds, completed.get(), errors.get(),
+                completed.get() / seconds, tokens.get() / seconds,
+                ttft.getPercentile(50), ttft.getPercentile(90), ttft.getPercentile(99),
+                latency.getPercentile(50), latency.getPercentile(90), latency.getPercentile(99));
+
+        try (PrintWriter writer = new PrintWriter(new FileWriter(results, true))) {
+            if (!exists) {
+                writer.println("timestamp,label,mode,model,seconds,completed,errors,req_per_s,tokens_per_s," +
+                        "ttft_p50,ttft_p90,ttft_p99,latency_p50,latency_p90,latency_p99");
+            }
+            writer.println(row);
+        }
+        System.out.println("Saved to " + results.getAbsolutePath());
+
+        if (previous != null) {
+            String[] before = previous.split(",");
+            String[] now = row.split(",");
+            System.out.printf("  vs previous run (%s): req/s %s -> %s, TTFT p90 %s -> %s ms, latency p90 %s -> %s ms%n",
+                    before[0], before[7], now[7], before[10], now[10], before[13], now[13]);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+// LocalAI Client implementation
+public class LocalAIClient implements ChatBackend {
+    private final String baseUrl;
+
+    public LocalAIClient(String baseUrl) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+    }
+
+    @Override
+    public String getAvailableModels() throws IOException {
+        String endpoint = baseUrl + "/v1/models";
+        return sendGetRequest(endpoint);
+    }
+
+    public ResponseBody sendChatRequestWithHistory(String model, List<Message> messages) throws IOException {
+        return sendChatRequestWithHistory(model, messages, -1);
+    }
+
+    /**
+     * Non-streaming chat request. slotId pins the request to a llama.cpp slot (-1 lets LocalAI pick one).
+     * The reply stays as raw bytes; close it when done.
+     */
+    public ResponseBody sendChatRequestWithHistory(String model, List<Message> messages, int slotId) throws IOException {
+        return sendChatRequestWithHistory(model, messages, slotId, 1);
+    }
+
+    /**
+     * Asks for several alternative replies ("n") in one request, so the prompt is only evaluated
+     * once. They come back as choices[0..n-1]; servers that ignore "n" return just one.
+     */
+    public ResponseBody sendChatRequestWithHistory(String model, List<Message> messages, int slotId,
+                                                   int candidates) throws IOException {
+        return sendChatRequestWithHistory(model, messages, slotId, candidates, null);
+    }
+
+    /**
+     * With tools (a JSON array of OpenAI-style function definitions) the model may answer with
+     * choices[0].message.tool_calls instead of content; see ToolCalling.
+     */
+    @Override
+    public ResponseBody sendChatRequestWithHistory(String model, List<Message> messages, int slotId,
+                                                   int candidates, String tools) throws IOException {
+        String endpoint = baseUrl + "/v1/chat/completions";
+        ResponseBody response = HttpTransport.postForBody(endpoint,
+                buildChatRequest(model, messages, slotId, false, candidates, tools), Collections.emptyMap());
+        UsageLedger.record(model, response);
+        return response;
+    }
+
+    /**
+     * Streaming variant: each content delta goes to onDelta as it arrives.
+     * Returns the raw SSE events, one per line.
+     */
+    public String streamChatRequestWithHistory(String model, List<Message> messages, int slotId,
+                                               Consumer<String> onDelta) throws IOException {
+        return streamChatRequestWithHistory(model, messages, slotId, null, onDelta);
+    }
+
+    @Override
+    public String streamChatRequestWithHistory(String model, List<Message> messages, int slotId,
+                                               HttpTransport.CancelHandle cancel, Consumer<String> onDelta) throws IOException {
+        String endpoint = baseUrl + "/v1/chat/completions";
+        StringBuilder raw = new StringBuilder();
+        HttpTransport.postStream(endpoint, buildChatRequest(model, messages, slotId, true, 1, null), Collections.emptyMap(), cancel, data -> {
+            raw.append(data).append('\n');
+            // A JSON null delta (tool-call chunks) is skipped rather than read as the text "null"
+            String delta = new JsonBytes(ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8)))
+                    .getString("choices", "0", "delta", "content");
+            if (delta != null && !delta.isEmpty()) {
+                onDelta.accept(delta);
+            }
+        });
+        UsageLedger.recordStream(model, raw.toString());
+        return raw.toString();
+    }
+
+    // Generation settings come from the model's profile (ModelProfile); 16000 tokens at 0.7 without one
+    private RequestBody buildChatRequest(String model, List<Message> history, int slotId, boolean stream, int candidates,
+                                    String tools) {
+        ModelProfile profile = ModelProfile.forModel(model);
+        int maxTokens = profile.getMaxTokens(16000);
+        List<Message> messages = profile.fit(history, maxTokens);
+        maxTokens = profile.fitMaxTokens(messages, maxTokens);
+
+        // cache_prompt lets llama.cpp keep the evaluated prefix in its KV cache between turns
+        String cacheOptions = "";
+        if (Boolean.parseBoolean(System.getProperty("localai.cachePrompt", "true"))) {
+            cacheOptions += ", \"cache_prompt\": true";
+        }
+        if (slotId >= 0) {
+            cacheOptions += ", \"id_slot\": " + slotId;
+        }
+        if (candidates > 1) {
+            cacheOptions += ", \"n\": " + candidates;
+        }
+        if (tools != null) {
+            cacheOptions += ", \"tools\": " + tools;
+        }
+
+        RequestBody body = new RequestBody().append("{\"model\": \"" + model + "\", \"messages\": [");
+        for (int i = 0; i < messages.size(); i++) {
+            if (i > 0) body.append(",");
+            messages.get(i).appendJson(body);
+        }
+        return body.append(String.format("], \"max_tokens\": %d, \"temperature\": %s%s, \"stream\": %b%s}",
+                maxTokens, profile.getTemperature(0.7), profile.getSamplingJson(), stream, cacheOptions));
+    }
+
+    private String sendGetRequest(String endpoint) throws IOException {
+        return HttpTransport.get(endpoint);
+    }
+
+    public String sendPostRequest(String endpoint, String requestBody) throws IOException {
+        return HttpTransport.post(endpoint, requestBody, Collections.emptyMap());
+    }
+}
@@ -1,9 +1,11 @@
 import javax.swing.JOptionPane;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
@@ -218,16 +220,20 @@ public class LocalAIModelManager {
             HttpRequest request = HttpRequest.newBuilder()
                     .uri(URI.create(url))
                     .header("Accept", "application/json")
+                    .header("Accept-Encoding", "gzip, deflate")
                     .GET()
                     .build();
 
-            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<InputStream> response = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            String encoding = response.headers().firstValue("Content-Encoding").orElse(null);
 
-            if (response.statusCode() == 200) {
-                return response.body();
-            } else {
-                System.err.println("Failed to list models. Status: " + response.statusCode());
-                return null;
+            try (InputStream body = HttpTransport.decode(response.body(), encoding)) {
+                if (response.statusCode() == 200) {
+                    return new String(body.readAllBytes(), StandardCharsets.UTF_8);
+                } else {
+                    System.err.println("Failed to list models. Status: " + response.statusCode());
+                    return null;
+                }
             }
 
         } catch (Exception e) {
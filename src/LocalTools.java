@@ -0,0 +1,241 @@
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The tools offered to the model by ToolCalling: reading a local file, arithmetic, and searching
+ * saved conversations. Files are only read below -Dtools.fileRoots (comma separated, default the
+ * working directory); conversations are searched in -Dtools.conversationsDir (default the home
+ * directory, two levels deep).
+ */
+public class LocalTools {
+    private static final int MAX_FILE_CHARS = 32 * 1024;
+    private static final int MAX_MATCHES = 50;
+
+    public static List<ToolCalling.Tool> all() {
+        return Arrays.asList(new ReadFile(), new Calculate(), new GrepConversations());
+    }
+
+    private static String require(JsonBytes arguments, String name) {
+        String value = arguments.getString(name);
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("missing argument \"" + name + "\"");
+        }
+        return value;
+    }
+
+    static class ReadFile implements ToolCalling.Tool {
+        public String getName() {
+            return "read_file";
+        }
+
+        public String getDescription() {
+            return "Returns the text of a local file (the first " + MAX_FILE_CHARS + " characters).";
+        }
+
+        public String getParameters() {
+            return "{\"type\": \"object\", \"properties\": {\"path\": {\"type\": \"string\", "
+                    + "\"description\": \"File path, absolute or relative to the working directory\"}}, "
+                    + "\"required\": [\"path\"]}";
+        }
+
+        public String call(JsonBytes arguments) throws IOException {
+            Path path = Paths.get(require(arguments, "path")).toAbsolutePath().normalize();
+            if (!isAllowed(path)) {
+                throw new IOException(path + " is outside the readable folders");
+            }
+            // Only what is sent is read, so a huge file costs no more than a small one
+            char[] text = new char[MAX_FILE_CHARS + 1];
+            int length = 0;
+            try (Reader reader = new InputStreamReader(Files.newInputStream(path), StandardCharsets.UTF_8)) {
+                for (int n; length < text.length && (n = reader.read(text, length, text.length - length)) != -1; ) {
+                    length += n;
+                }
+            }
+            return length <= MAX_FILE_CHARS ? new String(text, 0, length)
+                    : new String(text, 0, MAX_FILE_CHARS) + "\n[truncated, " + Files.size(path) + " bytes in total]";
+        }
+
+        private static boolean isAllowed(Path path) throws IOException {
+            Path real = path.toRealPath();
+            for (String root : System.getProperty("tools.fileRoots", System.getProperty("user.dir")).split(",")) {
+                if (!root.trim().isEmpty() && real.startsWith(Paths.get(root.trim()).toRealPath())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    static class Calculate implements ToolCalling.Tool {
+        public String getName() {
+            return "calculate";
+        }
+
+        public String getDescription() {
+            return "Evaluates an arithmetic expression with + - * / % ^, parentheses and sqrt, e.g. (3 + 4) * 2 ^ 10.";
+        }
+
+        public String getParameters() {
+            return "{\"type\": \"object\", \"properties\": {\"expression\": {\"type\": \"string\"}}, "
+                    + "\"required\": [\"expression\"]}";
+        }
+
+        public String call(JsonBytes arguments) {
+            double value = new ExpressionParser(require(arguments, "expression")).parse();
+            return value == Math.rint(value) && Math.abs(value) < 1e15 ? String.valueOf((long) value) : String.valueOf(value);
+        }
+    }
+
+    static class GrepConversations implements ToolCalling.Tool {
+        public String getName() {
+            return "grep_conversations";
+        }
+
+        public String getDescription() {
+            return "Finds lines containing the given text (case-insensitive) in saved conversations.";
+        }
+
+        public String getParameters() {
+            return "{\"type\": \"object\", \"properties\": {\"pattern\": {\"type\": \"string\"}}, "
+                    + "\"required\": [\"pattern\"]}";
+        }
+
+        public String call(JsonBytes arguments) throws IOException {
+            String pattern = require(arguments, "pattern").toLowerCase();
+            Path dir = Paths.get(System.getProperty("tools.conversationsDir", System.getProperty("user.home")));
+            List<Path> files;
+            try (Stream<Path> walk = Files.walk(dir, 2)) {
+                files = walk.filter(p -> {
+                    String name = p.getFileName().toString().toLowerCase();
+                    return (name.endsWith(".txt") || name.endsWith(".zip")) && Files.isRegularFile(p);
+                }).collect(Collectors.toList());
+            }
+
+            List<String> matches = new ArrayList<>();
+            for (Path file : files) {
+                if (Thread.currentThread().isInterrupted()) {
+                    break; // timed out
+                }
+                String[] lines;
+                try {
+                    lines = FileLoader.readFile(file.toFile()).split("\n");
+                } catch (IOException e) {
+                    continue;
+                }
+                for (int i = 0; i < lines.length && matches.size() < MAX_MATCHES; i++) {
+                    if (lines[i].toLowerCase().contains(pattern)) {
+                        matches.add(file.getFileName() + ":" + (i + 1) + ": " + lines[i].trim());
+                    }
+                }
+            }
+            return matches.isEmpty() ? "No matches in " + files.size() + " saved conversations"
+                    : String.join("\n", matches);
+        }
+    }
+
+    // Recursive descent: sum := product (('+'|'-') product)*, product := unary (('*'|'/'|'%') unary)*,
+    // unary := '-' unary | power, power := atom ('^' unary)?
+    private static class ExpressionParser {
+        private final String text;
+        private int pos;
+
+        ExpressionParser(String text) {
+            this.text = text;
+        }
+
+        double parse() {
+            double value = sum();
+            skipSpaces();
+            if (pos < text.length()) {
+                throw new IllegalArgumentException("unexpected '" + text.charAt(pos) + "' at position " + pos);
+            }
+            return value;
+        }
+
+        private double sum() {
+            double value = product();
+            while (true) {
+                if (eat('+')) value += product();
+                else if (eat('-')) value -= product();
+                else return value;
+            }
+        }
+
+        private double product() {
+            double value = unary();
+            while (true) {
+                if (eat('*')) value *= unary();
+                else if (eat('/')) value /= unary();
+                else if (eat('%')) value %= unary();
+                else return value;
+            }
+        }
+
+        private double unary() {
+            if (eat('-')) return -unary();
+            if (eat('+')) return unary();
+            return power();
+        }
+
+        private double power() {
+            double base = atom();
+            return eat('^') ? Math.pow(base, unary()) : base;
+        }
+
+        private double atom() {
+            if (eat('(')) {
+                double value = sum();
+                expect(')');
+                return value;
+            }
+            skipSpaces();
+            if (text.startsWith("sqrt", pos)) {
+                pos += 4;
+                expect('(');
+                double value = sum();
+                expect(')');
+                return Math.sqrt(value);
+            }
+            int start = pos;
+            while (pos < text.length() && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.')) {
+                pos++;
+            }
+            if (start == pos) {
+                throw new IllegalArgumentException(pos < text.length()
+                        ? "unexpected '" + text.charAt(pos) + "' at position " + pos : "expression ends too early");
+            }
+            return Double.parseDouble(text.substring(start, pos));
+        }
+
+        private boolean eat(char c) {
+            skipSpaces();
+            if (pos < text.length() && text.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!eat(c)) {
+                throw new IllegalArgumentException("expected '" + c + "' at position " + pos);
+            }
+        }
+
+        private void skipSpaces() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+    }
+}
@@ -0,0 +1,393 @@
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.swing.JTextPane;
+import javax.swing.SwingUtilities;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.StyledDocument;
+
+/**
+ * Markdown and code highlighting for the chat pane (-Dmarkdown.highlight=false turns it off).
+ * The text itself is never changed: headings, bold, italics, inline code and fenced code blocks
+ * (with keywords, strings, comments and numbers) only get character attributes.
+ *
+ * Tokenizing runs on a background thread, which reads the text under the document's read lock;
+ * the EDT only applies the resulting attribute runs. All a line needs to know about the text
+ * before it is whether it's inside a fence and whether it opens a paragraph, so each pass
+ * remembers that at the start of the last, possibly unfinished line, and the next pass starts there. While a reply
+ * streams in, only its last line is tokenized again. Anything else (a new document, text removed
+ * or inserted further up) starts over from the top.
+ */
+public class MarkdownHighlighter {
+    private static final long DELAY_MS = 40;
+
+    private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "markdown-highlight");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Marks the runs this class styled, so they can be reset without touching the You:/AI: labels
+    private static final Object HIGHLIGHTED = new Object() {
+        @Override
+        public String toString() {
+            return "markdown";
+        }
+    };
+    private static final Object[] STYLE_KEYS = {HIGHLIGHTED, StyleConstants.FontFamily, StyleConstants.FontSize,
+            StyleConstants.Bold, StyleConstants.Italic, StyleConstants.Foreground, StyleConstants.Background};
+
+    private static final int HEADING = 0, BOLD = 1, ITALIC = 2, INLINE_CODE = 3, CODE = 4, FENCE = 5,
+            KEYWORD = 6, STRING = 7, COMMENT = 8, NUMBER = 9, QUOTE = 10;
+    private static final AttributeSet[] STYLES = new AttributeSet[11];
+
+    static {
+        Color codeBackground = new Color(0xF2, 0xF2, 0xF2);
+        STYLES[HEADING] = style(a -> {
+            StyleConstants.setBold(a, true);
+            StyleConstants.setFontSize(a, 16);
+        });
+        STYLES[BOLD] = style(a -> StyleConstants.setBold(a, true));
+        STYLES[ITALIC] = style(a -> StyleConstants.setItalic(a, true));
+        STYLES[INLINE_CODE] = style(a -> {
+            StyleConstants.setFontFamily(a, "Monospaced");
+            StyleConstants.setBackground(a, codeBackground);
+        });
+        STYLES[CODE] = STYLES[INLINE_CODE];
+        STYLES[FENCE] = style(a -> {
+            StyleConstants.setFontFamily(a, "Monospaced");
+            StyleConstants.setForeground(a, Color.GRAY);
+        });
+        STYLES[KEYWORD] = style(a -> {
+            StyleConstants.setForeground(a, new Color(0x7F, 0x00, 0x55));
+            StyleConstants.setBold(a, true);
+        });
+        STYLES[STRING] = style(a -> StyleConstants.setForeground(a, new Color(0x2A, 0x80, 0x00)));
+        STYLES[COMMENT] = style(a -> {
+            StyleConstants.setForeground(a, Color.GRAY);
+            StyleConstants.setItalic(a, true);
+        });
+        STYLES[NUMBER] = style(a -> StyleConstants.setForeground(a, new Color(0x00, 0x55, 0xAA)));
+        STYLES[QUOTE] = style(a -> {
+            StyleConstants.setForeground(a, Color.DARK_GRAY);
+            StyleConstants.setItalic(a, true);
+        });
+    }
+
+    private static AttributeSet style(java.util.function.Consumer<SimpleAttributeSet> setup) {
+        SimpleAttributeSet attributes = new SimpleAttributeSet();
+        attributes.addAttribute(HIGHLIGHTED, Boolean.TRUE);
+        setup.accept(attributes);
+        return attributes;
+    }
+
+    // Keywords of the usual languages in answers (Java, C, Python, JavaScript, Go, Rust, shell, SQL)
+    private static final Set<String> KEYWORDS = new HashSet<>(Arrays.asList(
+            "abstract", "and", "as", "async", "await", "boolean", "break", "case", "catch", "char", "class",
+            "const", "continue", "def", "default", "del", "do", "double", "elif", "else", "enum", "except",
+            "export", "extends", "false", "False", "final", "finally", "float", "fn", "for", "from", "func",
+            "function", "go", "if", "impl", "implements", "import", "in", "int", "interface", "is", "lambda",
+            "let", "long", "match", "mut", "new", "nil", "None", "not", "null", "or", "package", "pass",
+            "private", "protected", "pub", "public", "raise", "return", "self", "static", "struct", "super",
+            "switch", "this", "throw", "throws", "true", "True", "try", "type", "use", "var", "void", "while",
+            "with", "yield", "fi", "then", "done", "esac", "echo", "SELECT", "FROM", "WHERE", "INSERT",
+            "UPDATE", "DELETE", "JOIN", "ORDER", "GROUP", "BY"));
+    // Languages whose comments start with '#'
+    private static final Set<String> HASH_COMMENTS = new HashSet<>(Arrays.asList(
+            "python", "py", "sh", "bash", "shell", "zsh", "ruby", "rb", "yaml", "yml", "toml", "perl", "r",
+            "properties", "dockerfile", "makefile", "conf", "ini"));
+
+    private static final Pattern HEADING_LINE = Pattern.compile("#{1,6}\\s.*");
+    private static final Pattern LABEL = Pattern.compile("[^\\s:#>`*][^:\\n]{0,40}: ");
+    private static final Pattern QUOTE_LINE = Pattern.compile(">.*");
+    private static final Pattern INLINE_CODE_SPAN = Pattern.compile("`[^`]+`");
+    private static final Pattern BOLD_SPAN = Pattern.compile("\\*\\*[^*\\s](?:[^*]*[^*\\s])?\\*\\*|__[^_\\s](?:[^_]*[^_\\s])?__");
+    private static final Pattern ITALIC_SPAN = Pattern.compile(
+            "(?<![*\\w])\\*[^*\\s](?:[^*]*[^*\\s])?\\*(?![*\\w])|(?<![_\\w])_[^_\\s](?:[^_]*[^_\\s])?_(?![_\\w])");
+
+    /**
+     * Where the next pass starts: a line start, whether that line is inside a fence (and its
+     * language), and whether it opens a paragraph, where it may start with a "You: " label.
+     */
+    private static class Checkpoint {
+        final int offset;
+        final String fenceLanguage; // null outside a fence, "" for a fence without a language
+        final boolean paragraphStart;
+
+        Checkpoint(int offset, String fenceLanguage, boolean paragraphStart) {
+            this.offset = offset;
+            this.fenceLanguage = fenceLanguage;
+            this.paragraphStart = paragraphStart;
+        }
+    }
+
+    /** Attribute runs for the text from start to end, and the checkpoint for the next pass. */
+    private static class Pass {
+        final int start;
+        final int end;
+        final List<int[]> spans = new ArrayList<>(); // {offset, length, style}
+        Checkpoint next;
+
+        Pass(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /** Highlighting state of one document; only touched on the EDT. */
+    private static class Tracker implements DocumentListener {
+        final StyledDocument document;
+        Checkpoint checkpoint = new Checkpoint(0, null, true);
+        int generation;
+        boolean scheduled;
+        boolean detached;
+
+        Tracker(StyledDocument document) {
+            this.document = document;
+        }
+
+        @Override
+        public void insertUpdate(DocumentEvent e) {
+            if (e.getOffset() < checkpoint.offset) {
+                restart();
+            }
+            schedule(this);
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+            restart();
+            schedule(this);
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+            // attribute changes, including our own
+        }
+
+        void restart() {
+            checkpoint = new Checkpoint(0, null, true);
+            generation++;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(System.getProperty("markdown.highlight", "true"));
+    }
+
+    /** Highlights the pane's document, and every document set on it later. Call on the EDT. */
+    public static void install(JTextPane pane) {
+        if (!isEnabled()) {
+            return;
+        }
+        Tracker[] current = {attach(pane.getStyledDocument())};
+        pane.addPropertyChangeListener("document", e -> {
+            current[0].detached = true;
+            current[0].document.removeDocumentListener(current[0]);
+            current[0] = attach(pane.getStyledDocument());
+        });
+    }
+
+    private static Tracker attach(StyledDocument document) {
+        Tracker tracker = new Tracker(document);
+        document.addDocumentListener(tracker);
+        schedule(tracker);
+        return tracker;
+    }
+
+    // At most one pass per document is queued or running; text arriving meanwhile is picked up by the next one
+    private static void schedule(Tracker tracker) {
+        if (tracker.scheduled || tracker.detached) {
+            return;
+        }
+        tracker.scheduled = true;
+        Checkpoint from = tracker.checkpoint;
+        int generation = tracker.generation;
+        EXECUTOR.schedule(() -> {
+            Pass pass = tokenize(tracker.document, from);
+            SwingUtilities.invokeLater(() -> apply(tracker, pass, generation));
+        }, DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static Pass tokenize(Document document, Checkpoint from) {
+        String[] text = new String[1];
+        int[] end = new int[1];
+        document.render(() -> {
+            end[0] = document.getLength();
+            try {
+                text[0] = document.getText(from.offset, Math.max(0, end[0] - from.offset));
+            } catch (BadLocationException e) {
+                text[0] = "";
+                end[0] = from.offset;
+            }
+        });
+        Pass pass = new Pass(from.offset, from.offset + text[0].length());
+        tokenize(text[0], from, pass);
+        return pass;
+    }
+
+    private static void apply(Tracker tracker, Pass pass, int generation) {
+        tracker.scheduled = false;
+        if (tracker.detached) {
+            return;
+        }
+        if (generation != tracker.generation || pass.end > tracker.document.getLength()) {
+            schedule(tracker);
+            return;
+        }
+        clear(tracker.document, pass.start, pass.end);
+        for (int[] span : pass.spans) {
+            tracker.document.setCharacterAttributes(span[0], span[1], STYLES[span[2]], false);
+        }
+        tracker.checkpoint = pass.next;
+        if (tracker.document.getLength() > pass.end) {
+            schedule(tracker);
+        }
+    }
+
+    // Takes this class's attributes off the runs it styled earlier, leaving other runs as they are
+    private static void clear(StyledDocument document, int start, int end) {
+        int offset = start;
+        while (offset < end) {
+            Element run = document.getCharacterElement(offset);
+            int runEnd = Math.min(run.getEndOffset(), end);
+            if (run.getAttributes().isDefined(HIGHLIGHTED)) {
+                SimpleAttributeSet kept = new SimpleAttributeSet(run.getAttributes());
+                for (Object key : STYLE_KEYS) {
+                    kept.removeAttribute(key);
+                }
+                document.setCharacterAttributes(offset, runEnd - offset, kept, true);
+            }
+            offset = Math.max(runEnd, offset + 1);
+        }
+    }
+
+    // Line by line from the checkpoint; the last line may still be growing, so the next pass starts on it again
+    static void tokenize(String text, Checkpoint from, Pass pass) {
+        String fenceLanguage = from.fenceLanguage;
+        boolean paragraphStart = from.paragraphStart;
+        int lineStart = 0;
+        Checkpoint next = from;
+        while (lineStart <= text.length()) {
+            int newline = text.indexOf('\n', lineStart);
+            int lineEnd = newline < 0 ? text.length() : newline;
+            next = new Checkpoint(pass.start + lineStart, fenceLanguage, paragraphStart);
+            String line = text.substring(lineStart, lineEnd);
+            int base = pass.start + lineStart;
+
+            String trimmed = line.trim();
+            if (trimmed.startsWith("```")) {
+                add(pass, base, line.length(), FENCE);
+                fenceLanguage = fenceLanguage == null ? trimmed.substring(3).trim().toLowerCase() : null;
+            } else if (fenceLanguage != null) {
+                add(pass, base, line.length(), CODE);
+                tokenizeCode(line, base, fenceLanguage, pass);
+            } else {
+                // The chat pane puts the speaker's label in front of each message's first line
+                Matcher label = paragraphStart ? LABEL.matcher(line) : null;
+                int skip = label != null && label.lookingAt() ? label.end() : 0;
+                tokenizeMarkdown(line.substring(skip), base + skip, pass);
+            }
+            paragraphStart = trimmed.isEmpty();
+            if (newline < 0) {
+                break;
+            }
+            lineStart = newline + 1;
+        }
+        pass.next = next;
+    }
+
+    private static void tokenizeMarkdown(String line, int base, Pass pass) {
+        if (HEADING_LINE.matcher(line).matches()) {
+            add(pass, base, line.length(), HEADING);
+            return;
+        }
+        if (QUOTE_LINE.matcher(line).matches()) {
+            add(pass, base, line.length(), QUOTE);
+        }
+        // Inline code first; emphasis markers inside it are literal
+        boolean[] inCode = new boolean[line.length()];
+        Matcher code = INLINE_CODE_SPAN.matcher(line);
+        while (code.find()) {
+            add(pass, base + code.start(), code.end() - code.start(), INLINE_CODE);
+            Arrays.fill(inCode, code.start(), code.end(), true);
+        }
+        addOutsideCode(BOLD_SPAN.matcher(line), inCode, base, BOLD, pass);
+        addOutsideCode(ITALIC_SPAN.matcher(line), inCode, base, ITALIC, pass);
+    }
+
+    private static void addOutsideCode(Matcher matcher, boolean[] inCode, int base, int style, Pass pass) {
+        while (matcher.find()) {
+            if (!inCode[matcher.start()] && !inCode[matcher.end() - 1]) {
+                add(pass, base + matcher.start(), matcher.end() - matcher.start(), style);
+            }
+        }
+    }
+
+    private static void tokenizeCode(String line, int base, String language, Pass pass) {
+        boolean hashComments = HASH_COMMENTS.contains(language);
+        int i = 0;
+        while (i < line.length()) {
+            char c = line.charAt(i);
+            if ((c == '/' && line.startsWith("//", i)) || (c == '#' && hashComments)
+                    || (c == '-' && line.startsWith("--", i) && language.equals("sql"))) {
+                add(pass, base + i, line.length() - i, COMMENT);
+                return;
+            }
+            if (c == '/' && line.startsWith("/*", i)) {
+                int close = line.indexOf("*/", i + 2);
+                int end = close < 0 ? line.length() : close + 2;
+                add(pass, base + i, end - i, COMMENT);
+                i = end;
+            } else if (c == '"' || c == '\'' || c == '`') {
+                int end = i + 1;
+                while (end < line.length() && line.charAt(end) != c) {
+                    end += line.charAt(end) == '\\' ? 2 : 1;
+                }
+                end = Math.min(end + 1, line.length());
+                add(pass, base + i, end - i, STRING);
+                i = end;
+            } else if (Character.isDigit(c)) {
+                int end = i + 1;
+                while (end < line.length() && (Character.isLetterOrDigit(line.charAt(end)) || line.charAt(end) == '.'
+                        || line.charAt(end) == '_')) {
+                    end++;
+                }
+                add(pass, base + i, end - i, NUMBER);
+                i = end;
+            } else if (Character.isJavaIdentifierStart(c)) {
+                int end = i + 1;
+                while (end < line.length() && Character.isJavaIdentifierPart(line.charAt(end))) {
+                    end++;
+                }
+                if (KEYWORDS.contains(line.substring(i, end))) {
+                    add(pass, base + i, end - i, KEYWORD);
+                }
+                i = end;
+            } else {
+                i++;
+            }
+        }
+    }
+
+    private static void add(Pass pass, int offset, int length, int style) {
+        if (length > 0) {
+            pass.spans.add(new int[]{offset, length, style});
+        }
+    }
+}
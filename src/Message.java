@@ -0,0 +1,97 @@
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A single chat turn (role + content) as sent to LocalAI and the online providers.
+ * Tool calling adds two kinds: an assistant turn that asks for tool calls (kept as the raw
+ * "tool_calls" JSON the model produced) and a "tool" turn answering one of those calls.
+ * A user turn can also carry images, which turn its content into a list of parts.
+ */
+public class Message {
+    private final String role;
+    private final String content;
+    private final String toolCalls;
+    private final String toolCallId;
+    private final List<ImageAttachment> images;
+    private String json;
+
+    public Message(String role, String content) {
+        this(role, content, null, null, Collections.emptyList());
+    }
+
+    public Message(String role, String content, List<ImageAttachment> images) {
+        this(role, content, null, null, Collections.unmodifiableList(images));
+    }
+
+    private Message(String role, String content, String toolCalls, String toolCallId, List<ImageAttachment> images) {
+        this.role = role;
+        this.content = content;
+        this.toolCalls = toolCalls;
+        this.toolCallId = toolCallId;
+        this.images = images;
+    }
+
+    /** The assistant turn that requested tools; toolCallsJson is echoed back verbatim. */
+    public static Message toolCalls(String content, String toolCallsJson) {
+        return new Message("assistant", content == null ? "" : content, toolCallsJson, null, Collections.emptyList());
+    }
+
+    /** The result of one tool call, matched to the request by its id. */
+    public static Message toolResult(String toolCallId, String result) {
+        return new Message("tool", result, null, toolCallId, Collections.emptyList());
+    }
+
+    public String getRole() {
+        return role;
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    public List<ImageAttachment> getImages() {
+        return images;
+    }
+
+    /**
+     * Adds the OpenAI-style JSON of this turn to a request; images go in as image_url parts whose
+     * base64 is only produced when the request is written.
+     */
+    public void appendJson(RequestBody body) {
+        if (images.isEmpty()) {
+            body.append(toJson());
+            return;
+        }
+        body.append(String.format("{\"role\": \"%s\", \"content\": [{\"type\": \"text\", \"text\": \"%s\"}",
+                role, JsonExtractor.escape(content)));
+        for (ImageAttachment image : images) {
+            body.append(", {\"type\": \"image_url\", \"image_url\": {\"url\": \"data:" + image.getMimeType() + ";base64,");
+            body.appendBase64(image);
+            body.append("\"}}");
+        }
+        body.append("]}");
+    }
+
+    /**
+     * Serialized once and reused, so a turn is byte-identical in every request that repeats it.
+     * A turn with images is encoded in full each time; use appendJson for those.
+     */
+    public String toJson() {
+        if (!images.isEmpty()) {
+            RequestBody body = new RequestBody();
+            appendJson(body);
+            return body.toString();
+        }
+        if (json == null) {
+            String extra = "";
+            if (toolCalls != null) {
+                extra += ", \"tool_calls\": " + toolCalls;
+            }
+            if (toolCallId != null) {
+                extra += ", \"tool_call_id\": \"" + JsonExtractor.escape(toolCallId) + "\"";
+            }
+            json = String.format("{\"role\": \"%s\", \"content\": \"%s\"%s}", role, JsonExtractor.escape(content), extra);
+        }
+        return json;
+    }
+}
@@ -6,9 +6,6 @@ import java.awt.event.KeyEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
 import java.util.Objects;
 import java.awt.Color;
 
@@ -19,13 +16,39 @@ public class MinimalFrame {
     private static JComboBox<String> modelComboBox;
     private static JComboBox<String> onlineModelComboBox;
     private static JTextArea inputArea;
+    private static JCheckBox useDocsCheckBox;
     private static JTextPane chatPane; // Changed from JTextArea to JTextPane for colored text
     private static StyleContext styleContext;
     private static Style userStyle;
     private static Style aiStyle;
+    private static Conversation currentConversation = new Conversation();
+    private static JLabel alternativesLabel;
+    private static JButton previousAlternativeButton;
+    private static JButton nextAlternativeButton;
+    private static JLabel attachmentsLabel;
+    private static final java.util.List<ImageAttachment> pendingImages = new java.util.ArrayList<>(); // go with the next message
+    private static JRadioButton networkButton;
+    private static JRadioButton onlineButton;
+    private static JTabbedPane tabStrip;
+    private static final java.util.List<ChatTab> tabs = new java.util.ArrayList<>();
+    private static ChatTab activeTab;
+    private static int tabsOpened;
+    // Requests of all tabs run here, so a slow model in one tab never holds up another
+    private static final java.util.concurrent.ExecutorService REQUESTS = java.util.concurrent.Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "chat-request");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final int RAW_PREVIEW_BYTES = 64 * 1024; // raw JSON shown in the response area
+    private static final int MAX_DISPLAY_CHARS = Integer.getInteger("ui.maxReplyChars", 500_000);
 
     // --- MAIN METHOD ---
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("--proxy")) {
+            ProxyServer.main(java.util.Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         SwingUtilities.invokeLater(() -> {
             JFrame frame = new JFrame();
             frame.setTitle("AI Chat Client");
@@ -44,8 +67,8 @@ public class MinimalFrame {
             frame.setLayout(null);
 
             // Create radio buttons
-            JRadioButton networkButton = new JRadioButton("Network");
-            JRadioButton onlineButton = new JRadioButton("Online");
+            networkButton = new JRadioButton("Network");
+            onlineButton = new JRadioButton("Online");
             networkButton.setSelected(false);
 
             // Group the radio buttons
@@ -59,10 +82,22 @@ public class MinimalFrame {
             JButton sendButton = new JButton("Send");
             JButton refreshButton = new JButton("Refresh Models");
             JButton newConvoButton = new JButton("New Conversation"); // New button
-
-            // Helper method to safely get the ActionListener (needed for radio buttons)
-            ActionListener[] networkListeners = networkButton.getActionListeners();
-            ActionListener[] onlineListeners = onlineButton.getActionListeners();
+            JButton addDocsButton = new JButton("Add Docs");
+            JButton regenerateButton = new JButton("Regenerate");
+            JButton editTurnButton = new JButton("Edit Turn");
+            JButton branchesButton = new JButton("Branches");
+            previousAlternativeButton = new JButton("<");
+            nextAlternativeButton = new JButton(">");
+            alternativesLabel = new JLabel("", SwingConstants.CENTER);
+            JButton attachImageButton = new JButton("Attach Image");
+            JButton continueButton = new JButton("Continue");
+            JButton summarizeButton = new JButton("Summarize");
+            JButton usageButton = new JButton("Token Usage");
+            JButton newTabButton = new JButton("New Tab");
+            JButton closeTabButton = new JButton("Close Tab");
+            tabStrip = new JTabbedPane();
+            attachmentsLabel = new JLabel("", SwingConstants.CENTER);
+            useDocsCheckBox = new JCheckBox("Use Docs");
 
             // --- START: COMPLETE KEY BINDING SETUP (F1, F2, F9, F10, F11, F12) ---
             InputMap inputMap = frame.getRootPane().getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW);
@@ -74,9 +109,12 @@ public class MinimalFrame {
             actionMap.put(F1_ACTION_KEY, new AbstractAction() {
                 @Override
                 public void actionPerformed(ActionEvent e) {
-                    if (!networkButton.isSelected() && networkListeners.length > 0) {
+                    // The listeners are looked up now: they are only added further down
+                    if (!networkButton.isSelected()) {
                         networkButton.setSelected(true);
-                        networkListeners[0].actionPerformed(e);
+                        for (ActionListener listener : networkButton.getActionListeners()) {
+                            listener.actionPerformed(e);
+                        }
                     }
                 }
             });
@@ -87,9 +125,11 @@ public class MinimalFrame {
             actionMap.put(F2_ACTION_KEY, new AbstractAction() {
                 @Override
                 public void actionPerformed(ActionEvent e) {
-                    if (!onlineButton.isSelected() && onlineListeners.length > 0) {
+                    if (!onlineButton.isSelected()) {
                         onlineButton.setSelected(true);
-                        onlineListeners[0].actionPerformed(e);
+                        for (ActionListener listener : onlineButton.getActionListeners()) {
+                            listener.actionPerformed(e);
+                        }
                     }
                 }
             });
@@ -157,6 +197,7 @@ public class MinimalFrame {
             // Create scrollable text areas
             chatPane = new JTextPane(); // Changed to JTextPane for colored text
             chatPane.setEditable(false);
+            MarkdownHighlighter.install(chatPane);
             JScrollPane scrollPane1 = new JScrollPane(chatPane);
 
             responseArea = new JTextArea();
@@ -178,10 +219,8 @@ public class MinimalFrame {
             modelComboBox.addItem("Loading...");
 
             // Create second combo box for online model selection
+            // Filled once the provider plugins are loaded, after the window is up
             onlineModelComboBox = new JComboBox<>();
-            onlineModelComboBox.addItem("Deepseek");
-            onlineModelComboBox.addItem("Gemini");
-            onlineModelComboBox.addItem("ChatGPT");
             onlineModelComboBox.setEnabled(false);
 
             // Set positions
@@ -194,11 +233,27 @@ public class MinimalFrame {
             modelComboBox.setBounds(660, 10, 220, 25);
             onlineModelComboBox.setBounds(890, 10, 120, 25);
 
-            scrollPane1.setBounds(10, 50, 1260, 600);
+            tabStrip.setBounds(10, 45, 1040, 30);
+            newTabButton.setBounds(1060, 47, 100, 25);
+            closeTabButton.setBounds(1170, 47, 100, 25);
+            scrollPane1.setBounds(10, 75, 1260, 575);
             inputScrollPane.setBounds(10, 710, 1000, 200);
             scrollPane2.setBounds(10, 920, 1260, 200);
             sendButton.setBounds(1020, 710, 100, 25);
             newConvoButton.setBounds(1020, 740, 100, 25); // Positioned under Send button
+            addDocsButton.setBounds(1020, 770, 100, 25);
+            useDocsCheckBox.setBounds(1020, 800, 100, 25);
+            regenerateButton.setBounds(1020, 830, 100, 25);
+            editTurnButton.setBounds(1020, 860, 100, 25);
+            branchesButton.setBounds(1020, 890, 100, 25);
+            previousAlternativeButton.setBounds(1130, 710, 65, 25);
+            nextAlternativeButton.setBounds(1205, 710, 65, 25);
+            alternativesLabel.setBounds(1130, 740, 140, 25);
+            attachImageButton.setBounds(1130, 770, 140, 25);
+            attachmentsLabel.setBounds(1130, 800, 140, 25);
+            continueButton.setBounds(1130, 830, 140, 25);
+            summarizeButton.setBounds(1130, 860, 140, 25);
+            usageButton.setBounds(1130, 890, 140, 25);
 
             // Add action listeners
             networkButton.addActionListener(e -> {
@@ -206,18 +261,27 @@ public class MinimalFrame {
                 onlineModelComboBox.setEnabled(false);
                 apiEndpointField.setEnabled(true);
                 refreshButton.setEnabled(true);
+                ConnectionWarmer.stop();
                 //scanForModels();
             });
 
+            // Picking a provider means a request is coming, so its connection is opened right away
             onlineButton.addActionListener(e -> {
                 modelComboBox.setEnabled(false);
                 onlineModelComboBox.setEnabled(true);
                 apiEndpointField.setEnabled(false);
                 refreshButton.setEnabled(false);
+                ConnectionWarmer.warm(ChatProviders.get((String) onlineModelComboBox.getSelectedItem()));
+            });
+            onlineModelComboBox.addActionListener(e -> {
+                if (onlineButton.isSelected()) {
+                    ConnectionWarmer.warm(ChatProviders.get((String) onlineModelComboBox.getSelectedItem()));
+                }
             });
 
             refreshButton.addActionListener(e -> scanForModels());
-            sendButton.addActionListener(new SendButtonListener(chatPane, onlineButton));
+            SendButtonListener sendListener = new SendButtonListener();
+            sendButton.addActionListener(sendListener);
 
             // New Conversation button action listener
             newConvoButton.addActionListener(e -> {
@@ -240,29 +304,87 @@ public class MinimalFrame {
                         chatPane.setText("");
                         responseArea.setText("");
                         inputArea.setText("");
+                        replaceConversation(new Conversation());
+                        updateAlternativesView();
+                        clearPendingImages();
                     }
                 } else {
                     // No conversation to clear, just clear everything
                     chatPane.setText("");
                     responseArea.setText("");
                     inputArea.setText("");
+                    replaceConversation(new Conversation());
+                    updateAlternativesView();
+                    clearPendingImages();
                 }
             });
 
             // --- UPDATED ACTION LISTENERS FOR EXTERNAL FILE HANDLERS ---
             loadButton.addActionListener(e -> {
-                String loadedContent = FileLoader.loadFile(frame); // Use frame as parent
-                if (loadedContent != null) {
-                    // For loading, we'll set plain text without colors
-                    chatPane.setText(loadedContent.trim());
+                // The file streams into a fresh document (plain text, no colors); the old one comes back if loading fails
+                Document previous = chatPane.getDocument();
+                DefaultStyledDocument loading = new DefaultStyledDocument();
+                // The file goes into the tab it was loaded from, so the tabs stay put until it's done
+                tabStrip.setEnabled(false);
+                FileLoader.loadFile(frame,
+                        chunk -> {
+                            if (chatPane.getDocument() != loading) {
+                                chatPane.setDocument(loading);
+                            }
+                            appendColoredText(chatPane, chunk, null);
+                        },
+                        conversation -> {
+                            tabStrip.setEnabled(true);
+                            if (conversation == null) {
+                                chatPane.setDocument(previous);
+                                return;
+                            }
+                            replaceConversation(conversation);
+                            // Saved turn trees come without text chunks and are drawn with their labels instead
+                            if (loading.getLength() == 0) {
+                                renderConversation(conversation);
+                                return;
+                            }
+                            chatPane.setDocument(loading);
+                            updateAlternativesView();
+                        },
+                        responseArea::setText);
+            });
+            saveButton.addActionListener(e -> FileSaver.saveConversation(frame, chatPane.getText(), currentConversation,
+                    responseArea::setText, () -> { }));
+            addDocsButton.addActionListener(e -> addDocuments(frame));
+            regenerateButton.addActionListener(e -> regenerateReply(sendListener));
+            editTurnButton.addActionListener(e -> editTurn(frame, sendListener));
+            branchesButton.addActionListener(e -> switchBranch(frame));
+            previousAlternativeButton.addActionListener(e -> showAlternative(-1));
+            nextAlternativeButton.addActionListener(e -> showAlternative(1));
+            attachImageButton.addActionListener(e -> attachImages(frame));
+            continueButton.addActionListener(e -> sendListener.sendPrompt(IdlePrefetcher.CONTINUE_PROMPT));
+            summarizeButton.addActionListener(e -> sendListener.sendPrompt(IdlePrefetcher.SUMMARY_PROMPT));
+            usageButton.addActionListener(e -> showUsage(frame));
+            newTabButton.addActionListener(e -> openTab());
+            closeTabButton.addActionListener(e -> closeTab(frame));
+            tabStrip.addChangeListener(e -> {
+                int index = tabStrip.getSelectedIndex();
+                if (index >= 0 && index < tabs.size()) {
+                    selectTab(tabs.get(index));
                 }
             });
-            saveButton.addActionListener(e -> FileSaver.saveConversation(frame, chatPane.getText()));
+            openTab();
+            updateAlternativesView();
             // --- END UPDATED LISTENERS ---
 
+            // Selecting or copying from the chat counts as activity for the prefetcher, just like typing
+            chatPane.addMouseListener(new java.awt.event.MouseAdapter() {
+                public void mousePressed(java.awt.event.MouseEvent e) {
+                    IdlePrefetcher.userActive();
+                }
+            });
+
             // Ctrl+Enter for Send is on the inputArea, which is correct
             inputArea.addKeyListener(new java.awt.event.KeyAdapter() {
                 public void keyPressed(java.awt.event.KeyEvent e) {
+                    IdlePrefetcher.userActive();
                     if (e.getKeyCode() == java.awt.event.KeyEvent.VK_ENTER && e.isControlDown()) {
                         sendButton.doClick();
                         e.consume();
@@ -277,6 +399,22 @@ public class MinimalFrame {
             frame.add(saveButton);
             frame.add(refreshButton);
             frame.add(newConvoButton); // Add new button to frame
+            frame.add(addDocsButton);
+            frame.add(useDocsCheckBox);
+            frame.add(regenerateButton);
+            frame.add(editTurnButton);
+            frame.add(branchesButton);
+            frame.add(previousAlternativeButton);
+            frame.add(nextAlternativeButton);
+            frame.add(alternativesLabel);
+            frame.add(attachImageButton);
+            frame.add(attachmentsLabel);
+            frame.add(continueButton);
+            frame.add(summarizeButton);
+            frame.add(usageButton);
+            frame.add(tabStrip);
+            frame.add(newTabButton);
+            frame.add(closeTabButton);
             frame.add(apiEndpointField);
             frame.add(modelComboBox);
             frame.add(onlineModelComboBox);
@@ -286,9 +424,72 @@ public class MinimalFrame {
             frame.add(sendButton);
             //scanForModels();
             frame.setVisible(true);
+            reportStartup("window visible");
+
+            // Provider classes and model profiles are loaded off the EDT so they don't hold up the first paint
+            new Thread(() -> {
+                ModelProfile.load();
+                java.util.Collection<ChatProvider> providers = ChatProviders.all();
+                SwingUtilities.invokeLater(() -> {
+                    for (ChatProvider provider : providers) {
+                        onlineModelComboBox.addItem(provider.getName());
+                    }
+                });
+            }).start();
+
+            java.util.List<String> endpoints = ModelDiscovery.configuredEndpoints();
+            if (!endpoints.isEmpty()) {
+                discoverModelsAtStartup(endpoints);
+            } else {
+                exitIfTraining();
+            }
         });
     }
 
+    // Lists models on every -Dlocalai.endpoints host at once; the first host with models is selected
+    private static void discoverModelsAtStartup(java.util.List<String> endpoints) {
+        ChatTab tab = activeTab;
+        responseArea.setText("Listing models on " + endpoints.size() + " host(s)...\n");
+        int[] remaining = {endpoints.size()};
+        boolean[] chosen = {false};
+
+        ModelDiscovery.discoverAll(endpoints, result -> SwingUtilities.invokeLater(() -> {
+            if (result.error != null) {
+                responseArea.append(result.endpoint + ": failed after " + result.millis + " ms (" + result.error + ")\n");
+            } else {
+                responseArea.append(result.endpoint + ": " + result.models.size() + " models in " + result.millis + " ms\n");
+            }
+
+            if (!chosen[0] && !result.models.isEmpty()) {
+                chosen[0] = true;
+                setModels(tab, result.endpoint, result.models);
+                reportStartup("models listed");
+            }
+
+            if (--remaining[0] == 0) {
+                if (!chosen[0]) {
+                    setModels(tab, null, java.util.List.of("No models found"));
+                }
+                reportStartup("model discovery finished");
+                exitIfTraining();
+            }
+        }));
+    }
+
+    private static void reportStartup(String stage) {
+        long millis = ProcessHandle.current().info().startInstant()
+                .map(start -> java.time.Duration.between(start, java.time.Instant.now()).toMillis())
+                .orElse(-1L);
+        System.out.println("Startup: " + stage + " after " + millis + " ms");
+    }
+
+    // Training run for the AppCDS archive (see appcds.sh): quit once startup is done
+    private static void exitIfTraining() {
+        if (Boolean.getBoolean("startup.exitWhenReady")) {
+            System.exit(0);
+        }
+    }
+
     // --- NEW METHOD: Prompt for save on exit ---
     private static void promptForSaveAndExit(JFrame frame) {
         String conversation = chatPane.getText().trim();
@@ -300,137 +501,174 @@ public class MinimalFrame {
 
             int result = JOptionPane.showConfirmDialog(
                     frame,
-                    "Would you like to save the conversation before exiting?",
+                    "Would you like to save the conversation before exiting?" + otherTabsNote(),
                     "Save Conversation?",
                     JOptionPane.YES_NO_CANCEL_OPTION,
                     JOptionPane.QUESTION_MESSAGE
             );
 
             if (result == JOptionPane.YES_OPTION) {
-                // Save the conversation (same as clicking the Save Convo button)
-                FileSaver.saveConversation(frame, conversation);
-                System.exit(0);
+                // Save the conversation (same as clicking the Save Convo button), then exit once it's written
+                FileSaver.saveConversation(frame, conversation, currentConversation, responseArea::setText, () -> System.exit(0));
             } else if (result == JOptionPane.NO_OPTION) {
                 // Exit without saving
                 System.exit(0);
             }
             // If CANCEL, do nothing (window stays open)
+        } else if (!otherTabsNote().isEmpty()) {
+            // Nothing on screen, but other tabs have conversations
+            int result = JOptionPane.showConfirmDialog(frame, "Exit anyway?" + otherTabsNote(), "Exit",
+                    JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
+            if (result == JOptionPane.YES_OPTION) {
+                System.exit(0);
+            }
         } else {
             // No conversation to save, just exit
             System.exit(0);
         }
     }
 
-    // --- UTILITY AND CLIENT METHODS ---
-
-    // Generic POST sender for services that use API key in the Authorization header (Deepseek, ChatGPT)
-    private static String sendPostRequestWithApiKey(String endpoint, String requestBody, String apiKey) throws IOException {
-        URL url = new URL(endpoint);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-        connection.setRequestMethod("POST");
-        connection.setRequestProperty("Content-Type", "application/json");
-        connection.setRequestProperty("Accept", "application/json");
-        connection.setRequestProperty("Authorization", "Bearer " + apiKey);
-        connection.setDoOutput(true);
-        connection.setConnectTimeout(12000000);
-        connection.setReadTimeout(12000000);
-
-        try (OutputStream os = connection.getOutputStream()) {
-            byte[] input = requestBody.getBytes(StandardCharsets.UTF_8);
-            os.write(input, 0, input.length);
-        }
-
-        int responseCode = connection.getResponseCode();
-        if (responseCode == HttpURLConnection.HTTP_OK) {
-            try (BufferedReader br = new BufferedReader(
-                    new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
-                StringBuilder response = new StringBuilder();
-                String responseLine;
-                while ((responseLine = br.readLine()) != null) {
-                    response.append(responseLine);
-                }
-                return response.toString();
-            }
-        } else {
-            try (BufferedReader br = new BufferedReader(
-                    new InputStreamReader(connection.getErrorStream(), StandardCharsets.UTF_8))) {
-                StringBuilder errorResponse = new StringBuilder();
-                String errorLine;
-                while ((errorLine = br.readLine()) != null) {
-                    errorResponse.append(errorLine);
-                }
-                throw new IOException("Online API error " + responseCode + ": " + errorResponse);
+    // Only the tab on screen is offered for saving
+    private static String otherTabsNote() {
+        int others = 0;
+        for (ChatTab tab : tabs) {
+            if (tab != activeTab && !tab.conversation.isEmpty()) {
+                others++;
             }
         }
+        return others == 0 ? "" : "\n(" + others + " other tab(s) will be closed without saving.)";
     }
 
-    // Logic to route the request and securely retrieve API key from environment
-    private static String sendOnlineChatRequest(String model, String prompt) throws IOException {
+    // --- UTILITY AND CLIENT METHODS ---
+
+    // Routes the full conversation to the selected online provider, streaming the reply through onDelta
+    private static String sendOnlineChatRequest(String model, java.util.List<Message> history,
+                                                java.util.function.Consumer<String> onDelta) throws IOException {
         if (model == null) {
             throw new IOException("No online model selected.");
         }
 
-        String escapedPrompt = prompt
-                .replace("\\", "\\\\")
-                .replace("\"", "\\\"")
-                .replace("\n", "\\n")
-                .replace("\r", "\\r")
-                .replace("\t", "\\t")
-                .replace("\b", "\\b")
-                .replace("\f", "\\f");
-        if (model.equals("Deepseek") || model.equals("ChatGPT")) {
-
-            String apiKey;
-            String endpoint;
-            String llmModel;
-
-            if (model.equals("Deepseek")) {
-                apiKey = System.getenv("DEEPSEEK_API_KEY");
-                endpoint = "https://api.deepseek.com/chat/completions";
-                llmModel = "deepseek-chat";
-                if (apiKey == null || apiKey.isEmpty()) throw new IOException("DEEPSEEK_API_KEY environment variable is not set.");
-            } else { // ChatGPT (OpenAI)
-                apiKey = System.getenv("CHATGPT_API_KEY");
-                endpoint = "https://api.openai.com/v1/chat/completions";
-                llmModel = "gpt-3.5-turbo";
-                if (apiKey == null || apiKey.isEmpty()) throw new IOException("CHATGPT_API_KEY environment variable is not set.");
-            }
+        ChatProvider provider = ChatProviders.get(model);
+        if (provider == null) {
+            throw new IOException("Unsupported online model: " + model);
+        }
+        return provider.streamChat(history, onDelta);
+    }
 
-            // Standard OpenAI-compatible Request Body
-            String messagesJson = String.format(
-                    "{\"role\": \"user\", \"content\": \"%s\"}",
-                    escapedPrompt
-            );
-            String requestBody = String.format(
-                    "{\"model\": \"%s\", \"messages\": [%s], \"stream\": false}",
-                    llmModel, messagesJson
-            );
+    // Indexes reference documents or saved conversations for retrieval (see DocumentIndex)
+    private static void addDocuments(JFrame frame) {
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setMultiSelectionEnabled(true);
+        fileChooser.setFileFilter(new javax.swing.filechooser.FileNameExtensionFilter(
+                "Documents (*.txt, *.md, *.zip)", "txt", "md", "zip"));
+        if (fileChooser.showOpenDialog(frame) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
 
-            return sendPostRequestWithApiKey(endpoint, requestBody, apiKey);
+        File[] files = fileChooser.getSelectedFiles();
+        String endpoint = apiEndpointField.getText().trim();
+        responseArea.setText("Indexing " + files.length + " document(s)...");
 
-        } else if (model.equals("Gemini")) {
-            String apiKey = System.getenv("GEMINI_API_KEY");
-            if (apiKey == null || apiKey.isEmpty()) {
-                throw new IOException("GEMINI_API_KEY environment variable is not set. Cannot connect to Gemini.");
+        new Thread(() -> {
+            try {
+                DocumentIndex index = DocumentIndex.getInstance();
+                int added = 0;
+                for (File file : files) {
+                    added += index.addDocument(endpoint, file);
+                }
+                int total = index.size();
+                int newChunks = added;
+                SwingUtilities.invokeLater(() -> {
+                    responseArea.setText("Indexed " + newChunks + " new chunk(s), " + total + " in total.");
+                    useDocsCheckBox.setSelected(true);
+                });
+            } catch (IOException ex) {
+                SwingUtilities.invokeLater(() -> {
+                    responseArea.setText("Error indexing documents: " + ex.getMessage());
+                    JOptionPane.showMessageDialog(frame,
+                            "Failed to index documents: " + ex.getMessage(),
+                            "Index Error",
+                            JOptionPane.ERROR_MESSAGE);
+                });
             }
+        }).start();
+    }
 
-            String endpoint = "https://generativelanguage.googleapis.com/v1beta/models/gemini-2.5-flash:generateContent?key=" + apiKey;
+    // Tokens per model for the last week, from the UsageLedger
+    private static void showUsage(JFrame frame) {
+        JTextArea report = new JTextArea(UsageLedger.report(7));
+        report.setEditable(false);
+        report.setFont(new java.awt.Font(java.awt.Font.MONOSPACED, java.awt.Font.PLAIN, 12));
+        JOptionPane.showMessageDialog(frame, new JScrollPane(report), "Token Usage", JOptionPane.INFORMATION_MESSAGE);
+    }
 
-            // Gemini Request Body format
-            String requestBody = String.format(
-                    "{\"contents\": [{\"role\": \"user\", \"parts\": [{\"text\": \"%s\"}]}]}",
-                    escapedPrompt
-            );
+    // Images are read and scaled down on a worker thread; big photos take a moment
+    private static void attachImages(JFrame frame) {
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setMultiSelectionEnabled(true);
+        fileChooser.setFileFilter(new javax.swing.filechooser.FileNameExtensionFilter(
+                "Images (*.jpg, *.png, *.gif, *.bmp)", "jpg", "jpeg", "png", "gif", "bmp"));
+        if (fileChooser.showOpenDialog(frame) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+
+        File[] files = fileChooser.getSelectedFiles();
+        // The online combo is only enabled while "Online" is selected
+        Object model = onlineModelComboBox.isEnabled() ? onlineModelComboBox.getSelectedItem() : modelComboBox.getSelectedItem();
+        int maxSide = ModelProfile.forModel((String) model).getImageMaxSide();
+        responseArea.setText("Preparing " + files.length + " image(s)...");
 
-            LocalAIClient dummyClient = new LocalAIClient("");
-            return dummyClient.sendPostRequest(endpoint, requestBody);
+        new Thread(() -> {
+            for (File file : files) {
+                try {
+                    ImageAttachment image = ImageAttachment.load(file, maxSide);
+                    SwingUtilities.invokeLater(() -> {
+                        pendingImages.add(image);
+                        updateAttachmentsView();
+                        responseArea.setText("Attached " + image.describe() + ", " + image.getByteCount() / 1024 + " KB");
+                    });
+                } catch (IOException ex) {
+                    SwingUtilities.invokeLater(() -> {
+                        responseArea.setText("Error reading image: " + ex.getMessage());
+                        JOptionPane.showMessageDialog(frame,
+                                "Failed to attach " + file.getName() + ": " + ex.getMessage(),
+                                "Image Error",
+                                JOptionPane.ERROR_MESSAGE);
+                    });
+                }
+            }
+        }, "image-attach").start();
+    }
+
+    private static void clearPendingImages() {
+        pendingImages.clear();
+        updateAttachmentsView();
+    }
+
+    private static void updateAttachmentsView() {
+        long bytes = 0;
+        StringBuilder names = new StringBuilder("<html>");
+        for (ImageAttachment image : pendingImages) {
+            bytes += image.getByteCount();
+            names.append(image.describe()).append("<br>");
         }
+        attachmentsLabel.setText(pendingImages.isEmpty() ? ""
+                : pendingImages.size() + " image(s), " + bytes / 1024 + " KB");
+        attachmentsLabel.setToolTipText(pendingImages.isEmpty() ? null : names.toString());
+    }
 
-        throw new IOException("Unsupported online model: " + model);
+    // "\n[image: a.png, 800x600]" for every image of the message, or ""
+    private static String describeImages(Message message) {
+        StringBuilder text = new StringBuilder();
+        for (ImageAttachment image : message.getImages()) {
+            text.append('\n').append(image.describe());
+        }
+        return text.toString();
     }
 
+    // The list goes to the tab that asked, even if another one is on screen by then
     private static void scanForModels() {
+        ChatTab tab = activeTab;
         String endpoint = apiEndpointField.getText().trim();
         if (endpoint.isEmpty()) {
             return;
@@ -438,37 +676,32 @@ public class MinimalFrame {
 
         new Thread(() -> {
             try {
-                LocalAIClient client = new LocalAIClient(endpoint);
+                ChatBackend client = ChatBackends.forEndpoint(endpoint);
                 String modelsResponse = client.getAvailableModels();
 
                 SwingUtilities.invokeLater(() -> {
-                    modelComboBox.removeAllItems();
-
                     if (modelsResponse != null && !modelsResponse.isEmpty()) {
                         java.util.List<String> models = parseModelsFromJson(modelsResponse);
 
                         if (!models.isEmpty()) {
-                            for (String model : models) {
-                                modelComboBox.addItem(model);
-                            }
+                            setModels(tab, null, models);
                             JOptionPane.showMessageDialog(null,
                                     "Found " + models.size() + " models",
                                     "Model Scan",
                                     JOptionPane.INFORMATION_MESSAGE);
                         } else {
-                            modelComboBox.addItem("No models found");
-                            responseArea.setText("Raw response: " + modelsResponse);
+                            setModels(tab, null, java.util.List.of("No models found"));
+                            showResponse(tab, "Raw response: " + modelsResponse);
                         }
                     } else {
-                        modelComboBox.addItem("No response");
+                        setModels(tab, null, java.util.List.of("No response"));
                     }
                 });
 
             } catch (IOException ex) {
                 SwingUtilities.invokeLater(() -> {
-                    modelComboBox.removeAllItems();
-                    modelComboBox.addItem("Connection failed");
-                    responseArea.setText("Error scanning for models: " + ex.getMessage());
+                    setModels(tab, null, java.util.List.of("Connection failed"));
+                    showResponse(tab, "Error scanning for models: " + ex.getMessage());
                     JOptionPane.showMessageDialog(null,
                             "Failed to scan for models: " + ex.getMessage(),
                             "Scan Error",
@@ -535,509 +768,711 @@ public class MinimalFrame {
         return json.substring(startIndex + 1, endIndex);
     }
 
-    private static String unescapeJson(String input) {
-        return input.replace("\\n", "\n")
-                .replace("\\r", "\r")
-                .replace("\\t", "\t")
-                .replace("\\\"", "\"")
-                .replace("\\\\", "\\");
+    // Asks for the last reply again; the old reply stays available as its own branch
+    private static void regenerateReply(SendButtonListener sender) {
+        Conversation conversation = currentConversation;
+        java.util.List<Conversation.Turn> turns = conversation.getTurns();
+        if (turns.isEmpty()) {
+            return;
+        }
+
+        Conversation.Turn last = turns.get(turns.size() - 1);
+        if (last.getMessage().getRole().equals("assistant")) {
+            conversation.fork(last);
+        }
+        java.util.List<Conversation.Turn> branch = conversation.getTurns();
+        if (branch.isEmpty()) {
+            return;
+        }
+        renderConversation(conversation);
+        sender.requestReply(activeTab, branch.get(branch.size() - 1).getMessage().getContent());
+    }
+
+    // Rewrites one of your messages and continues from there on a new branch
+    private static void editTurn(JFrame frame, SendButtonListener sender) {
+        Conversation conversation = currentConversation;
+        java.util.List<Conversation.Turn> userTurns = new java.util.ArrayList<>();
+        for (Conversation.Turn turn : conversation.getTurns()) {
+            if (turn.getMessage().getRole().equals("user")) {
+                userTurns.add(turn);
+            }
+        }
+        if (userTurns.isEmpty()) {
+            JOptionPane.showMessageDialog(frame, "There are no messages to edit yet.", "Edit Turn",
+                    JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+
+        JComboBox<String> turnBox = new JComboBox<>();
+        for (Conversation.Turn turn : userTurns) {
+            turnBox.addItem(turn.getDepth() + ": " + summarize(turn.getMessage().getContent()));
+        }
+        turnBox.setSelectedIndex(userTurns.size() - 1);
+        JTextArea editArea = new JTextArea(userTurns.get(userTurns.size() - 1).getMessage().getContent(), 10, 60);
+        editArea.setLineWrap(true);
+        editArea.setWrapStyleWord(true);
+        turnBox.addActionListener(e -> editArea.setText(userTurns.get(turnBox.getSelectedIndex()).getMessage().getContent()));
+
+        JPanel panel = new JPanel(new java.awt.BorderLayout(0, 5));
+        panel.add(turnBox, java.awt.BorderLayout.NORTH);
+        panel.add(new JScrollPane(editArea), java.awt.BorderLayout.CENTER);
+        int result = JOptionPane.showConfirmDialog(frame, panel, "Edit Turn", JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.PLAIN_MESSAGE);
+        String edited = editArea.getText().trim();
+        if (result != JOptionPane.OK_OPTION || edited.isEmpty()) {
+            return;
+        }
+
+        conversation.fork(userTurns.get(turnBox.getSelectedIndex()));
+        conversation.add(new Message("user", edited));
+        renderConversation(conversation);
+        sender.requestReply(activeTab, edited);
     }
 
-    // Helper method to append colored text to the chat pane
-    private static void appendColoredText(JTextPane pane, String text, Style style) {
+    private static void switchBranch(JFrame frame) {
+        Conversation conversation = currentConversation;
+        java.util.List<Conversation.Turn> tips = conversation.getBranchTips();
+        if (tips.size() < 2) {
+            JOptionPane.showMessageDialog(frame, "This conversation has only one branch.\n"
+                    + "Use Regenerate or Edit Turn to start another.", "Branches", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+
+        JComboBox<String> branchBox = new JComboBox<>();
+        Conversation.Turn head = conversation.getHead();
+        for (int i = 0; i < tips.size(); i++) {
+            Conversation.Turn tip = tips.get(i);
+            branchBox.addItem("Branch " + (i + 1) + " (" + tip.getDepth() + " turns): " + summarize(tip.getMessage().getContent()));
+            if (tip == head) {
+                branchBox.setSelectedIndex(i);
+            }
+        }
+        int result = JOptionPane.showConfirmDialog(frame, branchBox, "Switch Branch", JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.PLAIN_MESSAGE);
+        if (result == JOptionPane.OK_OPTION) {
+            conversation.switchTo(tips.get(branchBox.getSelectedIndex()));
+            renderConversation(conversation);
+        }
+    }
+
+    // Steps through the alternatives of the last reply (candidates, regenerations)
+    private static void showAlternative(int step) {
+        Conversation conversation = currentConversation;
+        java.util.List<Conversation.Turn> alternatives = conversation.getAlternatives();
+        int index = alternatives.indexOf(conversation.getHead()) + step;
+        if (index < 0 || index >= alternatives.size()) {
+            return;
+        }
+        conversation.switchTo(alternatives.get(index));
+        renderConversation(conversation);
+    }
+
+    private static void updateAlternativesView() {
+        Conversation conversation = currentConversation;
+        java.util.List<Conversation.Turn> alternatives = conversation.getAlternatives();
+        int index = alternatives.indexOf(conversation.getHead());
+        alternativesLabel.setText(alternatives.size() > 1 ? "Reply " + (index + 1) + " of " + alternatives.size() : "");
+        previousAlternativeButton.setEnabled(index > 0);
+        nextAlternativeButton.setEnabled(index >= 0 && index < alternatives.size() - 1);
+    }
+
+    // Huge replies are kept whole in the conversation but only their start goes into the chat pane
+    private static String displayText(String content) {
+        if (content.length() <= MAX_DISPLAY_CHARS) {
+            return content;
+        }
+        return content.substring(0, MAX_DISPLAY_CHARS) + "\n[... " + (content.length() - MAX_DISPLAY_CHARS)
+                + " more characters not shown]";
+    }
+
+    private static String summarize(String text) {
+        String line = text.replace('\n', ' ').trim();
+        return line.length() > 60 ? line.substring(0, 60) + "..." : line;
+    }
+
+    // Redraws the chat pane from the turns of the current branch; nothing is parsed back from the text
+    private static void renderConversation(Conversation conversation) {
+        DefaultStyledDocument doc = new DefaultStyledDocument();
         try {
-            Document doc = pane.getDocument();
-            doc.insertString(doc.getLength(), text, style);
+            for (Conversation.Turn turn : conversation.getTurns()) {
+                Style style = turn.getMessage().getRole().equals("user") ? userStyle : aiStyle;
+                doc.insertString(doc.getLength(), turn.getLabel() + ": ", style);
+                doc.insertString(doc.getLength(), displayText(turn.getMessage().getContent())
+                        + describeImages(turn.getMessage()) + "\n\n", null);
+            }
+            // A reply still coming in for this tab goes below its turns
+            if (activeTab != null && activeTab.conversation == conversation && activeTab.live != null) {
+                if (activeTab.liveLabel != null) {
+                    doc.insertString(doc.getLength(), activeTab.liveLabel + ": ", aiStyle);
+                }
+                doc.insertString(doc.getLength(), activeTab.live.toString(), null);
+            }
         } catch (BadLocationException e) {
             e.printStackTrace();
         }
+        chatPane.setDocument(doc);
+        chatPane.setCaretPosition(doc.getLength());
+        updateAlternativesView();
     }
 
-    // LocalAI Client implementation
-    private static class LocalAIClient {
-        private final String baseUrl;
+    // A new tab starts empty, with the endpoint and models picked in the current one
+    private static void openTab() {
+        ChatTab tab = new ChatTab("Chat " + ++tabsOpened);
+        tab.endpoint = apiEndpointField.getText();
+        tab.models = listedModels();
+        tab.localModel = modelComboBox.getSelectedItem();
+        tab.onlineModel = onlineModelComboBox.getSelectedItem();
+        tab.online = onlineButton.isSelected();
+        tabs.add(tab);
+        tabStrip.addTab(tab.name, null);
+        tabStrip.setSelectedIndex(tabs.size() - 1);
+        selectTab(tab);
+    }
 
-        public LocalAIClient(String baseUrl) {
-            this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+    // A reply still on its way to a closed tab is dropped when it arrives
+    private static void closeTab(JFrame frame) {
+        if (tabs.size() < 2) {
+            return;
+        }
+        ChatTab tab = activeTab;
+        if (!tab.conversation.isEmpty() || tab.inFlight > 0) {
+            int result = JOptionPane.showConfirmDialog(frame,
+                    "Close " + tab.name + "? Its conversation is discarded unless you saved it.",
+                    "Close Tab", JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
+            if (result != JOptionPane.YES_OPTION) {
+                return;
+            }
         }
+        int index = tabs.indexOf(tab);
+        tabs.remove(index);
+        tabStrip.removeTabAt(index);
+        selectTab(tabs.get(tabStrip.getSelectedIndex()));
+    }
 
-        public String getAvailableModels() throws IOException {
-            String endpoint = baseUrl + "/v1/models";
-            return sendGetRequest(endpoint);
+    /**
+     * Puts tab on screen. The endpoint, models, draft and response area of the tab that was shown
+     * are kept with it, and its chat document is dropped: only the tab on screen has one, the
+     * others are redrawn from their turns when they are picked again.
+     */
+    private static void selectTab(ChatTab tab) {
+        ChatTab previous = activeTab;
+        if (previous == tab) {
+            return;
         }
+        if (previous != null) {
+            previous.endpoint = apiEndpointField.getText();
+            previous.models = listedModels();
+            previous.localModel = modelComboBox.getSelectedItem();
+            previous.onlineModel = onlineModelComboBox.getSelectedItem();
+            previous.online = onlineButton.isSelected();
+            previous.draft = inputArea.getText();
+            previous.responseText = responseArea.getText();
+        }
+        activeTab = tab;
+        currentConversation = tab.conversation;
+        tab.unread = false;
+
+        apiEndpointField.setText(tab.endpoint);
+        // Each tab has the model list of its own endpoint, as last listed there
+        showModels(tab.models);
+        if (tab.localModel != null) {
+            modelComboBox.setSelectedItem(tab.localModel);
+        }
+        if (tab.onlineModel != null) {
+            onlineModelComboBox.setSelectedItem(tab.onlineModel);
+        }
+        // Clicking runs the button's listener, which enables the right fields and warms the provider
+        if (tab.online != onlineButton.isSelected()) {
+            (tab.online ? onlineButton : networkButton).doClick();
+        }
+        inputArea.setText(tab.draft);
+        responseArea.setText(tab.responseText);
+        renderConversation(tab.conversation);
+        updateTabTitle(tab);
+    }
+
+    private static java.util.List<String> listedModels() {
+        java.util.List<String> models = new java.util.ArrayList<>();
+        for (int i = 0; i < modelComboBox.getItemCount(); i++) {
+            models.add(modelComboBox.getItemAt(i));
+        }
+        return models;
+    }
 
-        public String sendChatRequestWithHistory(String model, java.util.List<Message> messages) throws IOException {
-            String endpoint = baseUrl + "/v1/chat/completions";
+    private static void showModels(java.util.List<String> models) {
+        modelComboBox.removeAllItems();
+        for (String model : models) {
+            modelComboBox.addItem(model);
+        }
+    }
 
-            StringBuilder messagesJson = new StringBuilder();
-            for (int i = 0; i < messages.size(); i++) {
-                if (i > 0) messagesJson.append(",");
-                messagesJson.append(messages.get(i).toJson());
+    // A fresh model list (and the endpoint it came from, if not null) for tab; its model stays picked if still listed
+    private static void setModels(ChatTab tab, String endpoint, java.util.List<String> models) {
+        Object picked = tab == activeTab ? modelComboBox.getSelectedItem() : tab.localModel;
+        Object keep = models.contains(picked) ? picked : models.isEmpty() ? null : models.get(0);
+        if (tab != activeTab) {
+            if (endpoint != null) {
+                tab.endpoint = endpoint;
             }
+            tab.models = new java.util.ArrayList<>(models);
+            tab.localModel = keep;
+            return;
+        }
+        if (endpoint != null) {
+            apiEndpointField.setText(endpoint);
+        }
+        showModels(models);
+        modelComboBox.setSelectedItem(keep);
+    }
 
-            String requestBody = String.format(
-                    "{\"model\": \"%s\", \"messages\": [%s], " +
-                            "\"max_tokens\": 16000, \"temperature\": 0.7, \"stream\": false}",
-                    model, messagesJson
-            );
+    // Swaps the conversation of the tab on screen (New Conversation, Load Convo)
+    private static void replaceConversation(Conversation conversation) {
+        currentConversation = conversation;
+        activeTab.conversation = conversation;
+        activeTab.live = null;
+        activeTab.liveLabel = null;
+    }
 
-            return sendPostRequest(endpoint, requestBody);
+    // "Chat 2 ..." while a request runs, "Chat 2 *" for a reply that came in while another tab was shown
+    private static void updateTabTitle(ChatTab tab) {
+        int index = tabs.indexOf(tab);
+        if (index >= 0) {
+            tabStrip.setTitleAt(index, tab.name + (tab.inFlight > 0 ? " ..." : tab.unread ? " *" : ""));
         }
+    }
 
-        private String sendGetRequest(String endpoint) throws IOException {
-            URL url = new URL(endpoint);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    private static void beginRequest(ChatTab tab) {
+        tab.inFlight++;
+        updateTabTitle(tab);
+    }
 
-            connection.setRequestMethod("GET");
-            connection.setRequestProperty("Accept", "application/json");
-            connection.setConnectTimeout(1000000);
-            connection.setReadTimeout(1000000);
+    private static void endRequest(ChatTab tab) {
+        tab.inFlight--;
+        updateTabTitle(tab);
+    }
 
-            int responseCode = connection.getResponseCode();
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                try (BufferedReader br = new BufferedReader(
-                        new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
-                    StringBuilder response = new StringBuilder();
-                    String responseLine;
-                    while ((responseLine = br.readLine()) != null) {
-                        response.append(responseLine);
-                    }
-                    return response.toString();
-                }
-            } else {
-                try (BufferedReader br = new BufferedReader(
-                        new InputStreamReader(connection.getErrorStream(), StandardCharsets.UTF_8))) {
-                    StringBuilder errorResponse = new StringBuilder();
-                    String errorLine;
-                    while ((errorLine = br.readLine()) != null) {
-                        errorResponse.append(errorLine);
-                    }
-                    throw new IOException("HTTP error " + responseCode + ": " + errorResponse);
-                }
-            }
-        }
+    // The methods below run on the EDT. A reply for a conversation the tab no longer holds is left out.
 
-        // Generic POST Request method (used by LocalAI and Gemini)
-        public String sendPostRequest(String endpoint, String requestBody) throws IOException {
-            URL url = new URL(endpoint);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    private static void startReply(ChatTab tab, Conversation conversation, String label) {
+        if (tab.conversation != conversation) {
+            return;
+        }
+        tab.liveLabel = label;
+        tab.live = new StringBuilder();
+        if (tab == activeTab) {
+            appendColoredText(chatPane, label + ": ", aiStyle);
+        }
+    }
 
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("Accept", "application/json");
-            connection.setDoOutput(true);
-            connection.setConnectTimeout(12000000);
-            connection.setReadTimeout(12000000);
+    private static void streamReply(ChatTab tab, Conversation conversation, String text) {
+        if (tab.conversation != conversation) {
+            return;
+        }
+        if (tab.live == null) {
+            tab.live = new StringBuilder();
+        }
+        tab.live.append(text);
+        if (tab == activeTab) {
+            appendColoredText(chatPane, text, null);
+            chatPane.setCaretPosition(chatPane.getDocument().getLength());
+        }
+    }
 
-            try (OutputStream os = connection.getOutputStream()) {
-                byte[] input = requestBody.getBytes(StandardCharsets.UTF_8);
-                os.write(input, 0, input.length);
-            }
+    // Ends the reply shown so far; text is the whole reply when it wasn't streamed, else null
+    private static void endReply(ChatTab tab, Conversation conversation, String label, String text) {
+        if (tab.conversation != conversation) {
+            return;
+        }
+        tab.live = null;
+        tab.liveLabel = null;
+        if (tab != activeTab) {
+            tab.unread = true;
+            updateTabTitle(tab);
+            return;
+        }
+        if (text != null) {
+            appendColoredText(chatPane, label + ": ", aiStyle);
+            appendColoredText(chatPane, displayText(text), null);
+        }
+        appendColoredText(chatPane, "\n\n", null);
+        chatPane.setCaretPosition(chatPane.getDocument().getLength());
+        updateAlternativesView();
+    }
 
-            int responseCode = connection.getResponseCode();
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                try (BufferedReader br = new BufferedReader(
-                        new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
-                    StringBuilder response = new StringBuilder();
-                    String responseLine;
-                    while ((responseLine = br.readLine()) != null) {
-                        response.append(responseLine);
-                    }
-                    return response.toString();
-                }
-            } else {
-                try (BufferedReader br = new BufferedReader(
-                        new InputStreamReader(connection.getErrorStream(), StandardCharsets.UTF_8))) {
-                    StringBuilder errorResponse = new StringBuilder();
-                    String errorLine;
-                    while ((errorLine = br.readLine()) != null) {
-                        errorResponse.append(errorLine);
-                    }
-                    throw new IOException("HTTP error " + responseCode + ": " + errorResponse);
-                }
-            }
+    // Drops the partial text of a reply that failed; nothing is added to the conversation
+    private static void failReply(ChatTab tab, Conversation conversation) {
+        if (tab.conversation != conversation || tab.live == null) {
+            return;
+        }
+        tab.live = null;
+        tab.liveLabel = null;
+        if (tab == activeTab) {
+            renderConversation(conversation);
         }
     }
 
-    // Message class is required for conversation history
-    private static class Message {
-        private final String role;
-        private final String content;
+    private static void showResponse(ChatTab tab, String text) {
+        if (tab == activeTab) {
+            responseArea.setText(text);
+        } else {
+            tab.responseText = text;
+        }
+    }
 
-        public Message(String role, String content) {
-            this.role = role;
-            this.content = content;
+    // Helper method to append colored text to the chat pane
+    private static void appendColoredText(JTextPane pane, String text, Style style) {
+        try {
+            Document doc = pane.getDocument();
+            doc.insertString(doc.getLength(), text, style);
+        } catch (BadLocationException e) {
+            e.printStackTrace();
         }
+    }
 
-        public String toJson() {
-            String escapedContent = content
-                    .replace("\\", "\\\\")
-                    .replace("\"", "\\\"")
-                    .replace("\n", "\\n")
-                    .replace("\r", "\\r")
-                    .replace("\t", "\\t")
-                    .replace("\b", "\\b")
-                    .replace("\f", "\\f");
-            return String.format("{\"role\": \"%s\", \"content\": \"%s\"}", role, escapedContent);
+    // One conversation tab, with the endpoint, its model list and the models picked while it was on screen
+    private static class ChatTab {
+        final String name;
+        Conversation conversation = new Conversation();
+        String endpoint = "";
+        java.util.List<String> models = new java.util.ArrayList<>();
+        Object localModel;
+        Object onlineModel;
+        boolean online;
+        String draft = "";
+        String responseText = "";
+        int inFlight;
+        boolean unread;
+        // The reply arriving right now, not a turn yet
+        String liveLabel;
+        StringBuilder live;
+
+        ChatTab(String name) {
+            this.name = name;
         }
     }
 
+    // Where a turn goes, as the controls of the tab on screen say; read on the EDT when it is sent
+    private static class Route {
+        final boolean online;
+        final String onlineModel;
+        final String endpoint;
+        final String localModel;
+        final boolean useDocs;
+
+        private Route() {
+            online = onlineButton.isSelected();
+            onlineModel = (String) onlineModelComboBox.getSelectedItem();
+            endpoint = apiEndpointField.getText().trim();
+            localModel = (String) modelComboBox.getSelectedItem();
+            useDocs = useDocsCheckBox.isSelected();
+        }
+
+        static Route current() {
+            return new Route();
+        }
+    }
 
     // Send Button Action Listener - MODIFIED FOR ONLINE/LOCAL ROUTING
     private static class SendButtonListener implements ActionListener {
-        private final JTextPane chatPane;
-        private final JRadioButton onlineButton;
-
-        public SendButtonListener(JTextPane chatPane, JRadioButton onlineButton) {
-            this.chatPane = chatPane;
-            this.onlineButton = onlineButton;
-        }
 
         @Override
         public void actionPerformed(ActionEvent e) {
             String userInput = inputArea.getText().trim();
-            if (userInput.isEmpty()) return;
+            if (userInput.isEmpty() && pendingImages.isEmpty()) return;
+
+            Message message = new Message("user", userInput, new java.util.ArrayList<>(pendingImages));
+            currentConversation.add(message);
 
             // Append user input in red
             appendColoredText(chatPane, "You: ", userStyle);
-            appendColoredText(chatPane, userInput + "\n\n", null); // Regular text for the message content
+            appendColoredText(chatPane, userInput + describeImages(message) + "\n\n", null); // Regular text for the message content
 
             inputArea.setText("");
+            clearPendingImages();
+            requestReply(activeTab, userInput);
+        }
 
-            new Thread(() -> {
+        /**
+         * Sends a canned follow-up (Continue, Summarize). If the idle-time prefetcher already has
+         * the answer for this point of the conversation, it is shown without a new request.
+         */
+        void sendPrompt(String prompt) {
+            ChatTab tab = activeTab;
+            Conversation conversation = tab.conversation;
+            Conversation.Turn before = conversation.getHead();
+            conversation.add(new Message("user", prompt));
+            Conversation.Turn question = conversation.getHead();
+            appendColoredText(chatPane, "You: ", userStyle);
+            appendColoredText(chatPane, prompt + "\n\n", null);
+            // Read now: the prefetch may take a while, and another tab may be on screen by then
+            Route route = Route.current();
+            // A prefetched answer only counts if it came from the local model this turn would go to
+            String model = route.localModel;
+            String endpoint = route.online || model == null ? null
+                    : ModelProfile.forModel(model).getEndpoint(route.endpoint);
+
+            beginRequest(tab);
+            REQUESTS.execute(() -> {
                 try {
-                    String response;
-                    String formattedResponse;
-                    String currentModel;
+                    long start = System.nanoTime();
+                    String prefetched = IdlePrefetcher.take(before, prompt, endpoint, model);
+                    if (prefetched == null) {
+                        SwingUtilities.invokeLater(() -> requestReply(tab, prompt, route));
+                        return;
+                    }
+                    long millis = (System.nanoTime() - start) / 1_000_000;
+                    SwingUtilities.invokeLater(() -> {
+                        addReply(conversation, question, new Message("assistant", prefetched), "AI", model, null);
+                        endReply(tab, conversation, "AI", prefetched);
+                        showResponse(tab, "Served from the idle-time prefetch (waited " + millis + " ms)");
+                    });
+                } finally {
+                    SwingUtilities.invokeLater(() -> endRequest(tab));
+                }
+            });
+        }
+
+        // Sends the conversation up to its head; the reply is added after that turn
+        void requestReply(ChatTab tab, String userInput) {
+            requestReply(tab, userInput, Route.current());
+        }
+
+        /**
+         * The same along a route read from the controls earlier, while tab was on screen.
+         * Everything the request shows goes to its own tab.
+         */
+        void requestReply(ChatTab tab, String userInput, Route route) {
+            IdlePrefetcher.yieldToUser();
+            Conversation activeConversation = tab.conversation;
+            Conversation.Turn replyTo = activeConversation.getHead();
+            java.util.List<Message> history = activeConversation.snapshot();
+            boolean useDocs = route.useDocs;
+            String docsEndpoint = route.endpoint;
+            boolean online = route.online;
+            String onlineModel = route.onlineModel;
+            String localModel = route.localModel;
+
+            beginRequest(tab);
+            REQUESTS.execute(() -> {
+                try {
+                    java.util.List<Message> conversationHistory = history;
+                    if (useDocs) {
+                        int topK = Integer.getInteger("rag.topK", 4);
+                        java.util.List<String> retrieved = DocumentIndex.getInstance().search(docsEndpoint, userInput, topK);
+                        conversationHistory = DocumentIndex.augment(history, retrieved);
+                    }
 
-                    if (onlineButton.isSelected()) {
+                    if (online && !handOffToLocal(onlineModel, localModel)) {
                         // --- ONLINE MODEL LOGIC ---
-                        currentModel = (String) onlineModelComboBox.getSelectedItem();
+                        String currentModel = onlineModel;
 
                         if (currentModel == null) {
                             throw new IOException("No online model selected.");
                         }
 
-                        response = sendOnlineChatRequest(currentModel, userInput);
-                        formattedResponse = extractContentForOnlineModel(response, currentModel);
+                        SwingUtilities.invokeLater(() -> startReply(tab, activeConversation, currentModel));
+                        StringBuilder reply = new StringBuilder();
+                        String response = sendOnlineChatRequest(currentModel, conversationHistory,
+                                delta -> {
+                                    reply.append(delta);
+                                    SwingUtilities.invokeLater(() -> streamReply(tab, activeConversation, delta));
+                                });
+
+                        SwingUtilities.invokeLater(() -> {
+                            addReply(activeConversation, replyTo, new Message("assistant", reply.toString()), currentModel,
+                                    currentModel, UsageLedger.usageOfStream(response));
+                            endReply(tab, activeConversation, currentModel, null);
+                            showRawResponse(tab, currentModel, response, response.length(), isStreamTruncated(response));
+                        });
 
                     } else {
                         // --- LOCALAI LOGIC ---
-                        String endpoint = apiEndpointField.getText().trim();
-                        currentModel = (String) modelComboBox.getSelectedItem();
+                        String currentModel = localModel;
 
-                        if (currentModel == null || currentModel.equals("Loading...") || currentModel.equals("Connection failed") ||
-                                currentModel.equals("No models found") || currentModel.equals("No response")) {
+                        if (!isUsableLocalModel(currentModel)) {
                             throw new IOException("No valid LocalAI model selected.");
                         }
+                        // A model can live on its own host (endpoint in its profile)
+                        String endpoint = ModelProfile.forModel(currentModel).getEndpoint(docsEndpoint);
 
-                        LocalAIClient client = new LocalAIClient(endpoint);
-                        java.util.List<Message> conversationHistory = parseConversationHistory(chatPane.getText());
-                        conversationHistory.add(new Message("user", userInput));
-
-                        response = client.sendChatRequestWithHistory(currentModel, conversationHistory);
-                        formattedResponse = extractContentRobustly(response);
-                    }
-
-                    SwingUtilities.invokeLater(() -> {
-                        String displayModel = onlineButton.isSelected() ? currentModel : "AI";
-
-                        // Append AI response in blue
-                        appendColoredText(chatPane, displayModel + ": ", aiStyle);
-                        appendColoredText(chatPane, formattedResponse + "\n\n", null); // Regular text for the message content
-
-                        responseArea.setText("Raw Response (" + displayModel + ", length: " + response.length() + "):\n" + response);
-                        chatPane.setCaretPosition(chatPane.getDocument().getLength());
+                        if (HedgedRequest.isEnabled()) {
+                            sendHedged(tab, activeConversation, replyTo, conversationHistory, endpoint, currentModel);
+                            return;
+                        }
 
-                        if (response.contains("\"finish_reason\":\"length\"")) {
-                            JOptionPane.showMessageDialog(null,
-                                    "⚠️ Response was TRUNCATED due to token limits!\n" +
-                                            "The response might be incomplete.",
-                                    "Response Truncated",
-                                    JOptionPane.WARNING_MESSAGE);
+                        ChatBackend client = ChatBackends.forEndpoint(endpoint);
+                        int candidates = Integer.getInteger("localai.candidates", 1);
+                        java.util.List<String> replies;
+                        String rawPreview;
+                        int rawLength;
+                        boolean cutOff;
+                        long[] usage;
+                        try (ResponseBody response = ToolCalling.isEnabled()
+                                ? ToolCalling.send(client, currentModel, conversationHistory, activeConversation.getSlotId(),
+                                        candidates, call -> showToolCall(tab, activeConversation, call))
+                                : client.sendChatRequestWithHistory(currentModel, conversationHistory,
+                                        activeConversation.getSlotId(), candidates, null)) {
+                            replies = extractCandidates(response);
+                            rawPreview = response.preview(RAW_PREVIEW_BYTES);
+                            rawLength = response.length();
+                            cutOff = "length".equals(response.getString("choices", "0", "finish_reason"));
+                            usage = UsageLedger.usageOf(response);
                         }
-                    });
+                        // A reply that hit max_tokens is extended in place, so it stays one turn
+                        String servedAs = "AI";
+                        if (cutOff && AutoContinue.isEnabled()) {
+                            AutoContinue.Result continued = AutoContinue.run(client, currentModel, conversationHistory,
+                                    activeConversation.getSlotId(), replies.get(0));
+                            replies.set(0, continued.text);
+                            cutOff = continued.truncated;
+                            servedAs = "AI, continued " + continued.rounds + "x";
+                        }
+                        boolean truncated = cutOff;
+                        String displayModel = servedAs;
+
+                        SwingUtilities.invokeLater(() -> {
+                            // Every candidate becomes an alternative reply; the first one is shown and carries the usage
+                            for (int i = 0; i < replies.size(); i++) {
+                                addReply(activeConversation, replyTo, new Message("assistant", replies.get(i)), "AI",
+                                        currentModel, i == 0 ? usage : null);
+                            }
+                            IdlePrefetcher.schedule(client, endpoint, currentModel, activeConversation, truncated);
+                            endReply(tab, activeConversation, "AI", replies.get(0));
+                            showRawResponse(tab, displayModel, rawPreview, rawLength, truncated);
+                        });
+                    }
 
-                } catch (IOException ex) {
+                } catch (IOException | RuntimeException ex) {
+                    // RuntimeException: the embedded backend reports a failed worker as IllegalStateException
                     SwingUtilities.invokeLater(() -> {
-                        responseArea.setText("Error: " + ex.getMessage());
+                        failReply(tab, activeConversation);
+                        showResponse(tab, "Error: " + ex.getMessage());
                         JOptionPane.showMessageDialog(null,
                                 "Failed to connect: " + ex.getMessage(),
                                 "Connection Error",
                                 JOptionPane.ERROR_MESSAGE);
                     });
+                } finally {
+                    SwingUtilities.invokeLater(() -> endRequest(tab));
                 }
-            }).start();
+            });
         }
 
-        private java.util.List<Message> parseConversationHistory(String chatText) {
-            java.util.List<Message> history = new java.util.ArrayList<>();
-            if (chatText == null || chatText.trim().isEmpty()) {
-                return history;
-            }
-
-            String[] lines = chatText.split("\n");
-            StringBuilder currentMessage = new StringBuilder();
-            String currentRole = null;
-
-            for (String line : lines) {
-                String potentialRole = null;
-                String contentLine = line;
-
-                if (line.startsWith("You: ")) {
-                    potentialRole = "user";
-                    contentLine = line.substring(5);
-                } else if (line.startsWith("AI: ")) {
-                    potentialRole = "assistant";
-                    contentLine = line.substring(4);
-                } else if (line.endsWith(": ")) { // Heuristic for online model name (e.g., Deepseek: )
-                    String prefix = line.substring(0, line.indexOf(": "));
-                    if (onlineModelComboBox.getItemCount() > 0) {
-                        for(int i = 0; i < onlineModelComboBox.getItemCount(); i++) {
-                            if(prefix.equals(onlineModelComboBox.getItemAt(i))) {
-                                potentialRole = "assistant";
-                                contentLine = line.substring(prefix.length() + 2); // Remove "Model: "
-                                break;
-                            }
-                        }
-                    }
-                }
+        // Keeps the model and the token usage the server reported ({prompt, completion}, or null) with the reply
+        private void addReply(Conversation conversation, Conversation.Turn after, Message message, String label,
+                              String model, long[] usage) {
+            conversation.reply(after, message, label, model,
+                    usage == null ? 0 : (int) usage[0], usage == null ? 0 : (int) usage[1]);
+        }
 
-                if (potentialRole != null) {
-                    if (currentRole != null && currentMessage.length() > 0) {
-                        history.add(new Message(currentRole, currentMessage.toString().trim()));
-                        currentMessage.setLength(0);
-                    }
-                    currentRole = potentialRole;
-                    currentMessage.append(contentLine);
-                } else if (!line.trim().isEmpty()) {
-                    if (currentMessage.length() > 0) {
-                        currentMessage.append("\n");
-                    }
-                    currentMessage.append(line);
-                }
+        // A provider near its daily token budget hands the turn to the selected local model instead
+        private boolean handOffToLocal(String onlineModel, String localModel) throws IOException {
+            if (onlineModel == null || !UsageLedger.isNearBudget(onlineModel)) {
+                return false;
             }
-
-            if (currentRole != null && currentMessage.length() > 0) {
-                history.add(new Message(currentRole, currentMessage.toString().trim()));
+            if (isUsableLocalModel(localModel)) {
+                System.out.println(onlineModel + " is near its daily token budget, sending this turn to the local model");
+                return true;
+            }
+            if (UsageLedger.isOverBudget(onlineModel)) {
+                throw new IOException(onlineModel + " has used up its daily token budget and no local model is selected.");
             }
+            return false;
+        }
 
-            return history;
+        private boolean isUsableLocalModel(String model) {
+            return model != null && !model.equals("Loading...") && !model.equals("Connection failed")
+                    && !model.equals("No models found") && !model.equals("No response");
         }
 
-        private String extractContentRobustly(String jsonResponse) {
-            String content = extractUsingKeyPath(jsonResponse, new String[]{"choices", "0", "message", "content"});
-            if (content != null) {
-                return unescapeJson(content);
-            }
-            String contentWithQuotes = extractContentWithQuoteHandling(jsonResponse);
-            return Objects.requireNonNullElseGet(contentWithQuotes, () -> "❌ Failed to parse response. Raw JSON:\n" + jsonResponse);
+        // Local turn under the latency SLO: falls back if the local model is too slow to start
+        private void sendHedged(ChatTab tab, Conversation activeConversation, Conversation.Turn replyTo,
+                                java.util.List<Message> history, String endpoint, String model) throws IOException {
+            long deadline = Long.getLong("hedge.deadlineMs", 0L);
+            HedgedRequest.Path local = HedgedRequest.localPath("AI", endpoint, model, activeConversation.getSlotId());
+            HedgedRequest.Path fallback = HedgedRequest.configuredFallback(model);
+
+            HedgedRequest.Result result = HedgedRequest.run(local, fallback, deadline, history,
+                    winner -> SwingUtilities.invokeLater(() -> startReply(tab, activeConversation, winner.getLabel())),
+                    delta -> SwingUtilities.invokeLater(() -> streamReply(tab, activeConversation, delta)));
+
+            String servedBy = result.usedFallback ? "fallback " + result.servedBy.getLabel() : "local";
+            System.out.println("Turn served by " + servedBy);
+            SwingUtilities.invokeLater(() -> {
+                addReply(activeConversation, replyTo, new Message("assistant", result.content), result.servedBy.getLabel(),
+                        result.servedBy.getModel(), UsageLedger.usageOfStream(result.raw));
+                endReply(tab, activeConversation, result.servedBy.getLabel(), null);
+                String raw = result.raw == null ? "" : result.raw;
+                showRawResponse(tab, result.servedBy.getLabel() + ", served by " + servedBy, raw, raw.length(),
+                        isStreamTruncated(raw));
+            });
         }
 
-        private String extractContentForOnlineModel(String jsonResponse, String model) {
-            if (model.equals("Deepseek") || model.equals("ChatGPT")) {
-                String content = extractUsingKeyPath(jsonResponse, new String[]{"choices", "0", "message", "content"});
-                if (content != null) {
-                    return unescapeJson(content);
-                }
-                return "❌ Failed to parse response from " + model + ". Raw JSON:\n" + jsonResponse;
+        // One line per tool call the model made, e.g. "calculate {"expression": "2^10"} -> 1024 (3 ms)"
+        private void showToolCall(ChatTab tab, Conversation conversation, ToolCalling.Call call) {
+            String line = call.name + " " + call.arguments + " -> " + summarize(call.getResult())
+                    + " (" + call.getMillis() + " ms)\n";
+            SwingUtilities.invokeLater(() -> streamReply(tab, conversation, line));
+        }
 
-            } else if (model.equals("Gemini")) {
-                String content = extractUsingKeyPath(jsonResponse, new String[]{"candidates", "0", "content", "parts", "0", "text"});
-                if (content != null) {
-                    return unescapeJson(content);
+        // The finish reason sits in one of the last events (OpenAI finish_reason, Gemini finishReason)
+        private boolean isStreamTruncated(String rawEvents) {
+            int end = rawEvents.length();
+            for (int checked = 0; checked < 3 && end > 0; ) {
+                int start = rawEvents.lastIndexOf('\n', end - 1) + 1;
+                String event = rawEvents.substring(start, end).trim();
+                end = start - 1;
+                if (event.isEmpty()) {
+                    continue;
+                }
+                checked++;
+                JsonBytes json = new JsonBytes(java.nio.ByteBuffer.wrap(event.getBytes(java.nio.charset.StandardCharsets.UTF_8)));
+                if ("length".equals(json.getString("choices", "0", "finish_reason"))
+                        || "MAX_TOKENS".equals(json.getString("candidates", "0", "finishReason"))) {
+                    return true;
                 }
-                return "❌ Failed to parse response from Gemini. Raw JSON:\n" + jsonResponse;
             }
-
-            return "Online model (" + model + ") parser not implemented. Raw JSON:\n" + jsonResponse;
+            return false;
         }
 
-        private String extractUsingKeyPath(String json, String[] keys) {
-            try {
-                String currentJson = json;
-                for (int i = 0; i < keys.length; i++) {
-                    String key = keys[i];
-                    String searchPattern = "\"" + key + "\":";
-                    int keyIndex = currentJson.indexOf(searchPattern);
-                    if (keyIndex == -1) return null;
-
-                    int valueStart = currentJson.indexOf(':', keyIndex) + 1;
-                    if (valueStart == 0) return null;
-
-                    while (valueStart < currentJson.length() && Character.isWhitespace(currentJson.charAt(valueStart))) {
-                        valueStart++;
-                    }
-
-                    if (valueStart >= currentJson.length()) return null;
+        private void showRawResponse(ChatTab tab, String displayModel, String rawPreview, int length, boolean truncated) {
+            showResponse(tab, "Raw Response (" + displayModel + ", length: " + length + "; "
+                    + HttpTransport.getCompressionSummary() + "):\n" + rawPreview);
 
-                    char firstChar = currentJson.charAt(valueStart);
-
-                    if (firstChar == '{') {
-                        int braceCount = 1;
-                        int endIndex = valueStart + 1;
-                        while (endIndex < currentJson.length() && braceCount > 0) {
-                            char c = currentJson.charAt(endIndex);
-                            if (c == '{') braceCount++;
-                            else if (c == '}') braceCount--;
-                            endIndex++;
-                        }
-                        if (braceCount == 0) {
-                            currentJson = currentJson.substring(valueStart, endIndex);
-                        } else {
-                            return null;
-                        }
-                    } else if (firstChar == '[') {
-                        int bracketCount = 1;
-                        int endIndex = valueStart + 1;
-                        while (endIndex < currentJson.length() && bracketCount > 0) {
-                            char c = currentJson.charAt(endIndex);
-                            if (c == '[') bracketCount++;
-                            else if (c == ']') bracketCount--;
-                            endIndex++;
-                        }
-                        if (bracketCount == 0) {
-                            currentJson = currentJson.substring(valueStart, endIndex);
-
-                            if (i + 1 < keys.length) {
-                                try {
-                                    int arrayIndex = Integer.parseInt(keys[i + 1]);
-                                    String[] arrayElements = parseJsonArray(currentJson);
-                                    if (arrayIndex >= 0 && arrayIndex < arrayElements.length) {
-                                        currentJson = arrayElements[arrayIndex];
-                                        i++;
-                                    } else {
-                                        return null;
-                                    }
-                                } catch (NumberFormatException e) {
-                                    return null;
-                                }
-                            }
-                        } else {
-                            return null;
-                        }
-                    } else if (firstChar == '"') {
-                        int endIndex = valueStart + 1;
-                        boolean escaped = false;
-                        while (endIndex < currentJson.length()) {
-                            char c = currentJson.charAt(endIndex);
-                            if (escaped) {
-                                escaped = false;
-                            } else if (c == '\\') {
-                                escaped = true;
-                            } else if (c == '"') {
-                                if (i == keys.length - 1) {
-                                    return currentJson.substring(valueStart + 1, endIndex);
-                                } else {
-                                    currentJson = currentJson.substring(valueStart + 1, endIndex);
-                                    break;
-                                }
-                            }
-                            endIndex++;
-                        }
-                        if (endIndex >= currentJson.length()) return null;
-                    } else {
-                        int endIndex = valueStart;
-                        while (endIndex < currentJson.length()) {
-                            char c = currentJson.charAt(endIndex);
-                            if (c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) {
-                                break;
-                            }
-                            endIndex++;
-                        }
-                        String value = currentJson.substring(valueStart, endIndex).trim();
-                        if (i == keys.length - 1) {
-                            return value;
-                        } else {
-                            currentJson = value;
-                        }
-                    }
-                }
-            } catch (Exception e) {
-                System.out.println("Key path extraction failed: " + e.getMessage());
+            if (truncated) {
+                JOptionPane.showMessageDialog(null,
+                        "⚠️ Response was TRUNCATED due to token limits!\n" +
+                                "The response might be incomplete.",
+                        "Response Truncated",
+                        JOptionPane.WARNING_MESSAGE);
             }
-            return null;
         }
 
-        private String[] parseJsonArray(String jsonArray) {
-            java.util.List<String> elements = new java.util.ArrayList<>();
-            try {
-                if (!jsonArray.startsWith("[") || !jsonArray.endsWith("]")) {
-                    return new String[0];
-                }
-
-                String content = jsonArray.substring(1, jsonArray.length() - 1).trim();
-                if (content.isEmpty()) {
-                    return new String[0];
-                }
-
-                int braceCount = 0;
-                int bracketCount = 0;
-                boolean inString = false;
-                boolean escaped = false;
-                int start = 0;
-
-                for (int i = 0; i < content.length(); i++) {
-                    char c = content.charAt(i);
-
-                    if (escaped) {
-                        escaped = false;
-                    } else if (c == '\\') {
-                        escaped = true;
-                    } else if (c == '"' && braceCount == 0 && bracketCount == 0) {
-                        inString = !inString;
-                    } else if (!inString) {
-                        if (c == '{') braceCount++;
-                        else if (c == '}') braceCount--;
-                        else if (c == '[') bracketCount++;
-                        else if (c == ']') bracketCount--;
-                        else if (c == ',' && braceCount == 0 && bracketCount == 0) {
-                            elements.add(content.substring(start, i).trim());
-                            start = i + 1;
-                        }
-                    }
-                }
-
-                if (start < content.length()) {
-                    elements.add(content.substring(start).trim());
+        // The content of every choices[i], in order; never empty
+        private java.util.List<String> extractCandidates(ResponseBody response) {
+            java.util.List<String> candidates = new java.util.ArrayList<>();
+            int count = response.json().count("choices");
+            for (int i = 0; i < count; i++) {
+                String content = response.getString("choices", String.valueOf(i), "message", "content");
+                if (content != null) {
+                    candidates.add(content);
                 }
-
-            } catch (Exception e) {
-                System.out.println("Array parsing failed: " + e.getMessage());
             }
-            return elements.toArray(new String[0]);
+            if (candidates.isEmpty()) {
+                candidates.add(extractContentRobustly(response));
+            }
+            return candidates;
         }
 
-        private String extractContentWithQuoteHandling(String json) {
-            try {
-                int contentIndex = json.indexOf("\"content\":");
-                if (contentIndex == -1) return null;
-
-                int quoteStart = json.indexOf('"', contentIndex + 10);
-                if (quoteStart == -1) return null;
-
-                StringBuilder content = new StringBuilder();
-                boolean escaped = false;
-                int pos = quoteStart + 1;
-
-                while (pos < json.length()) {
-                    char c = json.charAt(pos);
-                    if (escaped) {
-                        content.append('\\').append(c);
-                        escaped = false;
-                    } else if (c == '\\') {
-                        escaped = true;
-                    } else if (c == '"') {
-                        return unescapeJson(content.toString());
-                    } else {
-                        content.append(c);
-                    }
-                    pos++;
-                }
-            } catch (Exception e) {
-                System.out.println("Direct content extraction failed: " + e.getMessage());
+        private String extractContentRobustly(ResponseBody response) {
+            String content = response.getString("choices", "0", "message", "content");
+            if (content != null) {
+                return content;
             }
-            return null;
+            // Not the expected shape: fall back to the text-based scan on a decoded copy (bounded if spilled)
+            String jsonResponse = response.isSpilled() ? response.preview(RAW_PREVIEW_BYTES) : response.toString();
+            String contentWithQuotes = JsonExtractor.extractContentWithQuoteHandling(jsonResponse);
+            return Objects.requireNonNullElseGet(contentWithQuotes, () -> "❌ Failed to parse response. Raw JSON:\n" + jsonResponse);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,81 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Lists the models of several LocalAI hosts at once, so startup waits for the fastest host
+ * rather than for every host in turn. The hosts come from -Dlocalai.endpoints=url1,url2,...
+ */
+public class ModelDiscovery {
+
+    /** Models found on one host, or the reason there are none. */
+    public static class Result {
+        public final String endpoint;
+        public final List<String> models;
+        public final String error;
+        public final long millis;
+
+        Result(String endpoint, List<String> models, String error, long millis) {
+            this.endpoint = endpoint;
+            this.models = models;
+            this.error = error;
+            this.millis = millis;
+        }
+    }
+
+    public static List<String> configuredEndpoints() {
+        List<String> endpoints = new ArrayList<>();
+        for (String endpoint : System.getProperty("localai.endpoints", "").split(",")) {
+            if (!endpoint.trim().isEmpty()) {
+                endpoints.add(endpoint.trim());
+            }
+        }
+        return endpoints;
+    }
+
+    /**
+     * Queries every endpoint concurrently; onResult is called from a background thread as
+     * each host answers or fails, in whatever order that happens.
+     */
+    public static void discoverAll(List<String> endpoints, Consumer<Result> onResult) {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, endpoints.size()), r -> {
+            Thread thread = new Thread(r, "model-discovery");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (String endpoint : endpoints) {
+            pool.execute(() -> onResult.accept(discover(endpoint)));
+        }
+        pool.shutdown();
+    }
+
+    public static Result discover(String endpoint) {
+        long start = System.nanoTime();
+        try {
+            String response = ChatBackends.forEndpoint(endpoint).getAvailableModels();
+            return new Result(endpoint, parseModelIds(response), null, (System.nanoTime() - start) / 1_000_000);
+        } catch (IOException e) {
+            return new Result(endpoint, Collections.emptyList(), e.getMessage(), (System.nanoTime() - start) / 1_000_000);
+        }
+    }
+
+    // The "id" of every entry in the OpenAI-style {"data": [...]} list
+    private static List<String> parseModelIds(String response) {
+        List<String> models = new ArrayList<>();
+        JsonBytes json = new JsonBytes(ByteBuffer.wrap(response.getBytes(StandardCharsets.UTF_8)));
+        int count = json.count("data");
+        for (int i = 0; i < count; i++) {
+            String id = json.getString("data", String.valueOf(i), "id");
+            if (id != null && !id.isEmpty()) {
+                models.add(id);
+            }
+        }
+        return models;
+    }
+}
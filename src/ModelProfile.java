@@ -0,0 +1,289 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Generation settings for one model, read once from ~/.slopmachine/profiles.properties
+ * (-Dprofiles.file=path to use another file). Keys are "<model>.<setting>", with "default.<setting>"
+ * applying to every model that doesn't set its own; online providers use their name as the model
+ * (e.g. "Deepseek.max_tokens"). Settings:
+ *
+ *   context_size   tokens the model was loaded with; older turns are dropped to stay inside it
+ *   max_tokens     reply limit (LocalAI reserves KV cache for it, so keep it near what you need)
+ *   temperature, top_p, top_k
+ *   stop           stop sequences separated by commas, e.g. <|im_end|>,###
+ *   system_prompt  sent first unless the conversation already starts with a system message
+ *   image_max_side attached images are scaled down to fit this many pixels (default 1024)
+ *   endpoint       LocalAI host for this model, or the API URL of a provider
+ *   model          model id sent to an online provider, e.g. Deepseek.model=deepseek-reasoner
+ *   daily_token_budget  prompt plus completion tokens a day (see UsageLedger); near it, turns go to the local model
+ *   budget_soft_limit   fraction of the budget at which that starts (default 0.8)
+ *
+ * Characters like ':' or '=' in a model name must be escaped with a backslash in the file.
+ */
+public class ModelProfile {
+    private static final int IMAGE_TOKENS = 768;
+    private static Properties properties;
+
+    private final String name;
+
+    private ModelProfile(String name) {
+        this.name = name;
+    }
+
+    public static ModelProfile forModel(String name) {
+        load();
+        return new ModelProfile(name == null ? "" : name);
+    }
+
+    /** Reads the profiles file, writing a commented template first if there is none. */
+    public static synchronized void load() {
+        if (properties != null) {
+            return;
+        }
+        Properties loaded = new Properties();
+        File file = getFile();
+        try {
+            if (!file.exists()) {
+                writeTemplate(file);
+            }
+            try (InputStream in = new FileInputStream(file)) {
+                loaded.load(in);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not read model profiles from " + file + ": " + e.getMessage());
+        }
+        properties = loaded;
+    }
+
+    private static File getFile() {
+        String path = System.getProperty("profiles.file");
+        return path != null ? new File(path)
+                : new File(System.getProperty("user.home"), ".slopmachine/profiles.properties");
+    }
+
+    private static void writeTemplate(File file) throws IOException {
+        // -Dprofiles.file may be a bare file name, which has no parent
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        try (PrintWriter writer = new PrintWriter(new FileWriter(file))) {
+            writer.println("# Per-model generation settings: <model>.<setting>=value, default.<setting> for all models.");
+            writer.println("# Settings: context_size, max_tokens, temperature, top_p, top_k, stop (a,b), system_prompt,");
+            writer.println("#           image_max_side, endpoint, model, daily_token_budget, budget_soft_limit");
+            writer.println("#");
+            writer.println("# default.max_tokens=4096");
+            writer.println("# qwen2.5-coder-7b-instruct.context_size=8192");
+            writer.println("# qwen2.5-coder-7b-instruct.max_tokens=2048");
+            writer.println("# qwen2.5-coder-7b-instruct.temperature=0.2");
+            writer.println("# qwen2.5-coder-7b-instruct.stop=<|im_end|>");
+            writer.println("# qwen2.5-coder-7b-instruct.system_prompt=You are a concise coding assistant.");
+            writer.println("# qwen2.5-coder-7b-instruct.endpoint=http://192.168.0.26:8080");
+            writer.println("# Deepseek.model=deepseek-reasoner");
+            writer.println("# Gemini.max_tokens=8192");
+            writer.println("# Deepseek.daily_token_budget=500000");
+        }
+    }
+
+    private String get(String setting) {
+        String value = properties.getProperty(name + "." + setting);
+        if (value == null) {
+            value = properties.getProperty("default." + setting);
+        }
+        return value == null || value.trim().isEmpty() ? null : value.trim();
+    }
+
+    private int getInt(String setting, int fallback) {
+        String value = get(setting);
+        try {
+            return value == null ? fallback : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.err.println("Ignoring " + name + "." + setting + "=" + value + ": not a number");
+            return fallback;
+        }
+    }
+
+    private Double getDouble(String setting, Double fallback) {
+        String value = get(setting);
+        try {
+            return value == null ? fallback : Double.valueOf(value);
+        } catch (NumberFormatException e) {
+            System.err.println("Ignoring " + name + "." + setting + "=" + value + ": not a number");
+            return fallback;
+        }
+    }
+
+    /** 0 when unknown: no context budgeting then. */
+    public int getContextSize() {
+        return getInt("context_size", 0);
+    }
+
+    public int getMaxTokens(int fallback) {
+        return getInt("max_tokens", fallback);
+    }
+
+    public Double getTemperature(Double fallback) {
+        return getDouble("temperature", fallback);
+    }
+
+    public Double getTopP() {
+        return getDouble("top_p", null);
+    }
+
+    public int getTopK() {
+        return getInt("top_k", 0);
+    }
+
+    public List<String> getStop() {
+        List<String> stop = new ArrayList<>();
+        String value = get("stop");
+        if (value != null) {
+            for (String sequence : value.split(",")) {
+                if (!sequence.isEmpty()) stop.add(sequence);
+            }
+        }
+        return stop;
+    }
+
+    public String getSystemPrompt() {
+        return get("system_prompt");
+    }
+
+    public int getImageMaxSide() {
+        return getInt("image_max_side", 1024);
+    }
+
+    /** 0 when there is no budget. */
+    public long getDailyTokenBudget() {
+        return getInt("daily_token_budget", 0);
+    }
+
+    public double getBudgetSoftLimit() {
+        return getDouble("budget_soft_limit", 0.8);
+    }
+
+    // endpoint and model only make sense per model, so there is no default.* for them
+    public String getEndpoint(String fallback) {
+        return getOwn("endpoint", fallback);
+    }
+
+    public String getModel(String fallback) {
+        return getOwn("model", fallback);
+    }
+
+    private String getOwn(String setting, String fallback) {
+        String value = properties.getProperty(name + "." + setting);
+        return value != null && !value.trim().isEmpty() ? value.trim() : fallback;
+    }
+
+    /**
+     * The history as it should be sent: the profile's system prompt first (unless there already is
+     * one), and with a known context size, the oldest turns dropped until the prompt plus the reply
+     * limit fit. System messages and the latest turn are always kept.
+     *
+     * Dropping just the overflow would move the start of the prompt on every turn, and the server
+     * would have to evaluate the whole prompt again instead of reusing its cache. So the oldest
+     * turns go in steps of a quarter of the budget, counted from the start of the conversation:
+     * the prompt then fills between 75% and 100% of the budget, and its start stays the same
+     * until the conversation has grown by another quarter.
+     */
+    public List<Message> fit(List<Message> history, int maxTokens) {
+        List<Message> messages = new ArrayList<>(history);
+        String systemPrompt = getSystemPrompt();
+        if (systemPrompt != null && (messages.isEmpty() || !messages.get(0).getRole().equals("system"))) {
+            messages.add(0, new Message("system", systemPrompt));
+        }
+
+        int contextSize = getContextSize();
+        if (contextSize <= 0) {
+            return messages;
+        }
+        int budget = contextSize - Math.min(maxTokens, contextSize / 2);
+        int tokens = estimateTokens(messages);
+        if (tokens <= budget) {
+            return messages;
+        }
+        int step = Math.max(1, budget / 4);
+        int toDrop = (tokens - budget + step - 1) / step * step;
+        int droppedTokens = 0;
+        int dropped = 0;
+        for (int i = 0; i < messages.size() - 1; ) {
+            Message message = messages.get(i);
+            if (message.getRole().equals("system")) {
+                i++;
+                continue;
+            }
+            // Once enough was dropped, also drop replies up to the next user turn so the history opens with one
+            if (droppedTokens >= toDrop && message.getRole().equals("user")) {
+                break;
+            }
+            droppedTokens += estimateTokens(message);
+            messages.remove(i);
+            dropped++;
+        }
+        tokens -= droppedTokens;
+        if (dropped > 0) {
+            System.out.println("Context budget for " + name + ": dropped " + dropped + " oldest messages ("
+                    + tokens + " of " + contextSize + " tokens left for the prompt)");
+        }
+        return messages;
+    }
+
+    /** max_tokens reduced, if needed, so prompt plus reply stays inside the context size. */
+    public int fitMaxTokens(List<Message> fitted, int maxTokens) {
+        int contextSize = getContextSize();
+        if (contextSize <= 0) {
+            return maxTokens;
+        }
+        return Math.max(64, Math.min(maxTokens, contextSize - estimateTokens(fitted)));
+    }
+
+    // Rough count (about 4 characters per token plus per-message overhead, and a flat cost per
+    // image, near what common vision encoders use for a 1024px picture); no tokenizer here
+    public static int estimateTokens(List<Message> messages) {
+        int tokens = 0;
+        for (Message message : messages) {
+            tokens += estimateTokens(message);
+        }
+        return tokens;
+    }
+
+    private static int estimateTokens(Message message) {
+        return message.getContent().length() / 4 + 4 + message.getImages().size() * IMAGE_TOKENS;
+    }
+
+    /**
+     * Sampling settings as extra OpenAI-style request fields, e.g. , "top_p": 0.9, "stop": ["###"].
+     * max_tokens and temperature are left to the caller, which knows its own defaults.
+     */
+    public String getSamplingJson() {
+        StringBuilder json = new StringBuilder();
+        Double topP = getTopP();
+        if (topP != null) {
+            json.append(", \"top_p\": ").append(topP);
+        }
+        if (getTopK() > 0) {
+            json.append(", \"top_k\": ").append(getTopK());
+        }
+        List<String> stop = getStop();
+        if (!stop.isEmpty()) {
+            json.append(", \"stop\": ").append(toJsonArray(stop));
+        }
+        return json.toString();
+    }
+
+    public static String toJsonArray(List<String> values) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) json.append(", ");
+            json.append('"').append(JsonExtractor.escape(values.get(i))).append('"');
+        }
+        return json.append("]").toString();
+    }
+}
@@ -0,0 +1,97 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Base for vendors speaking the OpenAI chat completions protocol with a Bearer API key.
+ */
+public abstract class OpenAICompatibleProvider implements ChatProvider {
+    private final String name;
+    private final String endpoint;
+    private final String model;
+    private final String apiKeyVariable;
+
+    protected OpenAICompatibleProvider(String name, String endpoint, String model, String apiKeyVariable) {
+        this.name = name;
+        this.endpoint = endpoint;
+        this.model = model;
+        this.apiKeyVariable = apiKeyVariable;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    // Overridable with <name>.model in the model profiles
+    @Override
+    public String getModel() {
+        return ModelProfile.forModel(name).getModel(model);
+    }
+
+    // Overridable with -Dprovider.<name>.endpoint (e.g. to point at StubServer) or <name>.endpoint in the profiles
+    @Override
+    public String getEndpoint(boolean stream) {
+        return System.getProperty("provider." + name.toLowerCase() + ".endpoint",
+                ModelProfile.forModel(name).getEndpoint(endpoint));
+    }
+
+    @Override
+    public Map<String, String> getHeaders() throws IOException {
+        String apiKey = System.getenv(apiKeyVariable);
+        if (apiKey == null || apiKey.isEmpty()) {
+            throw new IOException(apiKeyVariable + " environment variable is not set.");
+        }
+        return Collections.singletonMap("Authorization", "Bearer " + apiKey);
+    }
+
+    @Override
+    public String encodeRequest(List<Message> history, boolean stream) {
+        return encodeRequestBody(history, stream).toString();
+    }
+
+    @Override
+    public RequestBody encodeRequestBody(List<Message> history, boolean stream) {
+        // Only what the profile sets is sent; otherwise the vendor's defaults apply
+        ModelProfile profile = ModelProfile.forModel(name);
+        int maxTokens = profile.getMaxTokens(0);
+        List<Message> messages = profile.fit(history, maxTokens);
+
+        StringBuilder options = new StringBuilder();
+        if (maxTokens > 0) {
+            options.append(", \"max_tokens\": ").append(profile.fitMaxTokens(messages, maxTokens));
+        }
+        Double temperature = profile.getTemperature(null);
+        if (temperature != null) {
+            options.append(", \"temperature\": ").append(temperature);
+        }
+        options.append(profile.getSamplingJson());
+
+        RequestBody body = new RequestBody().append("{\"model\": \"" + getModel() + "\", \"messages\": [");
+        for (int i = 0; i < messages.size(); i++) {
+            if (i > 0) body.append(",");
+            messages.get(i).appendJson(body);
+        }
+        // Streamed replies only report their token usage when asked to (see UsageLedger)
+        String usage = stream ? ", \"stream_options\": {\"include_usage\": true}" : "";
+        return body.append("]" + options + ", \"stream\": " + stream + usage + "}");
+    }
+
+    // "content": null (tool calls, deepseek-reasoner's reasoning chunks) comes back as null, not "null"
+    @Override
+    public String decodeResponse(String json) {
+        return parse(json).getString("choices", "0", "message", "content");
+    }
+
+    @Override
+    public String decodeStreamEvent(String data) {
+        return parse(data).getString("choices", "0", "delta", "content");
+    }
+
+    private static JsonBytes parse(String json) {
+        return new JsonBytes(ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,447 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Small OpenAI-compatible proxy in front of one or more LocalAI hosts, so several people (or
+ * other tools) can share a GPU box through the client's transport. It serves:
+ *
+ *   GET  /v1/models            merged model list of all backends, cached for --models-ttl-ms
+ *   POST /v1/chat/completions  forwarded to a backend that has the model (streaming or not)
+ *   GET  /proxy/stats          request counters
+ *
+ * Identical chat requests that arrive while one is already in flight are coalesced: only one
+ * goes to the backend and every caller gets the same reply (streams are replayed from the start,
+ * then followed live). At most --concurrency requests are sent upstream at once; the rest wait in
+ * per-client queues that are served round-robin, so one busy script can't starve everyone else.
+ * Clients are told apart by an X-Client-Id header, else by their address.
+ *
+ * Usage: java ProxyServer [--port 8090] [--bind 127.0.0.1] [--backends http://host:8080,...]
+ *                         [--concurrency 2] [--models-ttl-ms 60000]
+ *    or: java -jar SLOPMACHINE.jar --proxy [same options]
+ *
+ * Without --backends the hosts from -Dlocalai.endpoints are used. Use --bind 0.0.0.0 to let
+ * other machines in.
+ */
+public class ProxyServer {
+    private final String bindAddress;
+    private final int port;
+    private final List<String> backends;
+    private final long modelsTtlMillis;
+    private final FairQueue queue;
+    private final ExecutorService upstream = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "proxy-upstream");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<String, InFlight> inFlight = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> activePerBackend = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> stats = new ConcurrentHashMap<>();
+    private HttpServer server;
+
+    // Model cache: model id -> backends that serve it, refreshed at most once per TTL
+    private Map<String, List<String>> modelBackends = Collections.emptyMap();
+    private long modelsFetchedAt;
+
+    public ProxyServer(String bindAddress, int port, List<String> backends, int concurrency, long modelsTtlMillis) {
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.backends = backends;
+        this.modelsTtlMillis = modelsTtlMillis;
+        this.queue = new FairQueue(concurrency);
+        for (String backend : backends) {
+            activePerBackend.put(backend, new AtomicInteger());
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String bindAddress = "127.0.0.1";
+        int port = 8090;
+        List<String> backends = ModelDiscovery.configuredEndpoints();
+        int concurrency = 2;
+        long modelsTtlMillis = 60000;
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--port": port = Integer.parseInt(value); break;
+                case "--bind": bindAddress = value; break;
+                case "--backends":
+                    backends = new ArrayList<>();
+                    for (String backend : value.split(",")) {
+                        if (!backend.trim().isEmpty()) backends.add(backend.trim());
+                    }
+                    break;
+                case "--concurrency": concurrency = Integer.parseInt(value); break;
+                case "--models-ttl-ms": modelsTtlMillis = Long.parseLong(value); break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(2);
+            }
+        }
+        if (backends.isEmpty()) {
+            backends = List.of("http://192.168.0.25:8080");
+        }
+
+        ProxyServer proxy = new ProxyServer(bindAddress, port, backends, concurrency, modelsTtlMillis);
+        proxy.start();
+        System.out.println("Proxy listening on http://" + bindAddress + ":" + proxy.getPort() + " for " + backends);
+    }
+
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", exchange -> {
+            try {
+                route(exchange);
+            } catch (Exception e) {
+                System.err.println("Proxy error: " + e.getMessage());
+                sendError(exchange, 502, String.valueOf(e.getMessage()));
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+        upstream.shutdownNow();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public long getCount(String counter) {
+        AtomicLong value = stats.get(counter);
+        return value == null ? 0 : value.get();
+    }
+
+    private void route(HttpExchange exchange) throws IOException, InterruptedException {
+        String path = exchange.getRequestURI().getPath();
+        String method = exchange.getRequestMethod();
+        count("requests");
+
+        if (method.equals("GET") && path.equals("/proxy/stats")) {
+            StringBuilder json = new StringBuilder("{");
+            for (Map.Entry<String, AtomicLong> entry : stats.entrySet()) {
+                if (json.length() > 1) json.append(", ");
+                json.append('"').append(JsonExtractor.escape(entry.getKey())).append("\": ").append(entry.getValue().get());
+            }
+            send(exchange, 200, "application/json", json.append("}").toString());
+        } else if (method.equals("GET") && path.equals("/v1/models")) {
+            send(exchange, 200, "application/json", modelsJson());
+        } else if (method.equals("POST") && path.equals("/v1/chat/completions")) {
+            chatCompletion(exchange, readBody(exchange));
+        } else {
+            sendError(exchange, 404, "The proxy only serves /v1/models and /v1/chat/completions");
+        }
+    }
+
+    private void chatCompletion(HttpExchange exchange, String body) throws IOException, InterruptedException {
+        boolean stream = "true".equals(JsonExtractor.extractUsingKeyPath(body, new String[]{"stream"}));
+        String key = (stream ? "stream " : "") + body;
+
+        InFlight request = new InFlight(stream);
+        InFlight existing = inFlight.putIfAbsent(key, request);
+        if (existing != null) {
+            count("coalesced");
+            request = existing;
+        } else {
+            String model = JsonExtractor.extractUsingKeyPath(body, new String[]{"model"});
+            String backend = pickBackend(model);
+            String client = clientId(exchange);
+            InFlight leader = request;
+            upstream.execute(() -> forward(key, leader, backend, client, body));
+        }
+
+        // Nothing is sent until the backend has answered, so an upstream failure can still be a proper error
+        request.awaitFirstChunk();
+        if (request.hasFailedBeforeData()) {
+            sendError(exchange, 502, request.getError());
+            return;
+        }
+
+        if (!stream) {
+            send(exchange, 200, "application/json", request.getChunk(0));
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        for (int i = 0; ; i++) {
+            String chunk = request.awaitChunk(i);
+            if (chunk == null) break;
+            out.write(chunk.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+        out.close();
+    }
+
+    private void forward(String key, InFlight request, String backend, String client, String body) {
+        AtomicInteger active = activePerBackend.get(backend);
+        try {
+            queue.acquire(client);
+            try {
+                count("upstream");
+                active.incrementAndGet();
+                String endpoint = backend + "/v1/chat/completions";
+                if (request.stream) {
+                    HttpTransport.postStream(endpoint, body, Collections.emptyMap(),
+                            data -> request.add("data: " + data + "\n\n"));
+                    request.add("data: [DONE]\n\n");
+                } else {
+                    request.add(HttpTransport.post(endpoint, body, Collections.emptyMap()));
+                }
+            } finally {
+                active.decrementAndGet();
+                queue.release();
+            }
+        } catch (IOException e) {
+            count("upstream_errors");
+            request.fail(backend + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            request.fail("Proxy is shutting down");
+        } finally {
+            inFlight.remove(key, request);
+            request.finish();
+        }
+    }
+
+    // Among the backends that list the model, the one with the fewest requests in progress
+    private String pickBackend(String model) {
+        List<String> candidates = null;
+        try {
+            candidates = model == null ? null : cachedModels().get(model);
+        } catch (IOException e) {
+            // No model list to go by; the first backend gets the request
+        }
+        if (candidates == null || candidates.isEmpty()) {
+            candidates = backends;
+        }
+        String best = candidates.get(0);
+        for (String candidate : candidates) {
+            if (activePerBackend.get(candidate).get() < activePerBackend.get(best).get()) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    private synchronized Map<String, List<String>> cachedModels() throws IOException {
+        if (!modelBackends.isEmpty() && System.currentTimeMillis() - modelsFetchedAt < modelsTtlMillis) {
+            count("models_cache_hits");
+            return modelBackends;
+        }
+
+        Map<String, List<String>> fresh = new LinkedHashMap<>();
+        List<ModelDiscovery.Result> results = Collections.synchronizedList(new ArrayList<>());
+        java.util.concurrent.CountDownLatch done = new java.util.concurrent.CountDownLatch(backends.size());
+        ModelDiscovery.discoverAll(backends, result -> {
+            results.add(result);
+            done.countDown();
+        });
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while listing models");
+        }
+        count("models_fetches");
+
+        // Keep the backend order from the command line, not the order they answered in
+        for (String backend : backends) {
+            for (ModelDiscovery.Result result : results) {
+                if (!result.endpoint.equals(backend)) continue;
+                if (result.error != null) {
+                    System.err.println("Proxy: listing models on " + backend + " failed: " + result.error);
+                }
+                for (String model : result.models) {
+                    fresh.computeIfAbsent(model, k -> new ArrayList<>()).add(backend);
+                }
+            }
+        }
+
+        if (fresh.isEmpty() && !modelBackends.isEmpty()) {
+            return modelBackends; // every backend is down: keep serving the last known list
+        }
+        if (fresh.isEmpty()) {
+            throw new IOException("No backend answered /v1/models");
+        }
+        modelBackends = fresh;
+        modelsFetchedAt = System.currentTimeMillis();
+        return modelBackends;
+    }
+
+    private String modelsJson() throws IOException {
+        StringBuilder data = new StringBuilder();
+        for (Map.Entry<String, List<String>> entry : cachedModels().entrySet()) {
+            if (data.length() > 0) data.append(",");
+            data.append("{\"id\": \"").append(JsonExtractor.escape(entry.getKey()))
+                    .append("\", \"object\": \"model\", \"owned_by\": \"")
+                    .append(JsonExtractor.escape(String.join(" ", entry.getValue()))).append("\"}");
+        }
+        return "{\"object\": \"list\", \"data\": [" + data + "]}";
+    }
+
+    private void count(String counter) {
+        stats.computeIfAbsent(counter, k -> new AtomicLong()).incrementAndGet();
+    }
+
+    private static String clientId(HttpExchange exchange) {
+        String id = exchange.getRequestHeaders().getFirst("X-Client-Id");
+        return id != null && !id.isEmpty() ? id : exchange.getRemoteAddress().getAddress().getHostAddress();
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            in = new GZIPInputStream(in);
+        }
+        return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        send(exchange, status, "application/json",
+                "{\"error\": {\"message\": \"" + JsonExtractor.escape(message) + "\", \"code\": " + status + "}}");
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * One upstream request and everything it has produced so far, shared by all callers
+     * that asked for the same thing.
+     */
+    private static class InFlight {
+        final boolean stream;
+        private final List<String> chunks = new ArrayList<>();
+        private boolean finished;
+        private String error;
+
+        InFlight(boolean stream) {
+            this.stream = stream;
+        }
+
+        synchronized void add(String chunk) {
+            chunks.add(chunk);
+            notifyAll();
+        }
+
+        synchronized void fail(String message) {
+            error = message;
+        }
+
+        synchronized void finish() {
+            finished = true;
+            notifyAll();
+        }
+
+        synchronized void awaitFirstChunk() throws InterruptedException {
+            while (chunks.isEmpty() && !finished) {
+                wait();
+            }
+        }
+
+        synchronized boolean hasFailedBeforeData() {
+            return chunks.isEmpty() && finished;
+        }
+
+        synchronized String getError() {
+            return error != null ? error : "Backend sent nothing";
+        }
+
+        synchronized String getChunk(int index) {
+            return chunks.get(index);
+        }
+
+        // Blocks until chunk i exists; null once the request has finished without it
+        synchronized String awaitChunk(int index) throws InterruptedException {
+            while (chunks.size() <= index && !finished) {
+                wait();
+            }
+            return index < chunks.size() ? chunks.get(index) : null;
+        }
+    }
+
+    /**
+     * Limits upstream requests to a number of permits. Waiting requests are queued per client,
+     * and a freed permit goes to the next client in turn rather than to the longest queue.
+     */
+    private static class FairQueue {
+        private final int permits;
+        private int active;
+        private final LinkedHashMap<String, ArrayDeque<boolean[]>> waiting = new LinkedHashMap<>();
+
+        FairQueue(int permits) {
+            this.permits = Math.max(1, permits);
+        }
+
+        synchronized void acquire(String client) throws InterruptedException {
+            if (active < permits && waiting.isEmpty()) {
+                active++;
+                return;
+            }
+            boolean[] granted = {false};
+            waiting.computeIfAbsent(client, k -> new ArrayDeque<>()).add(granted);
+            try {
+                while (!granted[0]) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                if (granted[0]) {
+                    release();
+                } else {
+                    ArrayDeque<boolean[]> clientQueue = waiting.get(client);
+                    clientQueue.remove(granted);
+                    if (clientQueue.isEmpty()) waiting.remove(client);
+                }
+                throw e;
+            }
+        }
+
+        synchronized void release() {
+            Iterator<Map.Entry<String, ArrayDeque<boolean[]>>> clients = waiting.entrySet().iterator();
+            if (!clients.hasNext()) {
+                active--;
+                return;
+            }
+            // Hand the permit straight to the first client in line, then send that client to the back
+            Map.Entry<String, ArrayDeque<boolean[]>> next = clients.next();
+            clients.remove();
+            next.getValue().poll()[0] = true;
+            if (!next.getValue().isEmpty()) {
+                waiting.put(next.getKey(), next.getValue());
+            }
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A JSON request body that may embed images. The JSON text is kept as UTF-8 chunks and each
+ * image as its compressed bytes, with the base64 produced only while writeTo streams the body
+ * out. The exact length is known up front, so HttpTransport can still send it fixed-length.
+ */
+public class RequestBody {
+    private final List<Object> parts = new ArrayList<>(); // byte[] JSON chunks and ImageAttachments
+    private final StringBuilder pending = new StringBuilder();
+    private long length;
+    private boolean hasImages;
+
+    public static RequestBody of(String json) {
+        return new RequestBody().append(json);
+    }
+
+    public RequestBody append(String json) {
+        pending.append(json);
+        return this;
+    }
+
+    /** Adds the image as bare base64, for the caller to put inside a JSON string. */
+    public RequestBody appendBase64(ImageAttachment image) {
+        flush();
+        parts.add(image);
+        length += image.getBase64Length();
+        hasImages = true;
+        return this;
+    }
+
+    private void flush() {
+        if (pending.length() > 0) {
+            byte[] bytes = pending.toString().getBytes(StandardCharsets.UTF_8);
+            parts.add(bytes);
+            length += bytes.length;
+            pending.setLength(0);
+        }
+    }
+
+    /** Size in bytes once written. */
+    public long length() {
+        flush();
+        return length;
+    }
+
+    public boolean hasImages() {
+        return hasImages;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        flush();
+        for (Object part : parts) {
+            if (part instanceof byte[]) {
+                byte[] bytes = (byte[]) part;
+                out.write(bytes, 0, bytes.length);
+            } else {
+                ((ImageAttachment) part).writeBase64(out);
+            }
+        }
+    }
+
+    /** The whole body as one String, images included; for callers that need text. */
+    @Override
+    public String toString() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 8, length()));
+        try {
+            writeTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,142 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A response body held as raw bytes in a pooled buffer. Values are pulled straight out of the
+ * bytes with JsonBytes, so only the extracted text is ever decoded into a String.
+ * Close it to hand the buffer back to the pool.
+ *
+ * Bodies that grow past -Dtransport.spillThresholdBytes (default 8 MB) are moved to a temp file
+ * while they are read and parsed from a memory mapping of it, so a runaway generation costs disk
+ * rather than heap. The file is deleted on close.
+ */
+public class ResponseBody implements AutoCloseable {
+    private static final int DEFAULT_SPILL_THRESHOLD = 8 * 1024 * 1024;
+
+    private byte[] buffer;
+    private final int length;
+    private final File spillFile;
+    private MappedByteBuffer mapped;
+
+    private ResponseBody(byte[] buffer, int length, File spillFile, MappedByteBuffer mapped) {
+        this.buffer = buffer;
+        this.length = length;
+        this.spillFile = spillFile;
+        this.mapped = mapped;
+    }
+
+    public static ResponseBody read(InputStream in) throws IOException {
+        int threshold = Integer.getInteger("transport.spillThresholdBytes", DEFAULT_SPILL_THRESHOLD);
+        byte[] buffer = BufferPool.acquire(0);
+        boolean kept = false;
+        try (InputStream stream = in) {
+            int length = 0;
+            int n;
+            while ((n = stream.read(buffer, length, buffer.length - length)) >= 0) {
+                length += n;
+                if (length >= threshold) {
+                    return spill(stream, buffer, length);
+                }
+                if (length == buffer.length) {
+                    buffer = BufferPool.grow(buffer, length);
+                }
+            }
+            kept = true;
+            return new ResponseBody(buffer, length, null, null);
+        } finally {
+            if (!kept) {
+                BufferPool.release(buffer);
+            }
+        }
+    }
+
+    // Writes what was read so far and the rest of the stream to a temp file, then maps it
+    private static ResponseBody spill(InputStream stream, byte[] buffer, int length) throws IOException {
+        File file = File.createTempFile("slopmachine-response", ".json");
+        file.deleteOnExit();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            writeFully(channel, buffer, length);
+            long total = length;
+            int n;
+            while ((n = stream.read(buffer)) >= 0) {
+                total += n;
+                if (total > Integer.MAX_VALUE) {
+                    throw new IOException("Response is larger than 2 GB, giving up");
+                }
+                writeFully(channel, buffer, n);
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, total);
+            System.out.println("Response of " + total / 1024 + " KB spilled to " + file);
+            return new ResponseBody(null, (int) total, file, mapped);
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, byte[] bytes, int count) throws IOException {
+        ByteBuffer source = ByteBuffer.wrap(bytes, 0, count);
+        while (source.hasRemaining()) {
+            channel.write(source);
+        }
+    }
+
+    /** Size of the body in bytes. */
+    public int length() {
+        return length;
+    }
+
+    /** True if the body was too large for memory and lives in a temp file. */
+    public boolean isSpilled() {
+        return spillFile != null;
+    }
+
+    public JsonBytes json() {
+        return new JsonBytes(mapped != null ? mapped.duplicate() : ByteBuffer.wrap(buffer, 0, length));
+    }
+
+    /** Decoded string value (or literal) at the key path, or null. */
+    public String getString(String... path) {
+        return json().getString(path);
+    }
+
+    /** The first maxBytes of the body as text, for display. */
+    public String preview(int maxBytes) {
+        if (length <= maxBytes) {
+            return toString();
+        }
+        return decode(maxBytes) + "\n... (" + (length - maxBytes) + " more bytes)";
+    }
+
+    /** The whole body as text. For a spilled body, prefer json() or preview(). */
+    @Override
+    public String toString() {
+        return decode(length);
+    }
+
+    private String decode(int count) {
+        if (mapped == null) {
+            return new String(buffer, 0, count, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[count];
+        mapped.duplicate().get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() {
+        BufferPool.release(buffer);
+        buffer = null;
+        mapped = null;
+        if (spillFile != null && !spillFile.delete()) {
+            // Still mapped on some platforms; deleteOnExit takes care of it
+            System.err.println("Could not delete " + spillFile + " yet");
+        }
+    }
+}
@@ -0,0 +1,504 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Local stand-in for a LocalAI host and the Gemini API, for testing and benchmarking the client
+ * without a GPU box or API keys. It serves:
+ *
+ *   GET  /v1/models                        model list (models.json, or the --models list)
+ *   POST /v1/chat/completions              OpenAI-style reply, streamed as SSE when "stream": true;
+ *                                          with "tools", arithmetic like "2+2, 3*4" becomes calculate calls
+ *   POST /v1/embeddings                    deterministic hashed embeddings
+ *   POST /backend/shutdown/{model}         removes the model from /v1/models
+ *   POST /v1beta/models/{m}:generateContent and :streamGenerateContent (Gemini)
+ *   GET  /stub/stats                       request counters per route, and "connections" opened
+ *   HEAD (any path)                        200 without a body, for connection warm-up
+ *
+ * Replies are replayed from a recordings directory (chat.json, gemini.json, models.json, in the
+ * vendor's response format) or, without one, echo the last user message. Latency before the first
+ * token, an extra delay on each new connection (standing in for the handshakes), token rate and
+ * failure injection are configurable, and failures use a seeded Random so runs are reproducible.
+ * Request bodies may be gzip-encoded and replies are gzipped when the client sends
+ * Accept-Encoding: gzip.
+ *
+ * Usage: java StubServer [--port 8089] [--latency-ms 200] [--handshake-ms 0] [--tokens-per-sec 30] [--fail-rate 0.0]
+ *                        [--fail-status 503] [--seed 42] [--recordings dir] [--models a,b,c]
+ *
+ * Point the client at it with the endpoint field (http://localhost:8089) and, for the online
+ * providers, -Dprovider.deepseek.endpoint=http://localhost:8089/v1/chat/completions,
+ * -Dprovider.gemini.endpoint=http://localhost:8089/v1beta/models/ and so on.
+ */
+public class StubServer {
+    private final int port;
+    private final long latencyMs;
+    private final double tokensPerSecond;
+    private final long handshakeMs;
+    private final double failRate;
+    private final int failStatus;
+    private final Random random;
+    private final File recordings;
+    private final List<String> models = new CopyOnWriteArrayList<>();
+    private final Map<String, AtomicLong> stats = new ConcurrentHashMap<>();
+    private final Set<InetSocketAddress> clients = ConcurrentHashMap.newKeySet();
+    private HttpServer server;
+
+    public StubServer(int port, long latencyMs, double tokensPerSecond, double failRate, int failStatus,
+                      long seed, File recordings, List<String> models) {
+        this(port, latencyMs, 0, tokensPerSecond, failRate, failStatus, seed, recordings, models);
+    }
+
+    public StubServer(int port, long latencyMs, long handshakeMs, double tokensPerSecond, double failRate, int failStatus,
+                      long seed, File recordings, List<String> models) {
+        this.port = port;
+        this.latencyMs = latencyMs;
+        this.handshakeMs = handshakeMs;
+        this.tokensPerSecond = tokensPerSecond;
+        this.failRate = failRate;
+        this.failStatus = failStatus;
+        this.random = new Random(seed);
+        this.recordings = recordings;
+        this.models.addAll(models);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = 8089;
+        long latencyMs = 200;
+        long handshakeMs = 0;
+        double tokensPerSecond = 30;
+        double failRate = 0;
+        int failStatus = 503;
+        long seed = 42;
+        File recordings = null;
+        List<String> models = new ArrayList<>(List.of("stub-model"));
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--port": port = Integer.parseInt(value); break;
+                case "--latency-ms": latencyMs = Long.parseLong(value); break;
+                case "--handshake-ms": handshakeMs = Long.parseLong(value); break;
+                case "--tokens-per-sec": tokensPerSecond = Double.parseDouble(value); break;
+                case "--fail-rate": failRate = Double.parseDouble(value); break;
+                case "--fail-status": failStatus = Integer.parseInt(value); break;
+                case "--seed": seed = Long.parseLong(value); break;
+                case "--recordings": recordings = new File(value); break;
+                case "--models": models = new ArrayList<>(List.of(value.split(","))); break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        StubServer stub = new StubServer(port, latencyMs, handshakeMs, tokensPerSecond, failRate, failStatus, seed,
+                recordings, models);
+        stub.start();
+        System.out.println("Stub server listening on http://localhost:" + stub.getPort());
+    }
+
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", exchange -> {
+            try {
+                route(exchange);
+            } catch (Exception e) {
+                System.err.println("Stub error: " + e.getMessage());
+                send(exchange, 500, "{\"error\": {\"message\": \"" + JsonExtractor.escape(String.valueOf(e.getMessage())) + "\"}}");
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public long getCount(String counter) {
+        AtomicLong value = stats.get(counter);
+        return value == null ? 0 : value.get();
+    }
+
+    private void route(HttpExchange exchange) throws IOException, InterruptedException {
+        String path = exchange.getRequestURI().getPath();
+        String method = exchange.getRequestMethod();
+        String body = readBody(exchange);
+        count("requests");
+        // A request from a client port not seen before came over a new connection
+        if (clients.add(exchange.getRemoteAddress())) {
+            count("connections");
+            // Stands in for the DNS, TCP and TLS setup a real provider costs on a new connection
+            Thread.sleep(handshakeMs);
+        }
+        count(method + " " + path.replaceAll("/backend/shutdown/.*", "/backend/shutdown/*")
+                .replaceAll("/v1beta/models/[^:]*", "/v1beta/models/*"));
+
+        // Connection warm-up (see ConnectionWarmer): any path, no body
+        if (method.equals("HEAD")) {
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        if (path.equals("/stub/stats")) {
+            StringBuilder json = new StringBuilder("{");
+            for (Map.Entry<String, AtomicLong> entry : stats.entrySet()) {
+                if (json.length() > 1) json.append(", ");
+                json.append('"').append(JsonExtractor.escape(entry.getKey())).append("\": ").append(entry.getValue().get());
+            }
+            send(exchange, 200, json.append("}").toString());
+            return;
+        }
+
+        if (shouldFail()) {
+            count("injected_failures");
+            Thread.sleep(latencyMs);
+            send(exchange, failStatus, "{\"error\": {\"message\": \"Injected failure\", \"code\": " + failStatus + "}}");
+            return;
+        }
+
+        if (method.equals("GET") && path.equals("/v1/models")) {
+            send(exchange, 200, modelsJson());
+        } else if (method.equals("POST") && path.equals("/v1/chat/completions")) {
+            chatCompletion(exchange, body);
+        } else if (method.equals("POST") && path.equals("/v1/embeddings")) {
+            send(exchange, 200, embeddings(body));
+        } else if (method.equals("POST") && path.startsWith("/backend/shutdown/")) {
+            models.remove(path.substring("/backend/shutdown/".length()));
+            send(exchange, 200, "{\"message\": \"ok\"}");
+        } else if (method.equals("POST") && path.startsWith("/v1beta/models/") && path.contains(":")) {
+            geminiGenerate(exchange, body, path.endsWith(":streamGenerateContent"));
+        } else {
+            send(exchange, 404, "{\"error\": {\"message\": \"No stub for " + method + " " + path + "\"}}");
+        }
+    }
+
+    private void chatCompletion(HttpExchange exchange, String body) throws IOException, InterruptedException {
+        String model = JsonExtractor.extractUsingKeyPath(body, new String[]{"model"});
+        String recorded = recording("chat.json");
+        String reply = recorded != null
+                ? JsonExtractor.unescapeJson(JsonExtractor.extractUsingKeyPath(recorded, new String[]{"choices", "0", "message", "content"}))
+                : "Stub reply to: " + lastUserMessage(body);
+
+        if (isStreaming(body)) {
+            streamTokens(exchange, reply, token -> String.format(
+                    "{\"object\": \"chat.completion.chunk\", \"model\": \"%s\", \"choices\": [{\"index\": 0, \"delta\": {\"content\": \"%s\"}, \"finish_reason\": null}]}",
+                    model, JsonExtractor.escape(token)),
+                    String.format("{\"object\": \"chat.completion.chunk\", \"model\": \"%s\", \"choices\": [{\"index\": 0, \"delta\": {}, \"finish_reason\":\"stop\"}]}", model),
+                    // With stream_options.include_usage the totals follow in a chunk without choices
+                    body.contains("\"include_usage\": true") ? String.format(
+                            "{\"object\": \"chat.completion.chunk\", \"model\": \"%s\", \"choices\": [], " +
+                                    "\"usage\": {\"prompt_tokens\": %d, \"completion_tokens\": %d, \"total_tokens\": %d}}",
+                            model, body.length() / 4, tokenize(reply).size(), body.length() / 4 + tokenize(reply).size()) : null);
+            return;
+        }
+
+        List<String> tokens = tokenize(reply);
+        Thread.sleep(latencyMs + generationMillis(tokens.size()));
+        if (recorded != null) {
+            send(exchange, 200, recorded);
+            return;
+        }
+        if (body.contains("\"tools\": [") || body.contains("\"tools\":[")) {
+            String toolReply = toolCallReply(body, model);
+            if (toolReply != null) {
+                send(exchange, 200, toolReply);
+                return;
+            }
+        }
+        if (body.contains("\"tool_call_id\"")) {
+            reply = "Tool results: " + String.join("; ", toolResults(body));
+        }
+        // A trailing assistant message is a prefix to extend, as llama.cpp does
+        String prefill = trailingAssistantMessage(body);
+        if (prefill != null && reply.startsWith(prefill)) {
+            reply = reply.substring(prefill.length());
+        }
+        // Replies longer than max_tokens words are cut off, like a real model running out of budget
+        String maxTokens = JsonExtractor.extractUsingKeyPath(body, new String[]{"max_tokens"});
+        String finishReason = "stop";
+        List<String> words = tokenize(reply);
+        if (maxTokens != null && words.size() > Integer.parseInt(maxTokens.trim())) {
+            reply = String.join("", words.subList(0, Integer.parseInt(maxTokens.trim())));
+            finishReason = "length";
+        }
+        // "n" alternatives are numbered so they can be told apart
+        String n = JsonExtractor.extractUsingKeyPath(body, new String[]{"n"});
+        int candidates = n == null ? 1 : Integer.parseInt(n.trim());
+        StringBuilder choices = new StringBuilder();
+        for (int i = 0; i < candidates; i++) {
+            if (i > 0) choices.append(", ");
+            String content = i == 0 ? reply : reply + " (alternative " + (i + 1) + ")";
+            choices.append(String.format("{\"index\": %d, \"message\": {\"role\": \"assistant\", \"content\": \"%s\"}, " +
+                    "\"finish_reason\":\"%s\"}", i, JsonExtractor.escape(content), finishReason));
+        }
+        send(exchange, 200, String.format(
+                "{\"object\": \"chat.completion\", \"model\": \"%s\", \"choices\": [%s], " +
+                        "\"usage\": {\"prompt_tokens\": %d, \"completion_tokens\": %d, \"total_tokens\": %d}}",
+                model, choices, body.length() / 4, tokens.size() * candidates, body.length() / 4 + tokens.size() * candidates));
+    }
+
+    // A user turn made of arithmetic ("2+2, 3*4") gets one calculate call per expression
+    private static String toolCallReply(String body, String model) {
+        String[] messages = messages(body);
+        if (messages.length == 0 || !"user".equals(JsonExtractor.extractUsingKeyPath(messages[messages.length - 1], new String[]{"role"}))) {
+            return null;
+        }
+        String text = lastUserMessage(body);
+        if (!text.matches("[0-9+\\-*/%^()., ]+")) {
+            return null;
+        }
+        StringBuilder calls = new StringBuilder();
+        String[] expressions = text.split(",");
+        for (int i = 0; i < expressions.length; i++) {
+            if (i > 0) calls.append(", ");
+            String arguments = "{\"expression\": \"" + expressions[i].trim() + "\"}";
+            calls.append(String.format("{\"id\": \"call_%d\", \"type\": \"function\", \"function\": " +
+                    "{\"name\": \"calculate\", \"arguments\": \"%s\"}}", i, JsonExtractor.escape(arguments)));
+        }
+        return String.format("{\"object\": \"chat.completion\", \"model\": \"%s\", \"choices\": [{\"index\": 0, " +
+                "\"message\": {\"role\": \"assistant\", \"content\": null, \"tool_calls\": [%s]}, " +
+                "\"finish_reason\": \"tool_calls\"}]}", model, calls);
+    }
+
+    private static List<String> toolResults(String body) {
+        List<String> results = new ArrayList<>();
+        for (String message : messages(body)) {
+            if ("tool".equals(JsonExtractor.extractUsingKeyPath(message, new String[]{"role"}))) {
+                String content = JsonExtractor.extractUsingKeyPath(message, new String[]{"content"});
+                results.add(content == null ? "" : JsonExtractor.unescapeJson(content));
+            }
+        }
+        return results;
+    }
+
+    private static String trailingAssistantMessage(String body) {
+        String[] messages = messages(body);
+        if (messages.length == 0) {
+            return null;
+        }
+        String last = messages[messages.length - 1];
+        if (!"assistant".equals(JsonExtractor.extractUsingKeyPath(last, new String[]{"role"}))) {
+            return null;
+        }
+        String content = JsonExtractor.extractUsingKeyPath(last, new String[]{"content"});
+        return content == null ? null : JsonExtractor.unescapeJson(content);
+    }
+
+    private static String[] messages(String body) {
+        String messages = JsonExtractor.extractArray(body, "messages");
+        return messages == null ? new String[0] : JsonExtractor.parseJsonArray(messages);
+    }
+
+    private void geminiGenerate(HttpExchange exchange, String body, boolean stream) throws IOException, InterruptedException {
+        String recorded = recording("gemini.json");
+        String reply = recorded != null
+                ? JsonExtractor.unescapeJson(JsonExtractor.extractUsingKeyPath(recorded, new String[]{"candidates", "0", "content", "parts", "0", "text"}))
+                : "Stub reply to: " + lastGeminiText(body);
+
+        if (stream) {
+            streamTokens(exchange, reply, token -> String.format(
+                    "{\"candidates\": [{\"content\": {\"parts\": [{\"text\": \"%s\"}], \"role\": \"model\"}}]}",
+                    JsonExtractor.escape(token)),
+                    String.format("{\"candidates\": [{\"content\": {\"parts\": [{\"text\": \"\"}], \"role\": \"model\"}, \"finishReason\": \"STOP\"}], " +
+                            "\"usageMetadata\": {\"promptTokenCount\": %d, \"candidatesTokenCount\": %d}}",
+                            body.length() / 4, tokenize(reply).size()));
+            return;
+        }
+
+        List<String> tokens = tokenize(reply);
+        Thread.sleep(latencyMs + generationMillis(tokens.size()));
+        send(exchange, 200, recorded != null ? recorded : String.format(
+                "{\"candidates\": [{\"content\": {\"parts\": [{\"text\": \"%s\"}], \"role\": \"model\"}, \"finishReason\": \"STOP\"}], " +
+                        "\"usageMetadata\": {\"promptTokenCount\": %d, \"candidatesTokenCount\": %d}}",
+                JsonExtractor.escape(reply), body.length() / 4, tokens.size()));
+    }
+
+    private void streamTokens(HttpExchange exchange, String reply, java.util.function.Function<String, String> chunk,
+                              String... finalChunks) throws IOException, InterruptedException {
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.sendResponseHeaders(200, 0);
+        Thread.sleep(latencyMs);
+
+        OutputStream out = exchange.getResponseBody();
+        long tokenDelay = generationMillis(1);
+        for (String token : tokenize(reply)) {
+            out.write(("data: " + chunk.apply(token) + "\n\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            if (tokenDelay > 0) Thread.sleep(tokenDelay);
+        }
+        for (String finalChunk : finalChunks) {
+            if (finalChunk != null) {
+                out.write(("data: " + finalChunk + "\n\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        out.write("data: [DONE]\n\n".getBytes(StandardCharsets.UTF_8));
+        out.close();
+    }
+
+    private String embeddings(String body) {
+        String input = JsonExtractor.extractArray(body, "input");
+        String[] inputs = input != null ? JsonExtractor.parseJsonArray(input)
+                : new String[]{"\"" + JsonExtractor.extractUsingKeyPath(body, new String[]{"input"}) + "\""};
+
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; i < inputs.length; i++) {
+            // Bag-of-words hashed into 64 buckets: similar texts get similar vectors
+            float[] vector = new float[64];
+            for (String word : inputs[i].toLowerCase().split("\\W+")) {
+                if (!word.isEmpty()) vector[Math.floorMod(word.hashCode(), vector.length)] += 1;
+            }
+            if (i > 0) data.append(",");
+            data.append("{\"object\": \"embedding\", \"index\": ").append(i).append(", \"embedding\": [");
+            for (int j = 0; j < vector.length; j++) {
+                if (j > 0) data.append(",");
+                data.append(vector[j]);
+            }
+            data.append("]}");
+        }
+        return "{\"object\": \"list\", \"data\": [" + data + "]}";
+    }
+
+    private String modelsJson() throws IOException {
+        String recorded = recording("models.json");
+        if (recorded != null) {
+            return recorded;
+        }
+        StringBuilder data = new StringBuilder();
+        for (String model : models) {
+            if (data.length() > 0) data.append(",");
+            data.append("{\"id\": \"").append(JsonExtractor.escape(model)).append("\", \"object\": \"model\"}");
+        }
+        return "{\"object\": \"list\", \"data\": [" + data + "]}";
+    }
+
+    private synchronized boolean shouldFail() {
+        return failRate > 0 && random.nextDouble() < failRate;
+    }
+
+    private long generationMillis(int tokens) {
+        return tokensPerSecond > 0 ? (long) (tokens * 1000 / tokensPerSecond) : 0;
+    }
+
+    private String recording(String name) throws IOException {
+        if (recordings == null) {
+            return null;
+        }
+        File file = new File(recordings, name);
+        return file.isFile() ? new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8) : null;
+    }
+
+    private void count(String counter) {
+        stats.computeIfAbsent(counter, k -> new AtomicLong()).incrementAndGet();
+    }
+
+    private static boolean isStreaming(String body) {
+        return "true".equals(JsonExtractor.extractUsingKeyPath(body, new String[]{"stream"}));
+    }
+
+    private static String lastUserMessage(String body) {
+        String messages = JsonExtractor.extractArray(body, "messages");
+        String last = "";
+        if (messages != null) {
+            for (String message : JsonExtractor.parseJsonArray(messages)) {
+                if ("user".equals(JsonExtractor.extractUsingKeyPath(message, new String[]{"role"}))) {
+                    String parts = JsonExtractor.extractArray(message, "content");
+                    if (parts != null) {
+                        last = describeParts(parts);
+                        continue;
+                    }
+                    String content = JsonExtractor.extractUsingKeyPath(message, new String[]{"content"});
+                    if (content != null) last = JsonExtractor.unescapeJson(content);
+                }
+            }
+        }
+        return last;
+    }
+
+    // Content given as parts (text plus images): the text, and the size of every image
+    private static String describeParts(String parts) {
+        StringBuilder text = new StringBuilder();
+        for (String part : JsonExtractor.parseJsonArray(parts)) {
+            String partText = JsonExtractor.extractUsingKeyPath(part, new String[]{"text"});
+            String url = JsonExtractor.extractUsingKeyPath(part, new String[]{"image_url", "url"});
+            if (partText != null) {
+                text.append(JsonExtractor.unescapeJson(partText));
+            } else if (url != null) {
+                byte[] image = java.util.Base64.getDecoder().decode(url.substring(url.indexOf(',') + 1));
+                text.append(" [image, ").append(image.length).append(" bytes]");
+            }
+        }
+        return text.toString();
+    }
+
+    private static String lastGeminiText(String body) {
+        String contents = JsonExtractor.extractArray(body, "contents");
+        if (contents == null) return "";
+        String[] turns = JsonExtractor.parseJsonArray(contents);
+        if (turns.length == 0) return "";
+        String text = JsonExtractor.extractUsingKeyPath(turns[turns.length - 1], new String[]{"parts", "0", "text"});
+        return text == null ? "" : JsonExtractor.unescapeJson(text);
+    }
+
+    // Words with their trailing whitespace, a rough stand-in for model tokens
+    private static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        java.util.regex.Matcher matcher = java.util.regex.Pattern.compile("\\S+\\s*|\\s+").matcher(text);
+        while (matcher.find()) {
+            tokens.add(matcher.group());
+        }
+        return tokens;
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            in = new GZIPInputStream(in);
+        }
+        return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+
+    // Gzips the reply when the client accepts it, like a server behind a compressing proxy
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip") && bytes.length > 256) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                gzip.write(bytes);
+            }
+            bytes = compressed.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * Function calling for LocalAI models (-Dtools.enabled=true). The request carries the tool
+ * definitions; when the reply asks for tool calls, all of them are run at once on a small bounded
+ * pool and every result goes back in a single follow-up request, so a round of N calls costs one
+ * round trip and as much wall-clock time as its slowest call. A round is capped at
+ * -Dtools.timeoutMs (default 10000); calls still running then are cancelled and reported to the
+ * model as timed out. At most -Dtools.maxRounds (default 4) follow-ups are made per turn.
+ */
+public class ToolCalling {
+
+    /** A local function the model can call. */
+    public interface Tool {
+        String getName();
+
+        String getDescription();
+
+        /** JSON schema of the arguments object. */
+        String getParameters();
+
+        /** Runs the call; arguments is the JSON object the model produced. */
+        String call(JsonBytes arguments) throws Exception;
+    }
+
+    /** One call the model asked for, and what came of it. */
+    public static class Call {
+        public final String id;
+        public final String name;
+        public final String arguments;
+        String result;
+        volatile long millis;
+
+        Call(String id, String name, String arguments) {
+            this.id = id;
+            this.name = name;
+            this.arguments = arguments;
+        }
+
+        public String getResult() {
+            return result;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+    }
+
+    private static final Map<String, Tool> tools = new LinkedHashMap<>();
+    private static final ThreadPoolExecutor EXECUTOR;
+
+    static {
+        for (Tool tool : LocalTools.all()) {
+            tools.put(tool.getName(), tool);
+        }
+        int threads = Integer.getInteger("tools.threads", 4);
+        EXECUTOR = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "tool-call");
+            thread.setDaemon(true);
+            return thread;
+        });
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.getBoolean("tools.enabled");
+    }
+
+    /** Every registered tool as the OpenAI "tools" array; built once, so requests stay byte-identical. */
+    private static final String TOOLS_JSON = buildToolsJson();
+
+    private static String buildToolsJson() {
+        StringBuilder json = new StringBuilder("[");
+        for (Tool tool : tools.values()) {
+            if (json.length() > 1) json.append(", ");
+            json.append("{\"type\": \"function\", \"function\": {\"name\": \"").append(tool.getName())
+                    .append("\", \"description\": \"").append(JsonExtractor.escape(tool.getDescription()))
+                    .append("\", \"parameters\": ").append(tool.getParameters()).append("}}");
+        }
+        return json.append("]").toString();
+    }
+
+    /**
+     * Sends the history with the tools attached and runs tool rounds until the model answers
+     * with plain content (or the round limit is reached). Returns that final response; close it
+     * when done. onCall sees every finished call, on the calling thread.
+     */
+    public static ResponseBody send(ChatBackend client, String model, List<Message> history, int slotId,
+                                    int candidates, Consumer<Call> onCall) throws IOException {
+        List<Message> messages = new ArrayList<>(history);
+        int maxRounds = Integer.getInteger("tools.maxRounds", 4);
+        for (int round = 0; ; round++) {
+            // The last round goes out without tools, which forces a plain answer
+            String toolsJson = round < maxRounds ? TOOLS_JSON : null;
+            ResponseBody response = client.sendChatRequestWithHistory(model, messages, slotId, candidates, toolsJson);
+            List<Call> calls;
+            String toolCallsJson;
+            String content;
+            try {
+                calls = parseCalls(response);
+                if (calls.isEmpty()) {
+                    return response;
+                }
+                toolCallsJson = response.json().getRaw("choices", "0", "message", "tool_calls");
+                content = response.getString("choices", "0", "message", "content");
+            } catch (RuntimeException e) {
+                response.close();
+                throw e;
+            }
+            response.close();
+
+            runAll(calls, onCall);
+            messages.add(Message.toolCalls(content, toolCallsJson));
+            for (Call call : calls) {
+                messages.add(Message.toolResult(call.id, call.result));
+            }
+        }
+    }
+
+    private static List<Call> parseCalls(ResponseBody response) {
+        List<Call> calls = new ArrayList<>();
+        JsonBytes json = response.json();
+        int count = json.count("choices", "0", "message", "tool_calls");
+        for (int i = 0; i < count; i++) {
+            String index = String.valueOf(i);
+            String id = json.getString("choices", "0", "message", "tool_calls", index, "id");
+            String name = json.getString("choices", "0", "message", "tool_calls", index, "function", "name");
+            // Arguments are a JSON string per the spec, but some servers send the object itself
+            String arguments = json.getString("choices", "0", "message", "tool_calls", index, "function", "arguments");
+            if (arguments == null) {
+                arguments = json.getRaw("choices", "0", "message", "tool_calls", index, "function", "arguments");
+            }
+            calls.add(new Call(id == null ? "call_" + i : id, name, arguments == null ? "{}" : arguments));
+        }
+        return calls;
+    }
+
+    // Runs the calls concurrently; the whole round shares one deadline
+    private static void runAll(List<Call> calls, Consumer<Call> onCall) {
+        long timeout = Long.getLong("tools.timeoutMs", 10_000L);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        List<Future<String>> futures = new ArrayList<>();
+        for (Call call : calls) {
+            futures.add(EXECUTOR.submit(() -> {
+                long start = System.nanoTime();
+                try {
+                    return execute(call);
+                } finally {
+                    call.millis = (System.nanoTime() - start) / 1_000_000;
+                }
+            }));
+        }
+        for (int i = 0; i < calls.size(); i++) {
+            Call call = calls.get(i);
+            Future<String> future = futures.get(i);
+            try {
+                call.result = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                call.result = "Error: " + call.name + " timed out after " + timeout + " ms";
+                call.millis = timeout;
+            } catch (ExecutionException e) {
+                call.result = "Error: " + e.getCause().getMessage();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.cancel(true);
+                call.result = "Error: interrupted";
+            }
+            System.out.println("Tool " + call.name + " " + call.arguments + " -> " + call.result.length()
+                    + " chars in " + call.millis + " ms");
+            if (onCall != null) {
+                onCall.accept(call);
+            }
+        }
+    }
+
+    private static String execute(Call call) throws Exception {
+        Tool tool = call.name == null ? null : tools.get(call.name);
+        if (tool == null) {
+            return "Error: unknown tool " + call.name;
+        }
+        JsonBytes arguments = new JsonBytes(ByteBuffer.wrap(call.arguments.getBytes(StandardCharsets.UTF_8)));
+        return tool.call(arguments);
+    }
+}
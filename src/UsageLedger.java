@@ -0,0 +1,319 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Prompt and completion tokens of every reply, per model and day, taken from the "usage" block
+ * (OpenAI, Deepseek, LocalAI) or "usageMetadata" (Gemini) of the response. Online providers are
+ * counted under their name, local models under their id.
+ *
+ * Requests are appended to ~/.slopmachine/usage.log (-Dusage.file=path) as 15-byte records: 'U',
+ * the epoch day, a model number, the prompt and the completion tokens. A model's number is
+ * assigned by an 'M' record holding its name, written before its first use. At startup the log
+ * is replayed into a counter per model and day; a record cut short by a crash is dropped.
+ *
+ * A model with daily_token_budget in its profile is "near its budget" once today's tokens reach
+ * budget_soft_limit (default 0.8) of it, and "over" at the full budget.
+ *
+ * LoadGenerator turns recording off, so benchmark traffic stays out of the ledger and the
+ * budgets, and its latencies don't include the ledger's lock and disk write.
+ */
+public class UsageLedger {
+    private static final byte MODEL_RECORD = 'M';
+    private static final byte USAGE_RECORD = 'U';
+
+    /** Totals for one model on one day. */
+    public static class Counters {
+        public long requests;
+        public long promptTokens;
+        public long completionTokens;
+
+        public long getTotalTokens() {
+            return promptTokens + completionTokens;
+        }
+    }
+
+    private static final List<String> modelNames = new ArrayList<>();
+    private static final Map<String, Integer> modelIds = new HashMap<>();
+    // Key: epoch day << 16 | model number
+    private static final Map<Long, Counters> counters = new HashMap<>();
+    private static FileOutputStream log;
+    private static boolean loaded;
+    private static volatile boolean enabled = true;
+
+    /** Whether replies are recorded at all; reading the ledger works either way. */
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    private static File getFile() {
+        String path = System.getProperty("usage.file");
+        return path != null ? new File(path)
+                : new File(System.getProperty("user.home"), ".slopmachine/usage.log");
+    }
+
+    private static synchronized void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        File file = getFile();
+        if (!file.exists()) {
+            return;
+        }
+        long valid = 0;
+        // Counts what was really read: writeUTF's modified UTF-8 isn't String.getBytes(UTF_8) for NUL or emoji
+        try (CountingInputStream counted = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+             DataInputStream in = new DataInputStream(counted)) {
+            while (true) {
+                byte kind = in.readByte();
+                if (kind == MODEL_RECORD) {
+                    String name = in.readUTF();
+                    modelIds.put(name, modelNames.size());
+                    modelNames.add(name);
+                    valid = counted.getCount();
+                } else if (kind == USAGE_RECORD) {
+                    long day = in.readInt();
+                    int model = in.readUnsignedShort();
+                    int prompt = in.readInt();
+                    int completion = in.readInt();
+                    if (model >= modelNames.size()) {
+                        break;
+                    }
+                    add(day, model, prompt, completion);
+                    valid = counted.getCount();
+                } else {
+                    break;
+                }
+            }
+        } catch (EOFException e) {
+            // a record cut short, dropped below
+        } catch (IOException e) {
+            System.err.println("Could not read token usage from " + file + ": " + e.getMessage());
+        }
+        if (valid < file.length()) {
+            System.err.println("Dropping " + (file.length() - valid) + " unreadable bytes at the end of " + file);
+            try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+                out.setLength(valid);
+            } catch (IOException e) {
+                System.err.println("Could not repair " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static Counters add(long day, int model, long prompt, long completion) {
+        Counters totals = counters.computeIfAbsent(day << 16 | model, key -> new Counters());
+        totals.requests++;
+        totals.promptTokens += prompt;
+        totals.completionTokens += completion;
+        return totals;
+    }
+
+    /** Records the usage of a complete (non-streaming) response, if it reports any. */
+    public static void record(String model, ResponseBody response) {
+        if (enabled) {
+            record(model, usageOf(response.json()));
+        }
+    }
+
+    public static void record(String model, String json) {
+        if (enabled) {
+            record(model, usageOf(json));
+        }
+    }
+
+    /** Records the usage of a streamed reply, given its raw events one per line. */
+    public static void recordStream(String model, String rawEvents) {
+        if (enabled) {
+            record(model, usageOfStream(rawEvents));
+        }
+    }
+
+    private static void record(String model, long[] usage) {
+        if (usage != null) {
+            record(model, usage[0], usage[1]);
+        }
+    }
+
+    /** {prompt tokens, completion tokens} of a complete response, or null if it reports none. */
+    public static long[] usageOf(ResponseBody response) {
+        return usageOf(response.json());
+    }
+
+    public static long[] usageOf(String json) {
+        return json == null ? null : usageOf(new JsonBytes(ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    /**
+     * The same for a streamed reply. The totals come with the last events (OpenAI sends them in a
+     * final chunk when asked with stream_options, Gemini repeats the running totals in every
+     * chunk), so only those are looked at.
+     */
+    public static long[] usageOfStream(String rawEvents) {
+        if (rawEvents == null) {
+            return null;
+        }
+        int end = rawEvents.length();
+        for (int checked = 0; checked < 3 && end > 0; ) {
+            int start = rawEvents.lastIndexOf('\n', end - 1) + 1;
+            String event = rawEvents.substring(start, end).trim();
+            end = start - 1;
+            if (event.isEmpty()) {
+                continue;
+            }
+            checked++;
+            long[] usage = usageOf(event);
+            if (usage != null) {
+                return usage;
+            }
+        }
+        return null;
+    }
+
+    private static long[] usageOf(JsonBytes json) {
+        Long prompt = number(json.getString("usage", "prompt_tokens"));
+        Long completion = number(json.getString("usage", "completion_tokens"));
+        if (prompt == null && completion == null) {
+            prompt = number(json.getString("usageMetadata", "promptTokenCount"));
+            completion = number(json.getString("usageMetadata", "candidatesTokenCount"));
+        }
+        if (prompt == null && completion == null) {
+            return null;
+        }
+        return new long[]{prompt == null ? 0 : prompt, completion == null ? 0 : completion};
+    }
+
+    private static Long number(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public static void record(String model, long promptTokens, long completionTokens) {
+        if (enabled) {
+            write(model, promptTokens, completionTokens);
+        }
+    }
+
+    private static synchronized void write(String model, long promptTokens, long completionTokens) {
+        load();
+        long day = LocalDate.now().toEpochDay();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            Integer id = modelIds.get(model);
+            if (id == null) {
+                id = modelNames.size();
+                modelIds.put(model, id);
+                modelNames.add(model);
+                out.writeByte(MODEL_RECORD);
+                out.writeUTF(model);
+            }
+            Counters today = add(day, id, promptTokens, completionTokens);
+            out.writeByte(USAGE_RECORD);
+            out.writeInt((int) day);
+            out.writeShort(id);
+            out.writeInt((int) Math.min(promptTokens, Integer.MAX_VALUE));
+            out.writeInt((int) Math.min(completionTokens, Integer.MAX_VALUE));
+            append(bytes.toByteArray());
+            System.out.println(model + ": " + promptTokens + " prompt + " + completionTokens + " completion tokens, "
+                    + today.getTotalTokens() + " today" + budgetSummary(model, today.getTotalTokens()));
+        } catch (IOException e) {
+            System.err.println("Could not write token usage to " + getFile() + ": " + e.getMessage());
+        }
+    }
+
+    // One write per request, so a crash can only cut off the last record
+    private static void append(byte[] record) throws IOException {
+        if (log == null) {
+            File file = getFile();
+            if (file.getParentFile() != null) {
+                file.getParentFile().mkdirs();
+            }
+            log = new FileOutputStream(file, true);
+        }
+        log.write(record);
+    }
+
+    private static String budgetSummary(String model, long used) {
+        long budget = ModelProfile.forModel(model).getDailyTokenBudget();
+        return budget > 0 ? " (" + Math.round(100.0 * used / budget) + "% of the daily budget)" : "";
+    }
+
+    /** Today's totals for model; all zero if it hasn't been used today. */
+    public static synchronized Counters getToday(String model) {
+        load();
+        Counters today = new Counters();
+        Integer id = modelIds.get(model);
+        Counters recorded = id == null ? null : counters.get(LocalDate.now().toEpochDay() << 16 | id);
+        if (recorded != null) {
+            today.requests = recorded.requests;
+            today.promptTokens = recorded.promptTokens;
+            today.completionTokens = recorded.completionTokens;
+        }
+        return today;
+    }
+
+    /** Whether today's tokens reached the soft limit of the model's daily budget; false without a budget. */
+    public static boolean isNearBudget(String model) {
+        ModelProfile profile = ModelProfile.forModel(model);
+        long budget = profile.getDailyTokenBudget();
+        return budget > 0 && getToday(model).getTotalTokens() >= budget * profile.getBudgetSoftLimit();
+    }
+
+    public static boolean isOverBudget(String model) {
+        long budget = ModelProfile.forModel(model).getDailyTokenBudget();
+        return budget > 0 && getToday(model).getTotalTokens() >= budget;
+    }
+
+    /** A table of the last days' usage per model, newest first, with today's budgets. */
+    public static synchronized String report(int days) {
+        load();
+        long today = LocalDate.now().toEpochDay();
+        List<Long> recent = new ArrayList<>();
+        for (long key : counters.keySet()) {
+            if ((key >> 16) > today - days) {
+                recent.add(key);
+            }
+        }
+        // Newest day first, then by model number
+        recent.sort(Comparator.comparingLong((Long key) -> -(key >> 16)).thenComparingLong(key -> key & 0xFFFF));
+        StringBuilder report = new StringBuilder(String.format("%-12s %-28s %8s %12s %12s%n",
+                "Day", "Model", "Requests", "Prompt", "Completion"));
+        for (long key : recent) {
+            long day = key >> 16;
+            String model = modelNames.get((int) (key & 0xFFFF));
+            Counters totals = counters.get(key);
+            report.append(String.format("%-12s %-28s %8d %12d %12d", LocalDate.ofEpochDay(day), model,
+                    totals.requests, totals.promptTokens, totals.completionTokens));
+            if (day == today) {
+                report.append(budgetSummary(model, totals.getTotalTokens()));
+            }
+            report.append('\n');
+        }
+        if (recent.isEmpty()) {
+            report.append("No usage recorded in the last ").append(days).append(" days.\n");
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,140 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.PriorityQueue;
+
+/**
+ * Fixed-dimension float vectors in a memory-mapped file, searched with a flat (brute force)
+ * dot-product scan. Vectors are normalized on insert, so the dot product is the cosine similarity.
+ * The vectors live in the page cache rather than on the Java heap.
+ *
+ * File layout: int magic, int dimension, int count, int reserved, then count * dimension floats.
+ */
+public class VectorStore implements AutoCloseable {
+    private static final int MAGIC = 0x534C5056; // "SLPV"
+    private static final int HEADER_BYTES = 16;
+    private static final int GROWTH_VECTORS = 1024;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private MappedByteBuffer mapped;
+    private FloatBuffer vectors;
+    private int dimension;
+    private int count;
+
+    public VectorStore(File path) throws IOException {
+        file = new RandomAccessFile(path, "rw");
+        channel = file.getChannel();
+        if (file.length() >= HEADER_BYTES) {
+            if (file.readInt() != MAGIC) {
+                throw new IOException("Not a vector store: " + path);
+            }
+            dimension = file.readInt();
+            count = file.readInt();
+            map(file.length());
+        }
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    /** Drops vectors past newCount, e.g. when the chunk file was cut short by a crash. */
+    public synchronized void truncate(int newCount) {
+        if (newCount < count) {
+            count = newCount;
+            mapped.putInt(8, count);
+        }
+    }
+
+    /** Appends a vector and returns its id. */
+    public synchronized int add(float[] vector) throws IOException {
+        if (dimension == 0) {
+            dimension = vector.length;
+            map(HEADER_BYTES + (long) GROWTH_VECTORS * dimension * Float.BYTES);
+            mapped.putInt(0, MAGIC);
+            mapped.putInt(4, dimension);
+        } else if (vector.length != dimension) {
+            throw new IOException("Embedding has " + vector.length + " dimensions but the index uses "
+                    + dimension + ". Delete the index to switch embedding models.");
+        }
+
+        long needed = HEADER_BYTES + (long) (count + 1) * dimension * Float.BYTES;
+        if (needed > mapped.capacity()) {
+            map(needed + (long) GROWTH_VECTORS * dimension * Float.BYTES);
+        }
+
+        float norm = 0;
+        for (float v : vector) norm += v * v;
+        norm = norm > 0 ? (float) (1.0 / Math.sqrt(norm)) : 0;
+
+        int offset = count * dimension;
+        for (int i = 0; i < dimension; i++) {
+            vectors.put(offset + i, vector[i] * norm);
+        }
+        count++;
+        mapped.putInt(8, count);
+        return count - 1;
+    }
+
+    /** Ids of the k vectors most similar to the query, best first. */
+    public synchronized int[] search(float[] query, int k) {
+        // k comes from -Drag.topK, which may be 0 or negative
+        if (count == 0 || k <= 0 || query.length != dimension) {
+            return new int[0];
+        }
+
+        // Min-heap of the best k so far: {id, score}
+        PriorityQueue<float[]> best = new PriorityQueue<>(k + 1, (a, b) -> Float.compare(a[1], b[1]));
+        for (int id = 0; id < count; id++) {
+            int offset = id * dimension;
+            float score = 0;
+            for (int i = 0; i < dimension; i++) {
+                score += vectors.get(offset + i) * query[i];
+            }
+            if (best.size() < k) {
+                best.add(new float[]{id, score});
+            } else if (score > best.peek()[1]) {
+                best.poll();
+                best.add(new float[]{id, score});
+            }
+        }
+
+        int[] ids = new int[best.size()];
+        for (int i = ids.length - 1; i >= 0; i--) {
+            ids[i] = (int) best.poll()[0];
+        }
+        return ids;
+    }
+
+    public synchronized void flush() {
+        if (mapped != null) {
+            mapped.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        channel.close();
+        file.close();
+    }
+
+    private void map(long size) throws IOException {
+        if (file.length() < size) {
+            file.setLength(size);
+        }
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        mapped.order(ByteOrder.BIG_ENDIAN);
+        mapped.position(HEADER_BYTES);
+        vectors = mapped.slice().asFloatBuffer();
+    }
+}